@@ -0,0 +1,134 @@
+package scm.vss;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import scm.vss.VSSChangeLogSet.VSSChangeLog;
+
+/**
+ * Measures writing, reading and showing change logs of the given number of
+ * entries.
+ *
+ * @author vara
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ChangeLogBenchmark
+{
+	@Param({"10", "1000", "100000", "1000000"})
+	public int entries;
+
+	/**
+	 * History entries as collected from VSS.
+	 */
+	private List<Object[]> history;
+
+	/**
+	 * Change log file written once for the parsing benchmark.
+	 */
+	private File changeLog;
+
+	/**
+	 * File written by the save benchmark.
+	 */
+	private File output;
+
+	/**
+	 * Entries parsed from the change log.
+	 */
+	private List<VSSChangeLog> logs;
+
+	private VSSSCM scm;
+
+	@Setup
+	@SuppressWarnings("unchecked")
+	public void setUp() throws Exception
+	{
+		scm = VSSBenchmarks.createSCM("$/Bench", null);
+		history = createHistory(entries);
+		changeLog = File.createTempFile("vss-changelog", ".xml");
+		output = File.createTempFile("vss-changelog", ".xml");
+		scm.save(changeLog, history);
+		logs = new VSSChangeLogSet(null, changeLog).getLogs();
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		changeLog.delete();
+		output.delete();
+	}
+
+	@Benchmark
+	public void escapeForXml(Blackhole blackhole)
+	{
+		for(Object[] entry : history)
+		{
+			blackhole.consume(VSSSCM.escapeForXml(entry[0]));
+			blackhole.consume(VSSSCM.escapeForXml(entry[2]));
+		}
+	}
+
+	@Benchmark
+	public long save() throws Exception
+	{
+		scm.save(output, history);
+		return output.length();
+	}
+
+	@Benchmark
+	public Object parse() throws Exception
+	{
+		return new VSSChangeLogSet(null, changeLog);
+	}
+
+	@Benchmark
+	public void getMsg(Blackhole blackhole)
+	{
+		for(VSSChangeLog log : logs)
+		{
+			blackhole.consume(log.getMsg());
+		}
+	}
+
+	/**
+	 * Creates history entries with paths and comments of typical length,
+	 * some of them holding characters to be escaped.
+	 */
+	static List<Object[]> createHistory(int count)
+	{
+		List<Object[]> history = new ArrayList<Object[]>(count);
+		long now = System.currentTimeMillis();
+		for(int index = 0;index < count;index ++)
+		{
+			Date date = new Date(now - index * 60000L);
+			Object[] entry = new Object[7];
+			entry[0] = "$/Bench/Module" + (index % 50) + "/Src/File" + index + ".cs";
+			entry[1] = "user" + (index % 20);
+			entry[2] = index % 4 == 0 
+				? "Fixed <Parser> & \"quotes\" for 'item' " + index 
+				: "Regular check-in comment for change number " + index + "\nwith a second line";
+			entry[3] = "Checked in";
+			entry[4] = VSSSCM.formatDate(date);
+			entry[5] = Integer.toString(index % 100 + 2);
+			entry[VSSSCM.ENTRY_DATE] = date;
+			history.add(entry);
+		}
+		return history;
+	}
+}
@@ -0,0 +1,64 @@
+package scm.vss;
+
+import hudson.util.LogTaskListener;
+
+import java.io.File;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the walk over the versions of a project when collecting the
+ * history, with a {@link FakeVSSBackend} database whose project has the
+ * given number of versions. The database answers right away, and the walk
+ * runs on the benchmark thread rather than through {@link VSSOperation},
+ * so only the cost of the walk itself is measured, not the start of a
+ * thread per call.
+ *
+ * @author vara
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HistoryBenchmark
+{
+	/**
+	 * Most files of the project.
+	 */
+	private static final int FILES = 1000;
+
+	@Param({"10", "1000", "100000", "1000000"})
+	public int versions;
+
+	private Callable<List<Object[]>> walk;
+
+	@Setup
+	public void setUp() throws Exception
+	{
+		File ini = VSSBenchmarks.createIniFile();
+		FakeVSSBackend backend = FakeVSSBackend.generate(1, Math.min(versions, FILES), versions, 0, 16, 1L);
+		VSSSCM scm = backend.createSCM(ini);
+		LogTaskListener listener = new LogTaskListener(
+				Logger.getLogger(HistoryBenchmark.class.getName()), Level.FINEST);
+		walk = scm.createHistoryOperation(new String[]{backend.getProjects().get(0)}, new Date(0), 
+				Integer.MAX_VALUE, null, true, listener);
+	}
+
+	@Benchmark
+	public List<Object[]> getHistoryEntries() throws Exception
+	{
+		return walk.call();
+	}
+}
@@ -0,0 +1,42 @@
+package scm.vss;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Helpers shared by the benchmarks.
+ *
+ * @author vara
+ */
+final class VSSBenchmarks
+{
+	private VSSBenchmarks()
+	{
+	}
+
+	/**
+	 * Creates a job configuration with the default options.
+	 *
+	 * @param vssPath The VSS paths, separated by commas.
+	 * @param serverPath The srcsafe.ini file, null if not used.
+	 * @return The configuration.
+	 */
+	static VSSSCM createSCM(String vssPath, String serverPath)
+	{
+		return new VSSSCM(serverPath, "bench", "", vssPath, false, true, false);
+	}
+
+	/**
+	 * Creates an empty srcsafe.ini file, which is checked for before the
+	 * database is opened.
+	 *
+	 * @return The file, deleted on exit.
+	 * @throws IOException The file could not be created.
+	 */
+	static File createIniFile() throws IOException
+	{
+		File ini = File.createTempFile("srcsafe", ".ini");
+		ini.deleteOnExit();
+		return ini;
+	}
+}
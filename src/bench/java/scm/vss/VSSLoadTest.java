@@ -0,0 +1,253 @@
+package scm.vss;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.TaskListener;
+import hudson.scm.PollingResult;
+import hudson.util.NullStream;
+import hudson.util.StreamTaskListener;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Drives checkout and polling for many jobs at once against a generated
+ * in-memory VSS database, while check-ins keep coming in, and prints the
+ * times taken and the VSS calls made. Options are given as name=value
+ * arguments:
+ *
+ * <pre>
+ * files=100000        files in the database
+ * versions=2000000    versions in the database
+ * jobs=16             jobs, each working with its own project
+ * rounds=10           polls of each job
+ * latency=100         microseconds each VSS call takes
+ * pollInterval=500    milliseconds between the polls of a job
+ * checkinInterval=50  milliseconds between check-ins
+ * fileSize=256        bytes of each file fetched
+ * options=            recursive,update,coalesce,asyncCleanup,historyStore,collapse,
+ *                     sessions=4,backoff=30 for the jobs
+ * </pre>
+ *
+ * @author vara
+ */
+public final class VSSLoadTest
+{
+	private VSSLoadTest()
+	{
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		Map<String, String> options = new HashMap<String, String>();
+		for(String arg : args)
+		{
+			int split = arg.indexOf('=');
+			options.put(arg.substring(0, split), arg.substring(split + 1));
+		}
+		int files = getInt(options, "files", 100000);
+		int versions = getInt(options, "versions", 2000000);
+		final int jobs = getInt(options, "jobs", 16);
+		final int rounds = getInt(options, "rounds", 10);
+		int latency = getInt(options, "latency", 100);
+		final int pollInterval = getInt(options, "pollInterval", 500);
+		final int checkinInterval = getInt(options, "checkinInterval", 50);
+		int fileSize = getInt(options, "fileSize", 256);
+		String jobOptions = options.containsKey("options") ? options.get("options") : "recursive";
+
+		long start = System.currentTimeMillis();
+		final FakeVSSBackend backend = FakeVSSBackend.generate(jobs, files, versions,
+				1000000, fileSize, 1L);
+		System.out.println("Generated " + backend.getFileCount() + " files and "
+				+ backend.getVersionCount() + " versions in "
+				+ VSSGetProgress.formatDuration(System.currentTimeMillis() - start));
+		backend.setLatency(latency);
+
+		File root = File.createTempFile("vss-load", "");
+		root.delete();
+		File ini = VSSBenchmarks.createIniFile();
+		final List<String> projects = backend.getProjects();
+		final Timings checkouts = new Timings();
+		final Timings polls = new Timings();
+		final AtomicBoolean running = new AtomicBoolean(true);
+
+		ExecutorService pool = Executors.newFixedThreadPool(jobs + 1);
+		try
+		{
+			//Check-ins to random projects until the jobs are done.
+			Future<?> checkins = pool.submit(new Callable<Object>()
+			{
+				public Object call() throws InterruptedException
+				{
+					Random random = new Random(2L);
+					while(running.get())
+					{
+						backend.checkIn(projects.get(random.nextInt(projects.size())), random);
+						Thread.sleep(checkinInterval);
+					}
+					return null;
+				}
+			});
+
+			start = System.currentTimeMillis();
+			List<Future<?>> workers = new ArrayList<Future<?>>();
+			for(int index = 0;index < jobs;index ++)
+			{
+				final VSSSCM scm = createSCM(projects.get(index), ini.getPath(), jobOptions);
+				scm.setDatabaseFactory(backend.getDatabaseFactory());
+				final File job = new File(root, "job" + index);
+				workers.add(pool.submit(new Callable<Object>()
+				{
+					public Object call() throws Exception
+					{
+						runJob(scm, job, rounds, pollInterval, checkouts, polls);
+						return null;
+					}
+				}));
+			}
+			for(Future<?> worker : workers)
+			{
+				worker.get();
+			}
+			long elapsed = System.currentTimeMillis() - start;
+			running.set(false);
+			checkins.get();
+
+			System.out.println(jobs + " jobs, " + rounds + " rounds in "
+					+ VSSGetProgress.formatDuration(elapsed));
+			System.out.println("checkout: " + checkouts);
+			System.out.println("poll:     " + polls);
+			System.out.println(backend.getTotalCalls() + " VSS calls:");
+			for(Map.Entry<String, Long> entry : backend.getCalls().entrySet())
+			{
+				System.out.println("  " + entry.getKey() + " " + entry.getValue());
+			}
+		}
+		finally
+		{
+			running.set(false);
+			pool.shutdownNow();
+			Util.deleteRecursive(root);
+		}
+	}
+
+	/**
+	 * Checks out the job, then polls it and checks it out again whenever
+	 * there are changes.
+	 */
+	private static void runJob(VSSSCM scm, File job, int rounds, int pollInterval,
+			Timings checkouts, Timings polls) throws Exception
+	{
+		TaskListener listener = new StreamTaskListener(new NullStream());
+		File workspace = new File(job, "workspace");
+		workspace.mkdirs();
+		File changelog = new File(job, "changelog.xml");
+
+		Date lastBuild = new Date();
+		long start = System.currentTimeMillis();
+		scm.checkout(null, new FilePath(workspace), listener, changelog);
+		checkouts.add(System.currentTimeMillis() - start);
+
+		for(int round = 0;round < rounds;round ++)
+		{
+			Thread.sleep(pollInterval);
+
+			start = System.currentTimeMillis();
+			PollingResult result = scm.poll(lastBuild, listener);
+			polls.add(System.currentTimeMillis() - start);
+
+			if(result.hasChanges())
+			{
+				Date buildTime = new Date();
+				start = System.currentTimeMillis();
+				scm.checkout(lastBuild, new FilePath(workspace), listener, changelog);
+				checkouts.add(System.currentTimeMillis() - start);
+				lastBuild = buildTime;
+			}
+		}
+	}
+
+	/**
+	 * Creates the configuration of a job from the options.
+	 */
+	private static VSSSCM createSCM(String vssPath, String ini, String options)
+	{
+		List<String> flags = new ArrayList<String>();
+		int sessions = 0;
+		int backoff = 0;
+		for(String option : options.split(","))
+		{
+			if(option.startsWith("sessions="))
+			{
+				sessions = Integer.parseInt(option.substring("sessions=".length()));
+			}
+			else if(option.startsWith("backoff="))
+			{
+				backoff = Integer.parseInt(option.substring("backoff=".length()));
+			}
+			else
+			{
+				flags.add(option.trim());
+			}
+		}
+		VSSSCM scm = new VSSSCM(ini, "load", "", vssPath, false, flags.contains("recursive"),
+				flags.contains("update"));
+		scm.setCoalesceFetches(flags.contains("coalesce"));
+		scm.setFetchSessions(sessions);
+		scm.setAsyncCleanup(flags.contains("asyncCleanup"));
+		scm.setUseHistoryStore(flags.contains("historyStore"));
+		scm.setPollBackoff(backoff);
+		scm.setCollapseChanges(flags.contains("collapse"));
+		return scm;
+	}
+
+	private static int getInt(Map<String, String> options, String name, int defaultValue)
+	{
+		String value = options.get(name);
+		return value == null ? defaultValue : Integer.parseInt(value);
+	}
+
+	/**
+	 * Times taken by an operation.
+	 */
+	private static final class Timings
+	{
+		private final List<Long> times = new ArrayList<Long>();
+
+		synchronized void add(long millis)
+		{
+			times.add(Long.valueOf(millis));
+		}
+
+		@Override
+		public synchronized String toString()
+		{
+			if(times.isEmpty())
+			{
+				return "none";
+			}
+			List<Long> sorted = new ArrayList<Long>(times);
+			Collections.sort(sorted);
+			long total = 0;
+			for(Long time : sorted)
+			{
+				total += time.longValue();
+			}
+			return sorted.size() + " times, mean " + total / sorted.size()
+				+ " ms, median " + sorted.get(sorted.size() / 2)
+				+ " ms, 99th " + sorted.get((int)(sorted.size() * 0.99))
+				+ " ms, max " + sorted.get(sorted.size() - 1) + " ms";
+		}
+	}
+}
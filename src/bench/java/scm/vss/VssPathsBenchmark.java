@@ -0,0 +1,51 @@
+package scm.vss;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures joining the VSS paths of a job for the configuration page. The
+ * joining is quadratic in the number of paths, so the largest inputs take
+ * very long.
+ *
+ * @author vara
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class VssPathsBenchmark
+{
+	@Param({"1", "10", "1000", "100000", "1000000"})
+	public int paths;
+
+	private VSSSCM scm;
+
+	@Setup
+	public void setUp()
+	{
+		StringBuilder vssPath = new StringBuilder();
+		for(int index = 0;index < paths;index ++)
+		{
+			if(index > 0)
+			{
+				vssPath.append(',');
+			}
+			vssPath.append("$/Bench/Module").append(index);
+		}
+		scm = VSSBenchmarks.createSCM(vssPath.toString(), null);
+	}
+
+	@Benchmark
+	public String getVssPaths()
+	{
+		return scm.getVssPaths();
+	}
+}
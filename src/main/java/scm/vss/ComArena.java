@@ -0,0 +1,349 @@
+package scm.vss;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com4j.Com4jObject;
+
+/**
+ * Tracks the COM objects acquired during one VSS operation and disposes
+ * all of them when the operation is done, whether it succeeded or not.
+ *
+ * <pre>
+ * ComArena arena = new ComArena("history");
+ * try
+ * {
+ *     IVSSItem item = arena.add(database.vssItem(path, false));
+ *     ...
+ * }
+ * finally
+ * {
+ *     arena.close();
+ * }
+ * </pre>
+ *
+ * Objects can be released early with {@link #release(Com4jObject)} to keep
+ * the number of live handles low in long loops.
+ *
+ * The enumerators of COM collections hold a handle until they are
+ * exhausted. One left part-way can be tracked with
+ * {@link #addEnumerator(Iterator)} so that its handle is released with the
+ * arena rather than when it is collected.
+ *
+ * @author vara
+ */
+final class ComArena
+{
+	private static final Logger LOGGER = Logger.getLogger(ComArena.class.getName());
+
+	/**
+	 * Handles acquired by all arenas and not yet disposed.
+	 */
+	private static final AtomicInteger LIVE_HANDLES = new AtomicInteger();
+
+	/**
+	 * Handles that could not be disposed or were never released because
+	 * the arena was not closed.
+	 */
+	private static final AtomicInteger LEAKED_HANDLES = new AtomicInteger();
+
+	/**
+	 * Name of the operation, used in the leak reports.
+	 */
+	private final String name;
+
+	/**
+	 * Objects acquired, in the order acquired. Released objects leave a
+	 * null behind until the list is compacted.
+	 */
+	private final List<Com4jObject> objects = new ArrayList<Com4jObject>();
+
+	/**
+	 * Position in the list of the objects not yet released. COM objects are
+	 * the same when they are the same proxy, not when they are equal.
+	 */
+	private final Map<Com4jObject, Integer> positions = new IdentityHashMap<Com4jObject, Integer>();
+
+	/**
+	 * Enumerators acquired and not yet released.
+	 */
+	private final List<Iterator<?>> enumerators = new ArrayList<Iterator<?>>();
+
+	/**
+	 * Indicates whether the arena has been closed.
+	 */
+	private boolean closed = false;
+
+	/**
+	 * Creates an arena for an operation.
+	 *
+	 * @param name Name of the operation.
+	 */
+	ComArena(String name)
+	{
+		this.name = name;
+	}
+
+	/**
+	 * Tracks the given object. It will be disposed on close.
+	 *
+	 * @param object The object to track, may be null.
+	 * @return The object given.
+	 */
+	synchronized <T extends Com4jObject> T add(T object)
+	{
+		if(closed)
+		{
+			throw new IllegalStateException("COM arena " + name + " is closed");
+		}
+		if(object != null && !positions.containsKey(object))
+		{
+			positions.put(object, Integer.valueOf(objects.size()));
+			objects.add(object);
+			LIVE_HANDLES.incrementAndGet();
+		}
+		return object;
+	}
+
+	/**
+	 * Disposes the given object now instead of on close.
+	 *
+	 * @param object The object to release, may be null.
+	 */
+	synchronized void release(Com4jObject object)
+	{
+		Integer position = object == null ? null : positions.remove(object);
+		if(position == null)
+		{
+			return;
+		}
+		objects.set(position.intValue(), null);
+		dispose(object);
+
+		//Drop the released objects at the end, and the others once they
+		//take most of the list.
+		while(!objects.isEmpty() && objects.get(objects.size() - 1) == null)
+		{
+			objects.remove(objects.size() - 1);
+		}
+		if(objects.size() > 16 && positions.size() < objects.size() / 2)
+		{
+			compact();
+		}
+	}
+
+	/**
+	 * Tracks the enumerator of a COM collection. Its handle will be
+	 * released on close.
+	 *
+	 * @param enumerator The enumerator to track.
+	 * @return The enumerator given.
+	 */
+	synchronized <T> Iterator<T> addEnumerator(Iterator<T> enumerator)
+	{
+		if(closed)
+		{
+			throw new IllegalStateException("COM arena " + name + " is closed");
+		}
+		enumerators.add(enumerator);
+		LIVE_HANDLES.incrementAndGet();
+		return enumerator;
+	}
+
+	/**
+	 * Releases the handle of the given enumerator now instead of on close,
+	 * such as when a loop ends before the enumerator is exhausted.
+	 *
+	 * @param enumerator The enumerator to release.
+	 */
+	synchronized void releaseEnumerator(Iterator<?> enumerator)
+	{
+		for(int index = enumerators.size() - 1;index >= 0;index --)
+		{
+			if(enumerators.get(index) == enumerator)
+			{
+				enumerators.remove(index);
+				disposeEnumerator(enumerator);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Removes the released objects from the list, keeping the order of the
+	 * others.
+	 */
+	private void compact()
+	{
+		int count = 0;
+		for(Com4jObject object : objects)
+		{
+			if(object != null)
+			{
+				positions.put(object, Integer.valueOf(count));
+				objects.set(count++, object);
+			}
+		}
+		objects.subList(count, objects.size()).clear();
+	}
+
+	/**
+	 * Disposes all the objects still tracked, the most recent first.
+	 */
+	synchronized void close()
+	{
+		if(closed)
+		{
+			return;
+		}
+		closed = true;
+		for(int index = enumerators.size() - 1;index >= 0;index --)
+		{
+			disposeEnumerator(enumerators.get(index));
+		}
+		enumerators.clear();
+		for(int index = objects.size() - 1;index >= 0;index --)
+		{
+			if(objects.get(index) != null)
+			{
+				dispose(objects.get(index));
+			}
+		}
+		objects.clear();
+		positions.clear();
+	}
+
+	/**
+	 * Disposes the object and updates the counters.
+	 */
+	private void dispose(Com4jObject object)
+	{
+		LIVE_HANDLES.decrementAndGet();
+		try
+		{
+			object.dispose();
+		}
+		catch(RuntimeException error)
+		{
+			LEAKED_HANDLES.incrementAndGet();
+			LOGGER.log(Level.WARNING, "Failed to dispose a COM object of " + name, error);
+		}
+	}
+
+	/**
+	 * Releases the handle of an enumerator and updates the counters. The
+	 * com4j enumerator has no public method for this: it disposes the
+	 * IEnumVARIANT it keeps in a field once exhausted, and is otherwise left
+	 * to be collected. That object is disposed here, which com4j allows more
+	 * than once.
+	 */
+	private void disposeEnumerator(Iterator<?> enumerator)
+	{
+		LIVE_HANDLES.decrementAndGet();
+		try
+		{
+			if(enumerator instanceof Com4jObject)
+			{
+				((Com4jObject)enumerator).dispose();
+				return;
+			}
+			try
+			{
+				Method dispose = enumerator.getClass().getMethod("dispose");
+				dispose.setAccessible(true);
+				dispose.invoke(enumerator);
+				return;
+			}
+			catch(NoSuchMethodException e)
+			{
+				//Look for the handle itself.
+			}
+			for(Field field : enumerator.getClass().getDeclaredFields())
+			{
+				if(Com4jObject.class.isAssignableFrom(field.getType()))
+				{
+					field.setAccessible(true);
+					Com4jObject handle = (Com4jObject)field.get(enumerator);
+					if(handle != null)
+					{
+						handle.dispose();
+					}
+					return;
+				}
+			}
+			LOGGER.fine("No handle found in the enumerator " + enumerator.getClass().getName() 
+					+ " of " + name + ", it is left to be collected");
+		}
+		catch(InvocationTargetException error)
+		{
+			LEAKED_HANDLES.incrementAndGet();
+			LOGGER.log(Level.WARNING, "Failed to dispose a COM enumerator of " + name, error.getCause());
+		}
+		catch(IllegalAccessException error)
+		{
+			LEAKED_HANDLES.incrementAndGet();
+			LOGGER.log(Level.WARNING, "Failed to dispose a COM enumerator of " + name, error);
+		}
+		catch(RuntimeException error)
+		{
+			LEAKED_HANDLES.incrementAndGet();
+			LOGGER.log(Level.WARNING, "Failed to dispose a COM enumerator of " + name, error);
+		}
+	}
+
+	/**
+	 * Reports the arenas that have never been closed.
+	 */
+	@Override
+	protected void finalize() throws Throwable
+	{
+		try
+		{
+			int count;
+			synchronized(this)
+			{
+				count = closed ? 0 : positions.size() + enumerators.size();
+			}
+			if(count > 0)
+			{
+				LEAKED_HANDLES.addAndGet(count);
+				LOGGER.warning("COM arena " + name + " was never closed, "
+						+ count + " COM objects leaked");
+			}
+		}
+		finally
+		{
+			super.finalize();
+		}
+	}
+
+	/**
+	 *
+	 * @return Number of COM objects acquired through arenas and not yet
+	 * disposed.
+	 *
+	 */
+	static int getLiveHandles()
+	{
+		return LIVE_HANDLES.get();
+	}
+
+	/**
+	 *
+	 * @return Number of COM objects that could not be disposed.
+	 *
+	 */
+	static int getLeakedHandles()
+	{
+		return LEAKED_HANDLES.get();
+	}
+}
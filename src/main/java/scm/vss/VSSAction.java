@@ -0,0 +1,66 @@
+package scm.vss;
+
+/**
+ * The actions of VSS history entries the plugin tells apart. Each action
+ * returned by VSS is classified once, other actions such as check-ins are
+ * {@link #OTHER}.
+ *
+ * @author vara
+ */
+enum VSSAction
+{
+	ADDED("Added"),
+	DELETED("Deleted"),
+	DESTROYED("Destroyed"),
+	RECOVERED("Recovered"),
+	OTHER(null);
+
+	/**
+	 * The action as returned by VSS.
+	 */
+	private final String text;
+
+	private VSSAction(String text)
+	{
+		this.text = text;
+	}
+
+	/**
+	 * Classifies the action returned by VSS.
+	 *
+	 * @param action The action, trimmed.
+	 * @return The classified action.
+	 */
+	static VSSAction classify(String action)
+	{
+		for(VSSAction value : values())
+		{
+			if(value.text != null && value.text.equals(action))
+			{
+				return value;
+			}
+		}
+		return OTHER;
+	}
+
+	/**
+	 * Tells whether the action adds or removes an item of a project. VSS
+	 * returns the project instead of the item for these.
+	 *
+	 * @return True for additions and removals.
+	 */
+	boolean changesProject()
+	{
+		return this != OTHER;
+	}
+
+	/**
+	 * Tells whether the action brings an item into a project.
+	 *
+	 * @return True for additions and recoveries.
+	 */
+	boolean isAddition()
+	{
+		return this == ADDED || this == RECOVERED;
+	}
+}
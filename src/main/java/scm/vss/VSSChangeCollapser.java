@@ -0,0 +1,95 @@
+package scm.vss;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collapses the history entries of a build to one entry per file, so that a
+ * file checked in many times between two builds takes one place in the
+ * change log. The entry kept is the newest version of the file; it also
+ * holds the number of versions collapsed into it and their comments.
+ *
+ * @author vara
+ */
+final class VSSChangeCollapser
+{
+	/**
+	 * Utility class.
+	 */
+	private VSSChangeCollapser()
+	{
+	}
+
+	/**
+	 * Collapses the history entries to the newest entry of each file.
+	 *
+	 * @param entries History entries, newest first for each path.
+	 * @param maxFiles Most entries to return.
+	 * @return The collapsed entries, in the order of the newest version of
+	 * each file. Each has its count of versions at
+	 * {@link VSSSCM#ENTRY_COUNT} and its comments, newest first and without
+	 * repeats, at {@link VSSSCM#ENTRY_COMMENTS}.
+	 */
+	static List<Object[]> collapse(List<Object[]> entries, int maxFiles)
+	{
+		List<Object[]> collapsed = new ArrayList<Object[]>();
+		Map<String, Object[]> files = new HashMap<String, Object[]>();
+		for(Object[] entry : entries)
+		{
+			//VSS paths do not depend on the case.
+			String key = entry[0] == null ? null : ((String)entry[0]).toLowerCase();
+			Object[] newest = key == null ? null : files.get(key);
+			if(newest == null)
+			{
+				if(collapsed.size() >= maxFiles)
+				{
+					continue;
+				}
+				newest = new Object[VSSSCM.ENTRY_COMMENTS + 1];
+				System.arraycopy(entry, 0, newest, 0, VSSSCM.ENTRY_DATE + 1);
+				newest[VSSSCM.ENTRY_COUNT] = Integer.valueOf(0);
+				newest[VSSSCM.ENTRY_COMMENTS] = new LinkedHashSet<String>();
+				collapsed.add(newest);
+				if(key != null)
+				{
+					files.put(key, newest);
+				}
+			}
+
+			newest[VSSSCM.ENTRY_COUNT] = Integer.valueOf(((Integer)newest[VSSSCM.ENTRY_COUNT]).intValue() + 1);
+			String comment = (String)entry[2];
+			if(comment != null && comment.trim().length() > 0)
+			{
+				getComments(newest).add(comment);
+			}
+		}
+
+		for(Object[] entry : collapsed)
+		{
+			entry[VSSSCM.ENTRY_COMMENTS] = new ArrayList<String>(getComments(entry));
+		}
+		return collapsed;
+	}
+
+	/**
+	 * Returns the files to delete without repeats, a file deleted and
+	 * recovered many times being deleted once.
+	 *
+	 * @param deletions Files to delete.
+	 * @return The files, in the order first seen.
+	 */
+	static List<String> collapseDeletions(List<String> deletions)
+	{
+		return new ArrayList<String>(new LinkedHashSet<String>(deletions));
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Set<String> getComments(Object[] entry)
+	{
+		return (Set<String>)entry[VSSSCM.ENTRY_COMMENTS];
+	}
+}
@@ -0,0 +1,446 @@
+package scm.vss;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Index of the builds of a job by the files changed and the users changing
+ * them, so that finding the builds that changed a path does not read the
+ * change log of every build. The index is kept in the job directory and
+ * appended to as each change log is saved, one line per change followed by
+ * a line closing the build:
+ *
+ * <pre>
+ * C	12	vara	$/Product/Src/Main.cs
+ * B	12
+ * </pre>
+ *
+ * Changes of a build that is not closed, such as after a crash, are left
+ * out. A line <tt>F</tt> records that the builds made before the index
+ * have been added.
+ *
+ * @author vara
+ */
+final class VSSChangeIndex
+{
+	/**
+	 * Name of the index file in the job directory.
+	 */
+	static final String FILE_NAME = "vss-index.txt";
+
+	/**
+	 * Opened indexes by file.
+	 */
+	private static final Map<File, VSSChangeIndex> INDEXES = new HashMap<File, VSSChangeIndex>();
+
+	/**
+	 * The index file.
+	 */
+	private final File file;
+
+	/**
+	 * Changes by lower case file path, sorted to look up folders.
+	 */
+	private final TreeMap<String, Changes> files = new TreeMap<String, Changes>();
+
+	/**
+	 * Builds by lower case user.
+	 */
+	private final Map<String, SortedSet<Integer>> users = new HashMap<String, SortedSet<Integer>>();
+
+	/**
+	 * Builds indexed.
+	 */
+	private final SortedSet<Integer> builds = new TreeSet<Integer>();
+
+	/**
+	 * Indicates whether the builds made before the index have been added.
+	 */
+	private boolean complete = false;
+
+	/**
+	 * Users of the changes, to share the strings.
+	 */
+	private final Map<String, String> names = new HashMap<String, String>();
+
+	private VSSChangeIndex(File file)
+	{
+		this.file = file;
+	}
+
+	/**
+	 * Returns the index of the job with the given directory, reading it
+	 * when first used, and again if the file has been deleted since, as
+	 * with the job.
+	 *
+	 * @param jobDir The job directory.
+	 * @return The index.
+	 * @throws IOException The index could not be read.
+	 */
+	static VSSChangeIndex get(File jobDir) throws IOException
+	{
+		File file = new File(jobDir, FILE_NAME);
+		synchronized(INDEXES)
+		{
+			VSSChangeIndex index = INDEXES.get(file);
+			if(index == null || !file.isFile())
+			{
+				index = new VSSChangeIndex(file);
+				index.load();
+				INDEXES.put(file, index);
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * Forgets the index of the job with the given directory, once the job
+	 * has been deleted or renamed.
+	 *
+	 * @param jobDir The job directory.
+	 */
+	static void forget(File jobDir)
+	{
+		synchronized(INDEXES)
+		{
+			INDEXES.remove(new File(jobDir, FILE_NAME));
+		}
+	}
+
+	/**
+	 * Reads the index file, leaving out the builds not closed.
+	 */
+	private void load() throws IOException
+	{
+		if(!file.isFile())
+		{
+			return;
+		}
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), "UTF-8"));
+		try
+		{
+			List<String[]> pending = new ArrayList<String[]>();
+			String line;
+			while((line = reader.readLine()) != null)
+			{
+				String[] fields = line.split("\t", 4);
+				if(fields[0].equals("C") && fields.length == 4)
+				{
+					pending.add(fields);
+				}
+				else if(fields[0].equals("B") && fields.length == 2)
+				{
+					int build = Integer.parseInt(fields[1]);
+					for(String[] change : pending)
+					{
+						if(Integer.parseInt(change[1]) == build)
+						{
+							index(build, change[2], change[3]);
+						}
+					}
+					pending.clear();
+					builds.add(Integer.valueOf(build));
+				}
+				else if(fields[0].equals("F"))
+				{
+					complete = true;
+				}
+			}
+		}
+		catch(NumberFormatException e)
+		{
+			throw new IOException("Invalid line in " + file + ": " + e.getMessage());
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	/**
+	 * Adds the changes of a build to the index.
+	 *
+	 * @param build Number of the build.
+	 * @param changeLog Change log of the build.
+	 * @throws IOException Any error while reading the change log or writing
+	 * the index.
+	 */
+	synchronized void add(final int build, File changeLog) throws IOException
+	{
+		if(builds.contains(Integer.valueOf(build)))
+		{
+			return;
+		}
+
+		final List<String[]> changes = new ArrayList<String[]>();
+		if(changeLog.isFile())
+		{
+			VSSChangeLogReader.read(changeLog, new VSSChangeLogReader.Visitor()
+			{
+				public boolean visit(int index, String[] fields)
+				{
+					changes.add(new String[]{clean(fields[1]), clean(fields[0])});
+					return true;
+				}
+			});
+		}
+
+		Writer out = append();
+		try
+		{
+			for(String[] change : changes)
+			{
+				out.write("C\t" + build + '\t' + change[0] + '\t' + change[1] + '\n');
+			}
+			out.write("B\t" + build + '\n');
+		}
+		finally
+		{
+			out.close();
+		}
+
+		for(String[] change : changes)
+		{
+			index(build, change[0], change[1]);
+		}
+		builds.add(Integer.valueOf(build));
+	}
+
+	/**
+	 * Records that the builds made before the index have been added.
+	 *
+	 * @throws IOException Any error while writing the index.
+	 */
+	synchronized void setComplete() throws IOException
+	{
+		Writer out = append();
+		try
+		{
+			out.write("F\n");
+		}
+		finally
+		{
+			out.close();
+		}
+		complete = true;
+	}
+
+	/**
+	 * Opens the index file for appending, ending the line left by an
+	 * interrupted write first.
+	 */
+	private Writer append() throws IOException
+	{
+		boolean ended = true;
+		if(file.length() > 0)
+		{
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try
+			{
+				raf.seek(raf.length() - 1);
+				ended = raf.read() == '\n';
+			}
+			finally
+			{
+				raf.close();
+			}
+		}
+		Writer out = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+		if(!ended)
+		{
+			out.write('\n');
+		}
+		return out;
+	}
+
+	/**
+	 *
+	 * @return True if the builds made before the index have been added.
+	 *
+	 */
+	synchronized boolean isComplete()
+	{
+		return complete;
+	}
+
+	/**
+	 * Tells whether the changes of the build are in the index.
+	 *
+	 * @param build Number of the build.
+	 * @return True if the build has been indexed.
+	 */
+	synchronized boolean contains(int build)
+	{
+		return builds.contains(Integer.valueOf(build));
+	}
+
+	/**
+	 * Returns the builds that changed the given path, or anything under it,
+	 * and that were made by the given user.
+	 *
+	 * @param path VSS path of a file or a project, null for any.
+	 * @param user User, null for any.
+	 * @return Numbers of the builds, newest first.
+	 */
+	synchronized List<Integer> find(String path, String user)
+	{
+		SortedSet<Integer> found = new TreeSet<Integer>(Collections.reverseOrder());
+		String name = user == null ? null : names.get(user.toLowerCase());
+		if(path == null)
+		{
+			if(user == null)
+			{
+				found.addAll(builds);
+			}
+			else if(name != null)
+			{
+				found.addAll(users.get(name));
+			}
+			return new ArrayList<Integer>(found);
+		}
+		if(user != null && name == null)
+		{
+			return new ArrayList<Integer>();
+		}
+
+		//The path itself and everything under it.
+		String key = getKey(path);
+		while(key.length() > 2 && key.endsWith("/"))
+		{
+			key = key.substring(0, key.length() - 1);
+		}
+		Changes changes = files.get(key);
+		if(changes != null)
+		{
+			changes.collect(name, found);
+		}
+		String folder = key.endsWith("/") ? key : key + '/';
+		SortedMap<String, Changes> under = files.subMap(folder, folder + Character.MAX_VALUE);
+		for(Changes change : under.values())
+		{
+			change.collect(name, found);
+		}
+		return new ArrayList<Integer>(found);
+	}
+
+	/**
+	 * Adds a change to the maps.
+	 */
+	private void index(int build, String user, String path)
+	{
+		String name = names.get(user.toLowerCase());
+		if(name == null)
+		{
+			name = user.toLowerCase();
+			names.put(name, name);
+		}
+
+		String key = getKey(path);
+		Changes changes = files.get(key);
+		if(changes == null)
+		{
+			changes = new Changes();
+			files.put(key, changes);
+		}
+		changes.add(build, name);
+
+		SortedSet<Integer> byUser = users.get(name);
+		if(byUser == null)
+		{
+			byUser = new TreeSet<Integer>();
+			users.put(name, byUser);
+		}
+		byUser.add(Integer.valueOf(build));
+	}
+
+	/**
+	 * Returns the key of a path in the maps.
+	 */
+	private static String getKey(String path)
+	{
+		return path.trim().replace('\\', '/').toLowerCase();
+	}
+
+	/**
+	 * Makes a value fit on a line of the index.
+	 */
+	private static String clean(String value)
+	{
+		if(value == null)
+		{
+			return "";
+		}
+		return value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+	}
+
+	/**
+	 * The builds changing a file and their users.
+	 */
+	private static final class Changes
+	{
+		private int[] builds = new int[2];
+
+		/**
+		 * User of each change, shared strings.
+		 */
+		private String[] users = new String[2];
+
+		private int size = 0;
+
+		void add(int build, String user)
+		{
+			for(int index = size - 1;index >= 0 && builds[index] == build;index --)
+			{
+				if(users[index] == user)
+				{
+					return;
+				}
+			}
+			if(size == builds.length)
+			{
+				int[] newBuilds = new int[size * 2];
+				System.arraycopy(builds, 0, newBuilds, 0, size);
+				builds = newBuilds;
+				String[] newUsers = new String[size * 2];
+				System.arraycopy(users, 0, newUsers, 0, size);
+				users = newUsers;
+			}
+			builds[size] = build;
+			users[size] = user;
+			size++;
+		}
+
+		/**
+		 * Adds the builds of the changes by the given user, or by anyone if
+		 * null.
+		 */
+		void collect(String user, SortedSet<Integer> found)
+		{
+			for(int index = 0;index < size;index ++)
+			{
+				if(user == null || users[index] == user)
+				{
+					found.add(Integer.valueOf(builds[index]));
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package scm.vss;
+
+import hudson.util.IOException2;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Reads the entries of a change log file one by one, without keeping them.
+ * Used to stream large change logs.
+ *
+ * @author vara
+ */
+final class VSSChangeLogReader
+{
+	/**
+	 * Told of each entry of the change log.
+	 */
+	interface Visitor
+	{
+		/**
+		 * Called for each entry, in the order of the file.
+		 *
+		 * @param index Index of the entry in the file.
+		 * @param fields Values of the entry, in the order of the tags.
+		 * @return False to stop reading.
+		 * @throws IOException Any error while handling the entry.
+		 */
+		boolean visit(int index, String[] fields) throws IOException;
+	}
+
+	/**
+	 * Utility class.
+	 */
+	private VSSChangeLogReader()
+	{
+	}
+
+	/**
+	 * Reads the change log file, telling the visitor of each entry.
+	 *
+	 * @param file The change log file.
+	 * @param visitor Told of the entries.
+	 * @throws IOException Any error while reading the file or from the
+	 * visitor.
+	 */
+	static void read(File file, Visitor visitor) throws IOException
+	{
+		Handler handler = new Handler(visitor);
+		try
+		{
+			SAXParserFactory.newInstance().newSAXParser().parse(file, handler);
+		}
+		catch(SAXException e)
+		{
+			if(handler.stopped)
+			{
+				return;
+			}
+			if(e.getException() instanceof IOException)
+			{
+				throw (IOException)e.getException();
+			}
+			throw new IOException2("Failed to parse " + file, e);
+		}
+		catch(ParserConfigurationException e)
+		{
+			throw new IOException2("Failed to parse " + file, e);
+		}
+	}
+
+	/**
+	 * Collects the fields of each entry.
+	 */
+	private static final class Handler extends DefaultHandler
+	{
+		private final Visitor visitor;
+
+		/**
+		 * Fields of the current entry, null outside entries.
+		 */
+		private String[] fields;
+
+		/**
+		 * Index of the current tag, -1 outside tags.
+		 */
+		private int tag = -1;
+
+		private final StringBuilder text = new StringBuilder();
+
+		private int index = 0;
+
+		/**
+		 * Indicates whether the visitor stopped the reading.
+		 */
+		private boolean stopped = false;
+
+		Handler(Visitor visitor)
+		{
+			this.visitor = visitor;
+		}
+
+		@Override
+		public void startElement(String uri, String localName, String qName,
+				Attributes attributes)
+		{
+			if("entry".equals(qName))
+			{
+				fields = new String[VSSSCM.TAGS.length];
+				return;
+			}
+			if(fields != null)
+			{
+				for(int field = 0;field < VSSSCM.TAGS.length;field ++)
+				{
+					if(VSSSCM.TAGS[field].equals(qName))
+					{
+						tag = field;
+						text.setLength(0);
+						break;
+					}
+				}
+			}
+		}
+
+		@Override
+		public void characters(char[] ch, int start, int length)
+		{
+			if(tag >= 0)
+			{
+				text.append(ch, start, length);
+			}
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) throws SAXException
+		{
+			if(tag >= 0 && VSSSCM.TAGS[tag].equals(qName))
+			{
+				fields[tag] = text.toString();
+				tag = -1;
+			}
+			else if("entry".equals(qName) && fields != null)
+			{
+				boolean more;
+				try
+				{
+					more = visitor.visit(index++, fields);
+				}
+				catch(IOException e)
+				{
+					throw new SAXException(e);
+				}
+				fields = null;
+				if(!more)
+				{
+					//The only way to stop a SAX parser.
+					stopped = true;
+					throw new SAXException("stopped");
+				}
+			}
+		}
+	}
+}
@@ -12,8 +12,14 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.digester.Digester;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
 import org.xml.sax.SAXException;
 
 /**
@@ -25,37 +31,94 @@ import org.xml.sax.SAXException;
  */
 public class VSSChangeLogSet extends ChangeLogSet<VSSChangeLogSet.VSSChangeLog>
 {
+	private static final Logger LOGGER = Logger.getLogger(VSSChangeLogSet.class.getName());
+
+	/**
+	 * 
+	 * The change log file.
+	 * 
+	 */
+	private final File changeLogFile;
+
 	/**
 	 * 
-	 * List of history entries.
+	 * List of history entries, parsed when first needed.
 	 * 
 	 */
 	private List<VSSChangeLog> history = null;
 
 	/**
 	 * 
-	 * Log set is created with the change log file.
+	 * Why the change log file could not be parsed, null if it could.
+	 * 
+	 */
+	private String error = null;
+
+	/**
+	 * 
+	 * Log set is created with the change log file. The file is parsed when
+	 * the entries are first needed, so that it can be streamed without
+	 * being parsed. A file that can not be parsed makes the set broken.
 	 * 
 	 * @param changeLogFile Change log file.
-	 * @throws IOException, SAXException Error while parsing the log file.
+	 * @see #getError()
 	 * 
 	 */
 	public VSSChangeLogSet(AbstractBuild build, File changeLogFile)
-			throws IOException, SAXException
 	{
 		super(build);
+		this.changeLogFile = changeLogFile;
+	}
 
-		history = new ArrayList<VSSChangeLog>();
+	/**
+	 * 
+	 * Returns the history entries, parsing the change log file the first
+	 * time. A file that can not be parsed has no entries, and its error is
+	 * kept to be shown.
+	 * 
+	 */
+	private synchronized List<VSSChangeLog> getHistory()
+	{
+		if(history == null)
+		{
+			try
+			{
+				history = parse(changeLogFile);
+			}
+			catch(IOException e)
+			{
+				LOGGER.log(Level.WARNING, "Failed to parse " + changeLogFile, e);
+				history = new ArrayList<VSSChangeLog>();
+				error = e.getCause() != null ? e.getCause().getMessage() : e.getMessage();
+			}
+		}
+		return history;
+	}
+
+	/**
+	 * 
+	 * Parses the change log file.
+	 * 
+	 * @param changeLogFile Change log file.
+	 * @return The history entries.
+	 * @throws IOException Error while parsing the log file.
+	 * 
+	 */
+	private static List<VSSChangeLog> parse(File changeLogFile) throws IOException
+	{
+		List<VSSChangeLog> history = new ArrayList<VSSChangeLog>();
 
 		//Parse the change log file.
 		Digester digester = new Digester();
-		digester.setClassLoader(getClass().getClassLoader());
+		digester.setClassLoader(VSSChangeLogSet.class.getClassLoader());
 		digester.push(history);
         digester.addObjectCreate("*/entry", VSSChangeLog.class);
 
         for (String tag : VSSSCM.TAGS) {
             digester.addBeanPropertySetter("*/entry/" + tag);
         }
+        digester.addBeanPropertySetter("*/entry/count");
+        digester.addCallMethod("*/entry/comments/text", "addComment", 0);
 
         digester.addSetNext("*/entry","add");
         try {
@@ -65,8 +128,21 @@ public class VSSChangeLogSet extends ChangeLogSet<VSSChangeLogSet.VSSChangeLog>
         } catch (SAXException e) {
             throw new IOException2("Failed to parse "+changeLogFile,e);
         }
+        return history;
     }
 
+	/**
+	 * 
+	 * @return Why the change log file could not be parsed, null if it could.
+	 * The set has no entries then, though the build may have had changes.
+	 * 
+	 */
+	public synchronized String getError()
+	{
+		getHistory();
+		return error;
+	}
+
 	/**
 	 * 
 	 * Returns true if the changes are empty.
@@ -74,7 +150,7 @@ public class VSSChangeLogSet extends ChangeLogSet<VSSChangeLogSet.VSSChangeLog>
 	 */
 	public boolean isEmptySet()
 	{
-		return history.size() == 0;
+		return getHistory().size() == 0;
 	}
 
 	/**
@@ -84,7 +160,7 @@ public class VSSChangeLogSet extends ChangeLogSet<VSSChangeLogSet.VSSChangeLog>
 	 */
 	public Iterator<VSSChangeLog> iterator()
 	{
-		return history.iterator();
+		return getHistory().iterator();
 	}
 
 	/**
@@ -94,7 +170,48 @@ public class VSSChangeLogSet extends ChangeLogSet<VSSChangeLogSet.VSSChangeLog>
 	 */
 	public List getLogs()
 	{
-		return history;
+		return getHistory();
+	}
+
+	/**
+	 * 
+	 * Streams the entries as NDJSON straight from the change log file. 
+	 * Takes the cursor of the entries, the number of entries, and the path
+	 * and user to filter by as parameters.
+	 * 
+	 * @see VSSHistoryStream
+	 * 
+	 */
+	public void doNdjson(StaplerRequest req, StaplerResponse rsp) throws IOException
+	{
+		final int cursor;
+		final VSSHistoryStream stream;
+		try
+		{
+			cursor = VSSHistoryStream.parseInt(req.getParameter("cursor"), 0);
+			stream = new VSSHistoryStream(req, rsp);
+		}
+		catch(IllegalArgumentException e)
+		{
+			rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+			return;
+		}
+
+		final int number = build != null ? build.getNumber() : 0;
+		try
+		{
+			VSSChangeLogReader.read(changeLogFile, new VSSChangeLogReader.Visitor()
+			{
+				public boolean visit(int index, String[] fields) throws IOException
+				{
+					return index < cursor || stream.add(Integer.toString(index + 1), number, fields);
+				}
+			});
+		}
+		finally
+		{
+			stream.close();
+		}
 	}
 
 	/**
@@ -153,6 +270,20 @@ public class VSSChangeLogSet extends ChangeLogSet<VSSChangeLogSet.VSSChangeLog>
 		 */
 		private String file = null;
 
+		/**
+		 * 
+		 * Number of versions of the file collapsed into the entry.
+		 * 
+		 */
+		private int count = 1;
+
+		/**
+		 * 
+		 * Comments of the versions collapsed into the entry, newest first.
+		 * 
+		 */
+		private List<String> comments = new ArrayList<String>();
+
 		/**
 		 * 
 		 * @return Action performed on the file.
@@ -274,6 +405,48 @@ public class VSSChangeLogSet extends ChangeLogSet<VSSChangeLogSet.VSSChangeLog>
 			this.version = version;
 		}
 
+		/**
+		 * 
+		 * @return Number of versions of the file collapsed into the entry, 1
+		 * if not collapsed.
+		 * 
+		 */
+		public int getCount()
+		{
+			return count;
+		}
+
+		/**
+		 * 
+		 * @param count Number of versions of the file collapsed into the entry.
+		 * 
+		 */
+		public void setCount(int count)
+		{
+			this.count = count;
+		}
+
+		/**
+		 * 
+		 * @return Comments of the versions collapsed into the entry, newest
+		 * first. Empty if not collapsed.
+		 * 
+		 */
+		public List<String> getComments()
+		{
+			return comments;
+		}
+
+		/**
+		 * 
+		 * @param comment Comment of a version collapsed into the entry.
+		 * 
+		 */
+		public void addComment(String comment)
+		{
+			comments.add(comment);
+		}
+
 		/**
 		 * 
 		 * @return The author.
@@ -293,6 +466,10 @@ public class VSSChangeLogSet extends ChangeLogSet<VSSChangeLogSet.VSSChangeLog>
 		{
 			StringBuffer buffer = new StringBuffer();
 			filterFromEnd(getFile(), buffer);
+			if(count > 1)
+			{
+				buffer.append(" (").append(count).append(" versions)");
+			}
 			buffer.append(" - ");
 			filterFromStart(getComment(), buffer);
 			return buffer.toString();
@@ -0,0 +1,90 @@
+package scm.vss;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Recent versions of a VSS path seen by polling. VSS check-ins of many
+ * files are not atomic, so polling uses this to wait until no new versions
+ * have shown up for a while before starting a build.
+ *
+ * @author vara
+ */
+final class VSSCheckinWindow
+{
+	/**
+	 * Dates of the recent versions, newest first.
+	 */
+	private final List<Date> dates = new ArrayList<Date>();
+
+	/**
+	 * The newest version seen, as file and version number.
+	 */
+	private String newest = null;
+
+	/**
+	 * Time on this node when the newest version was first seen.
+	 */
+	private long newestSeenAt = 0;
+
+	/**
+	 * Updates the window with the recent history entries of the path and
+	 * tells whether the path has been quiet long enough.
+	 *
+	 * @param entries History entries, newest first, not empty.
+	 * @param quietTime Time in milliseconds without new versions needed.
+	 * @return True if the path has been quiet long enough.
+	 */
+	synchronized boolean update(List<Object[]> entries, long quietTime)
+	{
+		long now = System.currentTimeMillis();
+
+		dates.clear();
+		for(Object[] entry : entries)
+		{
+			dates.add((Date)entry[VSSSCM.ENTRY_DATE]);
+		}
+
+		//A new version restarts the wait.
+		Object[] latest = entries.get(0);
+		String version = latest[0] + ";" + latest[5];
+		if(!version.equals(newest))
+		{
+			newest = version;
+			newestSeenAt = now;
+		}
+
+		//The dates are set by the VSS clients, whose clocks may be off, so
+		//the time the version has been seen here counts as well.
+		return now - dates.get(0).getTime() >= quietTime
+			|| now - newestSeenAt >= quietTime;
+	}
+
+	/**
+	 * Returns the number of recent versions checked in within the given
+	 * time before the newest one.
+	 *
+	 * @param quietTime Time in milliseconds.
+	 * @return Number of versions.
+	 */
+	synchronized int getBurstSize(long quietTime)
+	{
+		if(dates.isEmpty())
+		{
+			return 0;
+		}
+
+		int count = 0;
+		long from = dates.get(0).getTime() - quietTime;
+		for(Date date : dates)
+		{
+			if(date.getTime() < from)
+			{
+				break;
+			}
+			count++;
+		}
+		return count;
+	}
+}
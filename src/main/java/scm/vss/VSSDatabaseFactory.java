@@ -0,0 +1,32 @@
+package scm.vss;
+
+import vss.ClassFactory;
+import vss.IVSSDatabase;
+
+/**
+ * Creates the VSS database objects the plugin works with. The COM factory
+ * is used unless another one is set, such as an in-memory database for
+ * benchmarks.
+ *
+ * @author vara
+ */
+interface VSSDatabaseFactory
+{
+	/**
+	 * The factory creating databases through COM.
+	 */
+	static final VSSDatabaseFactory COM = new VSSDatabaseFactory()
+	{
+		public IVSSDatabase createDatabase()
+		{
+			return ClassFactory.createVSSDatabase();
+		}
+	};
+
+	/**
+	 * Creates a database object, not opened yet.
+	 *
+	 * @return The database.
+	 */
+	IVSSDatabase createDatabase();
+}
@@ -0,0 +1,509 @@
+package scm.vss;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Reads the history of a VSS database directly from its physical files,
+ * without the VSS automation. This works on any platform that can read the
+ * database share and is much faster than COM, but is read-only and only
+ * knows the common record types. Anything it does not understand raises a
+ * {@link VSSFormatException} so that the caller can fall back to COM.
+ *
+ * The database is made of item files under data/x/xxxxxxxx, one per
+ * project or file, holding the revisions of the item as a chain of records
+ * from the newest back. A project has a companion file with the same name
+ * and the extension given in its header, listing its entries. Long names
+ * are kept in names.dat.
+ *
+ * The files opened stay open until the reader is closed.
+ *
+ * @author vara
+ */
+final class VSSDatabaseReader
+{
+	/**
+	 * Encoding of the strings in the database, the ANSI code page of the
+	 * VSS clients.
+	 */
+	private static final Charset CHARSET = Charset.forName(System.getProperty(
+			VSSDatabaseReader.class.getName() + ".charset", "windows-1252"));
+
+	/**
+	 * Physical name of the root project.
+	 */
+	private static final String ROOT_PHYSICAL = "AAAAAAAA";
+
+	/**
+	 * Item type of a project.
+	 */
+	private static final int PROJECT = 1;
+
+	/**
+	 * Name kind of a long file name in names.dat.
+	 */
+	private static final int NAME_LONG = 2;
+
+	/**
+	 * Name kind of a project name in names.dat.
+	 */
+	private static final int NAME_PROJECT = 10;
+
+	/**
+	 * Flag of a deleted project entry.
+	 */
+	private static final int ENTRY_DELETED = 1;
+
+	/**
+	 * Names of the revision actions as reported by the VSS automation, by
+	 * action code.
+	 */
+	private static final String[] ACTIONS = new String[]{
+		"Labeled", "Created", "Added", "Added", "Destroyed", "Destroyed",
+		"Deleted", "Deleted", "Recovered", "Recovered", "Renamed", "Renamed",
+		"Moved from", "Moved to", "Shared", "Branched", "Created", "Checked in"};
+
+	/**
+	 * Sorts history entries newest first.
+	 */
+	private static final Comparator<Object[]> NEWEST_FIRST = new Comparator<Object[]>()
+	{
+		public int compare(Object[] a, Object[] b)
+		{
+			return ((Date)b[VSSSCM.ENTRY_DATE]).compareTo((Date)a[VSSSCM.ENTRY_DATE]);
+		}
+	};
+
+	/**
+	 * Sorts history entries oldest first.
+	 */
+	private static final Comparator<Object[]> OLDEST_FIRST = Collections.reverseOrder(NEWEST_FIRST);
+
+	/**
+	 * The data folder of the database.
+	 */
+	private final File dataFolder;
+
+	/**
+	 * The names.dat file, opened when needed.
+	 */
+	private VSSRecordFile names = null;
+
+	/**
+	 * Opened item files by physical name.
+	 */
+	private final Map<String, VSSRecordFile> files = new HashMap<String, VSSRecordFile>();
+
+	/**
+	 * Creates the reader for the database of the given srcsafe.ini.
+	 *
+	 * @param serverPath Path to srcsafe.ini file.
+	 * @throws IOException The srcsafe.ini file could not be read.
+	 */
+	VSSDatabaseReader(String serverPath) throws IOException
+	{
+		File ini = new File(serverPath);
+		String dataPath = "data";
+
+		//Look for the data folder setting.
+		BufferedReader reader = new BufferedReader(new FileReader(ini));
+		try
+		{
+			String line;
+			while((line = reader.readLine()) != null)
+			{
+				int equals = line.indexOf('=');
+				if(equals > 0 && line.substring(0, equals).trim().equalsIgnoreCase("Data_Path"))
+				{
+					dataPath = line.substring(equals + 1).trim();
+				}
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+
+		File folder = new File(dataPath.replace('\\', '/'));
+		if(!folder.isAbsolute())
+		{
+			folder = new File(ini.getAbsoluteFile().getParentFile(), folder.getPath());
+		}
+		if(!folder.isDirectory())
+		{
+			throw new IOException("VSS data folder " + folder + " not found");
+		}
+		this.dataFolder = folder;
+	}
+
+	/**
+	 * Returns the history entries of the given paths after the start date,
+	 * newest first, in the same form as the VSS automation gives them.
+	 *
+	 * @param paths Directory paths in the VSS server.
+	 * @param recursive Indicates whether sub projects are included.
+	 * @param filter Selects the items to include.
+	 * @param startDate The date after which the history entries are needed.
+	 * @param maxEntries Maximum number of entries to be returned.
+	 * @param deletions List of files deleted to collect, may be null.
+	 * @return The history entries.
+	 * @throws IOException Any error while reading the database.
+	 * @throws InterruptedException The operation has been cancelled.
+	 */
+	List<Object[]> getHistory(String[] paths, boolean recursive, VSSPathFilter filter, Date startDate,
+			int maxEntries, List<String> deletions) throws IOException, InterruptedException
+	{
+		List<Object[]> historyEntries = new ArrayList<Object[]>();
+		List<String> deleted = new ArrayList<String>();
+		for (String vssPath : paths)
+		{
+			int capacity = maxEntries - historyEntries.size();
+			if(capacity <= 0)
+			{
+				break;
+			}
+
+			//Items are walked one by one, so keep the newest entries they 
+			//gave, the oldest first to be dropped, and sort them at the end.
+			PriorityQueue<Object[]> newest = new PriorityQueue<Object[]>(11, OLDEST_FIRST);
+			String spec = trimPath(vssPath);
+			collect(resolve(spec), spec, spec, recursive, filter, startDate, newest, capacity);
+			List<Object[]> entries = new ArrayList<Object[]>(newest);
+			Collections.sort(entries, NEWEST_FIRST);
+
+			for(Object[] entry : entries)
+			{
+				historyEntries.add(entry);
+				if("Deleted".equals(entry[3]) || "Recovered".equals(entry[3]))
+				{
+					deleted.add(((String)entry[0]).substring(spec.length()));
+				}
+			}
+		}
+
+		//Only report deletions once everything has been read.
+		if(deletions != null)
+		{
+			deletions.addAll(deleted);
+		}
+		return historyEntries;
+	}
+
+	/**
+	 * Collects the revisions of the item newer than the start date, and
+	 * those of its entries if it is a project.
+	 *
+	 * @param physical Physical name of the item.
+	 * @param spec VSS path of the item.
+	 * @param root VSS path of the item asked for.
+	 * @param recursive Indicates whether sub projects are included.
+	 * @param filter Selects the items to include.
+	 * @param startDate The date after which the revisions are needed.
+	 * @param newest Newest entries found so far, oldest first.
+	 * @param capacity Most entries to keep.
+	 */
+	private void collect(String physical, String spec, String root, boolean recursive, 
+			VSSPathFilter filter, Date startDate, PriorityQueue<Object[]> newest, int capacity) 
+			throws IOException, InterruptedException
+	{
+		VSSOperation.checkInterrupted();
+
+		VSSRecordFile file = open(physical);
+		file.readFileHeader();
+		file.readRecord(VSSRecordFile.FILE_HEADER_LENGTH, "DH");
+		int type = file.readInt16();
+		int revisions = file.readInt16();
+		file.skip(40 + 2);
+		String dataExt = file.readString(2);
+		file.skip(4);
+		int offset = file.readOffset("revision offset");
+
+		//Walk the revisions from the newest back.
+		for(int count = 0;count < revisions && offset > 0;count ++)
+		{
+			file.readRecord(offset, "EL");
+			int previous = file.readOffset("previous revision offset");
+			int action = file.readInt16("action code", ACTIONS.length - 1);
+			int version = file.readInt16();
+			Date date = new Date((file.readInt32() & 0xFFFFFFFFL) * 1000L);
+			if(date.before(startDate))
+			{
+				break;
+			}
+
+			//The older revisions would not be kept either.
+			if(newest.size() >= capacity && !date.after((Date)newest.peek()[VSSSCM.ENTRY_DATE]))
+			{
+				break;
+			}
+			String user = file.readString(32);
+			file.skip(32);
+			int commentOffset = file.readOffset("comment offset");
+			file.skip(4);
+			int commentLength = file.readInt16();
+			file.skip(2);
+
+			//Actions on an entry of a project name the entry.
+			String name = null;
+			switch(action)
+			{
+				case 2: case 3: case 4: case 5: case 6: case 7:
+				case 8: case 9: case 10: case 11: case 15:
+					name = readName(file);
+					break;
+				case 12: case 13: case 14:
+					file.skip(260);
+					name = readName(file);
+					break;
+				default:
+					break;
+			}
+
+			String comment = "";
+			if(commentLength > 0 && commentOffset > 0)
+			{
+				file.readRecord(commentOffset, "MC");
+				comment = file.readRemaining();
+			}
+
+			Object[] content = new Object[VSSSCM.ENTRY_DATE + 1];
+			content[0] = name == null ? spec : spec + "/" + name;
+			content[1] = user;
+			content[2] = comment;
+			content[3] = ACTIONS[action];
+			content[4] = VSSSCM.formatDate(date);
+			content[5] = Integer.toString(version);
+			content[VSSSCM.ENTRY_DATE] = date;
+			if(filter.includes(root, (String)content[0]))
+			{
+				newest.add(content);
+				if(newest.size() > capacity)
+				{
+					newest.poll();
+				}
+			}
+
+			offset = previous;
+		}
+
+		//A non recursive history includes the files of the project only.
+		if(type == PROJECT && (recursive || spec.equals(root)))
+		{
+			for(String[] entry : readEntries(physical, dataExt))
+			{
+				String entrySpec = spec + "/" + entry[0];
+				boolean project = Integer.parseInt(entry[2]) == PROJECT;
+				if(project ? !recursive || !filter.includesFolder(root, entrySpec) 
+						: !filter.includes(root, entrySpec))
+				{
+					continue;
+				}
+				collect(entry[1], entrySpec, root, recursive, filter, startDate, newest, capacity);
+			}
+		}
+	}
+
+	/**
+	 * Closes the files opened.
+	 *
+	 * @throws IOException Any error while closing a file.
+	 */
+	void close() throws IOException
+	{
+		IOException error = null;
+		List<VSSRecordFile> opened = new ArrayList<VSSRecordFile>(files.values());
+		if(names != null)
+		{
+			opened.add(names);
+		}
+		files.clear();
+		names = null;
+		for(VSSRecordFile file : opened)
+		{
+			try
+			{
+				file.close();
+			}
+			catch(IOException e)
+			{
+				error = e;
+			}
+		}
+		if(error != null)
+		{
+			throw error;
+		}
+	}
+
+	/**
+	 * Finds the physical name of the item with the given VSS path.
+	 *
+	 * @param spec VSS path of the item.
+	 * @return The physical name.
+	 * @throws IOException The item does not exist or could not be read.
+	 */
+	private String resolve(String spec) throws IOException
+	{
+		if(!spec.startsWith("$"))
+		{
+			throw new IOException("Invalid VSS path " + spec);
+		}
+
+		String physical = ROOT_PHYSICAL;
+		for(String part : spec.substring(1).split("/"))
+		{
+			if(part.length() == 0)
+			{
+				continue;
+			}
+
+			VSSRecordFile file = open(physical);
+			file.readFileHeader();
+			file.readRecord(VSSRecordFile.FILE_HEADER_LENGTH, "DH");
+			file.skip(4 + 40 + 2);
+			String dataExt = file.readString(2);
+
+			String found = null;
+			for(String[] entry : readEntries(physical, dataExt))
+			{
+				if(entry[0].equalsIgnoreCase(part))
+				{
+					found = entry[1];
+					break;
+				}
+			}
+			if(found == null)
+			{
+				throw new IOException(spec + " not found in the VSS database");
+			}
+			physical = found;
+		}
+		return physical;
+	}
+
+	/**
+	 * Reads the entries of a project that have not been deleted.
+	 *
+	 * @param physical Physical name of the project.
+	 * @param dataExt Extension of the entries file.
+	 * @return The entries as name, physical name and item type.
+	 */
+	private List<String[]> readEntries(String physical, String dataExt) throws IOException
+	{
+		List<String[]> entries = new ArrayList<String[]>();
+		VSSRecordFile file = open(physical + "." + dataExt);
+
+		//The entries follow the file header, if there is one.
+		int offset = file.hasFileHeader() ? VSSRecordFile.FILE_HEADER_LENGTH : 0;
+		while(offset < file.size())
+		{
+			file.readRecord(offset, "JP");
+			int type = file.readInt16();
+			int flags = file.readInt16();
+			String name = readName(file);
+			file.skip(2);
+			String entry = file.readString(10);
+			if((flags & ENTRY_DELETED) == 0)
+			{
+				entries.add(new String[]{name, entry, Integer.toString(type)});
+			}
+			offset = file.getRecordEnd();
+		}
+		return entries;
+	}
+
+	/**
+	 * Reads a name field, using the long name from names.dat if there is one.
+	 * The record is left after the name field.
+	 *
+	 * @param file The file positioned on the name.
+	 * @return The name.
+	 */
+	private String readName(VSSRecordFile file) throws IOException
+	{
+		int flags = file.readInt16();
+		String shortName = file.readString(34);
+		int nameOffset = file.readInt32();
+		if(nameOffset == 0)
+		{
+			return shortName;
+		}
+
+		if(names == null)
+		{
+			names = new VSSRecordFile(new File(dataFolder, "names.dat"), CHARSET);
+		}
+
+		//Pick the long name, or the project name for projects.
+		int wanted = (flags & 1) != 0 ? NAME_PROJECT : NAME_LONG;
+		names.readRecord(nameOffset, "SN");
+		int count = names.readInt16();
+		names.skip(2);
+		int[] kinds = new int[count];
+		int[] offsets = new int[count];
+		for(int index = 0;index < count;index ++)
+		{
+			kinds[index] = names.readInt16();
+			offsets[index] = names.readInt16();
+		}
+		int base = names.getPosition();
+		for(int index = 0;index < count;index ++)
+		{
+			if(kinds[index] == wanted)
+			{
+				names.setPosition(base + offsets[index]);
+				return names.readRemaining();
+			}
+		}
+		return shortName;
+	}
+
+	/**
+	 * Opens the physical file with the given name.
+	 */
+	private VSSRecordFile open(String name) throws IOException
+	{
+		VSSRecordFile file = files.get(name);
+		if(file == null)
+		{
+			String lower = name.toLowerCase();
+			File folder = new File(dataFolder, lower.substring(0, 1));
+			File path = new File(folder, lower);
+			if(!path.exists())
+			{
+				path = new File(new File(dataFolder, name.substring(0, 1)), name);
+			}
+			if(!path.exists())
+			{
+				throw new VSSFormatException(path, "missing physical file");
+			}
+			file = new VSSRecordFile(path, CHARSET);
+			files.put(name, file);
+		}
+		return file;
+	}
+
+	/**
+	 * Removes the trailing separator of a VSS path.
+	 */
+	static String trimPath(String spec)
+	{
+		String trimmed = spec.trim();
+		while(trimmed.length() > 2 && trimmed.endsWith("/"))
+		{
+			trimmed = trimmed.substring(0, trimmed.length() - 1);
+		}
+		return trimmed;
+	}
+}
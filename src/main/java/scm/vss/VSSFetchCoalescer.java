@@ -0,0 +1,398 @@
+package scm.vss;
+
+import hudson.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shares identical fetches from VSS that run at the same time, for example
+ * from the configurations of a matrix job. The first checkout fetches
+ * straight into its own workspace if it is empty, or else into a staging
+ * area. Checkouts of the same content arriving meanwhile wait for it and
+ * copy its files, and the first checkout waits for their copies before its
+ * build goes on, so that a checkout alone does no more than fetch.
+ *
+ * Content can also be prefetched ahead of a checkout, for example when
+ * polling has found changes. Prefetched content is kept for a while in a
+ * staging area on this node and is used by the checkouts of the same key.
+ * The staging areas are kept under the temporary folder, or under the
+ * folder given by the <tt>scm.vss.VSSFetchCoalescer.stagingRoot</tt>
+ * system property.
+ *
+ * @author vara
+ */
+final class VSSFetchCoalescer
+{
+	private static final Logger LOGGER = Logger.getLogger(VSSFetchCoalescer.class.getName());
+
+	/**
+	 * Fetches in progress by key.
+	 */
+	private static final Map<String, Fetch> FETCHES = new HashMap<String, Fetch>();
+
+	/**
+	 * Completed prefetches by key. Guarded by FETCHES.
+	 */
+	private static final Map<String, Fetch> PREFETCHED = new HashMap<String, Fetch>();
+
+	/**
+	 * Time in milliseconds for which prefetched content is kept.
+	 */
+	private static final long PREFETCH_EXPIRY = Long.getLong(
+			VSSFetchCoalescer.class.getName() + ".prefetchExpiry", 60 * 60 * 1000L).longValue();
+
+	/**
+	 * Folder the staging areas are kept in, null for the default.
+	 */
+	private static final String STAGING_ROOT = System.getProperty(
+			VSSFetchCoalescer.class.getName() + ".stagingRoot");
+
+	/**
+	 * Fetches the content into a directory.
+	 */
+	interface Fetcher
+	{
+		/**
+		 * Fetches the content.
+		 *
+		 * @param directory Directory to fetch into.
+		 * @throws IOException Any error while fetching.
+		 * @throws InterruptedException The build has been aborted.
+		 */
+		void fetch(File directory) throws IOException, InterruptedException;
+	}
+
+	/**
+	 * Utility class.
+	 */
+	private VSSFetchCoalescer()
+	{
+	}
+
+	/**
+	 * Fetches the content into the target directory, sharing the fetch with
+	 * the other callers using the same key at the same time.
+	 *
+	 * @param key Identifies the content. Equal keys must fetch the same
+	 * content.
+	 * @param target Directory to put the content in.
+	 * @param fetcher Fetches the content if no one else is doing it.
+	 * @param logger Log to report to.
+	 * @return The time the content was fetched at if it has been prefetched,
+	 * null if it is current.
+	 * @throws IOException Any error while fetching or copying.
+	 * @throws InterruptedException The build has been aborted.
+	 */
+	static Date fetch(String key, File target, Fetcher fetcher, PrintStream logger)
+			throws IOException, InterruptedException
+	{
+		while(true)
+		{
+			Fetch fetch;
+			boolean leader;
+			synchronized(FETCHES)
+			{
+				expirePrefetched();
+				fetch = FETCHES.get(key);
+				if(fetch == null)
+				{
+					fetch = PREFETCHED.get(key);
+				}
+				leader = fetch == null;
+				if(leader)
+				{
+					//Files left in the workspace, as by updating, are not
+					//to be shared.
+					String[] existing = target.list();
+					boolean direct = existing == null || existing.length == 0;
+					fetch = new Fetch(direct ? target : createDirectory(key), !direct, false);
+					FETCHES.put(key, fetch);
+				}
+				fetch.users++;
+			}
+
+			try
+			{
+				if(leader)
+				{
+					try
+					{
+						fetcher.fetch(fetch.directory);
+						fetch.succeeded = true;
+					}
+					finally
+					{
+						synchronized(FETCHES)
+						{
+							FETCHES.remove(key);
+						}
+						fetch.done.countDown();
+					}
+
+					//The others copy from this workspace, which must not
+					//change until they are done.
+					if(!fetch.staged)
+					{
+						awaitCopies(fetch, logger);
+						return null;
+					}
+				}
+				else
+				{
+					if(fetch.prefetch)
+					{
+						logger.println("[get] Using the files prefetched at " 
+								+ new Date(fetch.startTime));
+					}
+					else
+					{
+						logger.println("[get] Waiting for the same fetch in progress for another build");
+					}
+					fetch.done.await();
+					if(!fetch.succeeded)
+					{
+						//Try again, this time perhaps as the one fetching.
+						logger.println("[get] The other fetch failed, fetching again");
+						continue;
+					}
+				}
+
+				VSSTreeCopier copier = new VSSTreeCopier();
+				copier.copy(fetch.directory, target);
+				logger.println("[get] Copied " + copier.getFiles() + " files ("
+						+ VSSGetProgress.formatBytes(copier.getBytes())
+						+ ") from " + (fetch.staged ? "the staging area" : "the other build"));
+				return fetch.prefetch ? new Date(fetch.startTime) : null;
+			}
+			finally
+			{
+				release(fetch);
+			}
+		}
+	}
+
+	/**
+	 * Starts fetching the content in the background unless it is already
+	 * being fetched. The content is kept for the checkouts with the same key.
+	 *
+	 * @param key Identifies the content.
+	 * @param fetcher Fetches the content.
+	 */
+	static void prefetch(final String key, final Fetcher fetcher)
+	{
+		final Fetch fetch;
+		synchronized(FETCHES)
+		{
+			expirePrefetched();
+			if(FETCHES.containsKey(key))
+			{
+				return;
+			}
+			fetch = new Fetch(createDirectory(key), true, true);
+			FETCHES.put(key, fetch);
+
+			//Held until the prefetched content is replaced or expires.
+			fetch.users++;
+		}
+
+		Thread thread = new Thread("VSS prefetch " + key)
+		{
+			@Override
+			public void run()
+			{
+				Fetch replaced = null;
+				try
+				{
+					fetcher.fetch(fetch.directory);
+					fetch.succeeded = true;
+				}
+				catch(Exception e)
+				{
+					LOGGER.log(Level.WARNING, "Prefetch of " + key + " failed", e);
+				}
+				finally
+				{
+					synchronized(FETCHES)
+					{
+						FETCHES.remove(key);
+						if(fetch.succeeded)
+						{
+							replaced = PREFETCHED.put(key, fetch);
+						}
+					}
+					fetch.done.countDown();
+					if(!fetch.succeeded)
+					{
+						release(fetch);
+					}
+					if(replaced != null)
+					{
+						release(replaced);
+					}
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Waits until the callers sharing the fetch of the first caller have
+	 * copied its files.
+	 */
+	private static void awaitCopies(Fetch fetch, PrintStream logger) throws InterruptedException
+	{
+		synchronized(FETCHES)
+		{
+			if(fetch.users > 1)
+			{
+				logger.println("[get] Waiting for " + (fetch.users - 1) 
+						+ " other builds to copy the files");
+			}
+			while(fetch.users > 1)
+			{
+				FETCHES.wait();
+			}
+		}
+	}
+
+	/**
+	 * Drops the prefetched content that is too old to be used. Must hold
+	 * the lock of FETCHES.
+	 */
+	private static void expirePrefetched()
+	{
+		long now = System.currentTimeMillis();
+		Iterator<Fetch> iterator = PREFETCHED.values().iterator();
+		while(iterator.hasNext())
+		{
+			final Fetch fetch = iterator.next();
+			if(now - fetch.startTime > PREFETCH_EXPIRY)
+			{
+				iterator.remove();
+
+				//Deleting can take a while, do not hold the lock.
+				Thread thread = new Thread("VSS staging cleanup")
+				{
+					@Override
+					public void run()
+					{
+						release(fetch);
+					}
+				};
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+	}
+
+	/**
+	 * Returns a new staging area for the given key.
+	 */
+	private static File createDirectory(String key)
+	{
+		return new File(getStagingRoot(),
+				Util.getDigestOf(key) + "-" + System.currentTimeMillis());
+	}
+
+	/**
+	 * Deletes the staging area once the last user is done with it.
+	 */
+	private static void release(Fetch fetch)
+	{
+		synchronized(FETCHES)
+		{
+			fetch.users--;
+			FETCHES.notifyAll();
+			if(fetch.users > 0 || !fetch.staged)
+			{
+				return;
+			}
+		}
+
+		try
+		{
+			Util.deleteRecursive(fetch.directory);
+		}
+		catch(IOException e)
+		{
+			LOGGER.log(Level.WARNING, "Unable to delete " + fetch.directory, e);
+		}
+	}
+
+	/**
+	 *
+	 * @return The directory under which the staging areas are kept.
+	 *
+	 */
+	static File getStagingRoot()
+	{
+		if(STAGING_ROOT != null)
+		{
+			return new File(STAGING_ROOT);
+		}
+		return new File(System.getProperty("java.io.tmpdir"), "vss-staging");
+	}
+
+	/**
+	 * A fetch into a staging area.
+	 */
+	private static final class Fetch
+	{
+		/**
+		 * The directory fetched into, a staging area or the workspace of
+		 * the first caller.
+		 */
+		final File directory;
+
+		/**
+		 * Indicates whether the directory is a staging area, deleted after
+		 * use.
+		 */
+		final boolean staged;
+
+		/**
+		 * Indicates whether the fetch is a prefetch.
+		 */
+		final boolean prefetch;
+
+		/**
+		 * Time when the fetch started.
+		 */
+		final long startTime = System.currentTimeMillis();
+
+		/**
+		 * Released when the fetch has completed.
+		 */
+		final CountDownLatch done = new CountDownLatch(1);
+
+		/**
+		 * Indicates whether the fetch has succeeded.
+		 */
+		volatile boolean succeeded = false;
+
+		/**
+		 * Callers using the staging area. Guarded by FETCHES.
+		 */
+		int users = 0;
+
+		/**
+		 * Creates a fetch into the given directory.
+		 */
+		Fetch(File directory, boolean staged, boolean prefetch)
+		{
+			this.directory = directory;
+			this.staged = staged;
+			this.prefetch = prefetch;
+		}
+	}
+}
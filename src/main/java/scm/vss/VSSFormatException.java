@@ -0,0 +1,26 @@
+package scm.vss;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Signals that a VSS database file could not be understood while reading
+ * it directly.
+ *
+ * @author vara
+ */
+public class VSSFormatException extends IOException
+{
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Creates the exception for the given file.
+	 *
+	 * @param file The file that could not be read.
+	 * @param message What went wrong.
+	 */
+	public VSSFormatException(File file, String message)
+	{
+		super(file + ": " + message);
+	}
+}
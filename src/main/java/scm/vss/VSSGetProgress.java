@@ -0,0 +1,197 @@
+package scm.vss;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the progress of a get from VSS and reports it to the build log.
+ * Reports are throttled so that logging does not slow down the fetch.
+ *
+ * @author vara
+ */
+final class VSSGetProgress
+{
+	/**
+	 * Minimum interval between two progress reports in milliseconds.
+	 */
+	private static final long REPORT_INTERVAL = Long.getLong(
+			VSSGetProgress.class.getName() + ".interval", 5000L).longValue();
+
+	/**
+	 * Number of slowest folders to be reported at the end.
+	 */
+	private static final int SLOWEST_COUNT = 5;
+
+	/**
+	 * Log to report to.
+	 */
+	private final PrintStream logger;
+
+	/**
+	 * Time when the get started.
+	 */
+	private final long startTime;
+
+	/**
+	 * Time of the last report.
+	 */
+	private long lastReport;
+
+	/**
+	 * Folders fetched so far.
+	 */
+	private int folders = 0;
+
+	/**
+	 * Files fetched so far.
+	 */
+	private long files = 0;
+
+	/**
+	 * Bytes fetched so far.
+	 */
+	private long bytes = 0;
+
+	/**
+	 * Time spent in the folders fetched so far.
+	 */
+	private long folderTime = 0;
+
+	/**
+	 * Slowest folders so far, slowest first. Each entry holds the folder,
+	 * the time taken and the number of files.
+	 */
+	private final List<Object[]> slowest = new ArrayList<Object[]>();
+
+	/**
+	 * Creates the progress for a get.
+	 *
+	 * @param logger Log to report to.
+	 */
+	VSSGetProgress(PrintStream logger)
+	{
+		this.logger = logger;
+		this.startTime = System.currentTimeMillis();
+		this.lastReport = startTime;
+	}
+
+	/**
+	 * Records a fetched folder and reports if the report interval has
+	 * passed.
+	 *
+	 * @param spec VSS path of the folder.
+	 * @param fileCount Number of files fetched into the folder.
+	 * @param byteCount Number of bytes fetched into the folder.
+	 * @param millis Time taken to fetch the folder.
+	 * @param pending Number of folders still waiting to be fetched.
+	 */
+	synchronized void folderDone(String spec, int fileCount, long byteCount,
+			long millis, int pending)
+	{
+		folders++;
+		files += fileCount;
+		bytes += byteCount;
+		folderTime += millis;
+
+		//Keep the slowest folders.
+		int index = slowest.size();
+		while(index > 0 && ((Long)slowest.get(index - 1)[1]).longValue() < millis)
+		{
+			index--;
+		}
+		if(index < SLOWEST_COUNT)
+		{
+			slowest.add(index, new Object[]{spec, Long.valueOf(millis),
+					Integer.valueOf(fileCount)});
+			if(slowest.size() > SLOWEST_COUNT)
+			{
+				slowest.remove(SLOWEST_COUNT);
+			}
+		}
+
+		long now = System.currentTimeMillis();
+		if(now - lastReport < REPORT_INTERVAL)
+		{
+			return;
+		}
+		lastReport = now;
+
+		StringBuilder line = new StringBuilder("[get] ");
+		appendTotals(line, now);
+		if(pending > 0)
+		{
+			//Estimate from the average time per folder so far.
+			line.append(", ").append(pending).append(" folders queued, ~")
+				.append(formatDuration(folderTime / folders * pending))
+				.append(" remaining");
+		}
+		logger.println(line);
+	}
+
+	/**
+	 * Reports the totals and the slowest folders.
+	 */
+	synchronized void finish()
+	{
+		StringBuilder line = new StringBuilder("[get] Done: ");
+		long now = System.currentTimeMillis();
+		appendTotals(line, now);
+		line.append(" in ").append(formatDuration(now - startTime));
+		logger.println(line);
+
+		if(folders > 1)
+		{
+			logger.println("[get] Slowest folders:");
+			for(Object[] entry : slowest)
+			{
+				logger.println("[get]   " + entry[0] + " - "
+						+ formatDuration(((Long)entry[1]).longValue())
+						+ ", " + entry[2] + " files");
+			}
+		}
+	}
+
+	/**
+	 * Appends the totals and the rates so far.
+	 */
+	private void appendTotals(StringBuilder line, long now)
+	{
+		double seconds = Math.max(now - startTime, 1) / 1000.0;
+		line.append(folders).append(" folders, ")
+			.append(files).append(" files (")
+			.append(String.format("%.1f", Double.valueOf(files / seconds)))
+			.append(" files/s), ")
+			.append(formatBytes(bytes)).append(" (")
+			.append(formatBytes((long)(bytes / seconds))).append("/s)");
+	}
+
+	/**
+	 * Formats the byte count to be readable.
+	 */
+	static String formatBytes(long count)
+	{
+		if(count < 1024)
+		{
+			return count + " B";
+		}
+		if(count < 1024 * 1024)
+		{
+			return String.format("%.1f KB", Double.valueOf(count / 1024.0));
+		}
+		return String.format("%.1f MB", Double.valueOf(count / (1024.0 * 1024.0)));
+	}
+
+	/**
+	 * Formats the duration to be readable.
+	 */
+	static String formatDuration(long millis)
+	{
+		long seconds = millis / 1000;
+		if(seconds < 60)
+		{
+			return seconds + "s";
+		}
+		return (seconds / 60) + "m" + (seconds % 60) + "s";
+	}
+}
@@ -0,0 +1,313 @@
+package scm.vss;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.Item;
+import hudson.model.TransientProjectActionFactory;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * The VSS history of a job, streamed as NDJSON from the change logs of a
+ * range of builds, oldest first:
+ *
+ * <pre>
+ * job/NAME/vss-history/ndjson?from=10&amp;to=20&amp;path=$/Product/Src&amp;user=vara
+ * </pre>
+ *
+ * The cursor of the last entry, as <tt>build:index</tt>, is passed as the
+ * <tt>cursor</tt> parameter to get the following entries.
+ *
+ * The builds that changed a path, or that a user made changes in, are
+ * looked up in the {@link VSSChangeIndex} of the job, from its page or as
+ * JSON:
+ *
+ * <pre>
+ * job/NAME/vss-history/builds?path=$/Product/Src&amp;user=vara
+ * </pre>
+ *
+ * @author vara
+ */
+public class VSSHistoryAction implements Action
+{
+	private static final Logger LOGGER = Logger.getLogger(VSSHistoryAction.class.getName());
+
+	/**
+	 * Name of the change log file of a build.
+	 */
+	private static final String CHANGELOG = "changelog.xml";
+
+	private final AbstractProject<?, ?> project;
+
+	/**
+	 * Creates the action for the given job.
+	 *
+	 * @param project The job.
+	 */
+	VSSHistoryAction(AbstractProject<?, ?> project)
+	{
+		this.project = project;
+	}
+
+	public String getIconFileName()
+	{
+		return "notepad.png";
+	}
+
+	public String getDisplayName()
+	{
+		return "VSS History";
+	}
+
+	public String getUrlName()
+	{
+		return "vss-history";
+	}
+
+	/**
+	 *
+	 * @return The job.
+	 *
+	 */
+	public AbstractProject<?, ?> getProject()
+	{
+		return project;
+	}
+
+	/**
+	 * Returns the builds that changed the given path, or anything under it,
+	 * and that were made by the given user. Used by the page of the action.
+	 *
+	 * @param path VSS path of a file or a project, empty for any.
+	 * @param user User, empty for any.
+	 * @return The builds, newest first, none if neither is given.
+	 * @throws IOException The index could not be read.
+	 */
+	public List<AbstractBuild<?, ?>> findBuilds(String path, String user) throws IOException
+	{
+		project.checkPermission(Item.READ);
+
+		List<AbstractBuild<?, ?>> builds = new ArrayList<AbstractBuild<?, ?>>();
+		path = Util.fixEmptyAndTrim(path);
+		user = Util.fixEmptyAndTrim(user);
+		if(path == null && user == null)
+		{
+			return builds;
+		}
+		for(Integer number : getIndex().find(path, user))
+		{
+			AbstractBuild<?, ?> build = project.getBuildByNumber(number.intValue());
+			if(build != null)
+			{
+				builds.add(build);
+			}
+		}
+		return builds;
+	}
+
+	/**
+	 * Writes the numbers of the builds that changed the <tt>path</tt>
+	 * parameter, or anything under it, and that were made by the
+	 * <tt>user</tt> parameter, as JSON.
+	 */
+	public void doBuilds(StaplerRequest req, StaplerResponse rsp) throws IOException
+	{
+		String path = req.getParameter("path");
+		String user = req.getParameter("user");
+		List<AbstractBuild<?, ?>> builds = findBuilds(path, user);
+
+		rsp.setContentType("application/json;charset=UTF-8");
+		Writer out = new BufferedWriter(new OutputStreamWriter(rsp.getOutputStream(), "UTF-8"));
+		try
+		{
+			out.write("{\"path\":");
+			VSSHistoryStream.writeString(out, Util.fixEmptyAndTrim(path));
+			out.write(",\"user\":");
+			VSSHistoryStream.writeString(out, Util.fixEmptyAndTrim(user));
+			out.write(",\"builds\":[");
+			for(int index = 0;index < builds.size();index ++)
+			{
+				if(index > 0)
+				{
+					out.write(',');
+				}
+				out.write(Integer.toString(builds.get(index).getNumber()));
+			}
+			out.write("]}");
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * Streams the entries of the builds from <tt>from</tt> to <tt>to</tt>,
+	 * by default all of them. Also takes the cursor, the number of entries,
+	 * and the path and user to filter by as parameters.
+	 *
+	 * @see VSSHistoryStream
+	 */
+	public void doNdjson(StaplerRequest req, StaplerResponse rsp) throws IOException
+	{
+		project.checkPermission(Item.READ);
+
+		AbstractBuild<?, ?> last = project.getLastBuild();
+		final int from;
+		final int to;
+		int cursorBuild = 0;
+		int cursorIndex = 0;
+		VSSHistoryStream stream;
+		try
+		{
+			from = VSSHistoryStream.parseInt(req.getParameter("from"), 1);
+			to = VSSHistoryStream.parseInt(req.getParameter("to"), last != null ? last.getNumber() : 0);
+			String cursor = req.getParameter("cursor");
+			if(cursor != null && cursor.length() > 0)
+			{
+				int split = cursor.indexOf(':');
+				if(split < 0)
+				{
+					throw new IllegalArgumentException("Not a valid cursor: " + cursor);
+				}
+				cursorBuild = VSSHistoryStream.parseInt(cursor.substring(0, split), 0);
+				cursorIndex = VSSHistoryStream.parseInt(cursor.substring(split + 1), 0);
+			}
+			stream = new VSSHistoryStream(req, rsp);
+		}
+		catch(IllegalArgumentException e)
+		{
+			rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+			return;
+		}
+
+		try
+		{
+			//Only the numbers of existing builds are walked, which also keeps
+			//the number from overflowing.
+			int first = Math.max(Math.max(from, cursorBuild), 1);
+			int end = Math.min(to, last != null ? last.getNumber() : 0);
+			for(int number = first;number <= end;number ++)
+			{
+				AbstractBuild<?, ?> build = project.getBuildByNumber(number);
+				if(build == null)
+				{
+					continue;
+				}
+				File changeLog = new File(build.getRootDir(), CHANGELOG);
+				if(!changeLog.isFile())
+				{
+					continue;
+				}
+				if(!stream(changeLog, number, number == cursorBuild ? cursorIndex : 0, stream))
+				{
+					break;
+				}
+			}
+		}
+		finally
+		{
+			stream.close();
+		}
+	}
+
+	/**
+	 * Streams the entries of one build from the given index.
+	 *
+	 * @return False once the limit has been reached.
+	 */
+	private static boolean stream(File changeLog, final int number, final int start,
+			final VSSHistoryStream stream) throws IOException
+	{
+		final boolean[] more = new boolean[]{true};
+		VSSChangeLogReader.read(changeLog, new VSSChangeLogReader.Visitor()
+		{
+			public boolean visit(int index, String[] fields) throws IOException
+			{
+				if(index < start)
+				{
+					return true;
+				}
+				more[0] = stream.add(number + ":" + (index + 1), number, fields);
+				return more[0];
+			}
+		});
+		return more[0];
+	}
+
+	/**
+	 * Returns the index of the job, adding the builds made before it the
+	 * first time. This reads their change logs once.
+	 */
+	private VSSChangeIndex getIndex() throws IOException
+	{
+		VSSChangeIndex index = VSSChangeIndex.get(project.getRootDir());
+		if(!index.isComplete())
+		{
+			for(AbstractBuild<?, ?> build : project.getBuildsAsMap().values())
+			{
+				if(index.contains(build.getNumber()))
+				{
+					continue;
+				}
+				try
+				{
+					index.add(build.getNumber(), new File(build.getRootDir(), CHANGELOG));
+				}
+				catch(IOException e)
+				{
+					LOGGER.log(Level.WARNING, "Unable to index the changes of " + build, e);
+				}
+			}
+			index.setComplete();
+		}
+		return index;
+	}
+
+	/**
+	 * Adds the changes of a build to the index of its job.
+	 *
+	 * @param build The build.
+	 * @param changeLog The change log of the build.
+	 * @throws IOException Any error while updating the index.
+	 */
+	static void index(AbstractBuild<?, ?> build, File changeLog) throws IOException
+	{
+		VSSChangeIndex.get(build.getProject().getRootDir()).add(build.getNumber(), changeLog);
+	}
+
+	/**
+	 * Adds the action to the jobs using VSS.
+	 */
+	@Extension
+	public static class Factory extends TransientProjectActionFactory
+	{
+		@Override
+		public Collection<? extends Action> createFor(AbstractProject target)
+		{
+			if(target.getScm() instanceof VSSSCM)
+			{
+				return Collections.singletonList(new VSSHistoryAction(target));
+			}
+			return Collections.emptyList();
+		}
+	}
+}
@@ -0,0 +1,669 @@
+package scm.vss;
+
+import hudson.Util;
+import hudson.model.Hudson;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * The history of one VSS path kept on disk, so that it is not walked again
+ * after a restart. The file is append-only and memory-mapped for reading.
+ * It holds two kinds of records, each with its length and a CRC32 of its
+ * data:
+ *
+ * <ul>
+ * <li>a history entry, with its date, file, user, comment, action and
+ * version;</li>
+ * <li>the coverage, the range of dates for which the file holds every
+ * entry. The last one written is the one in force.</li>
+ * </ul>
+ *
+ * Entries are written before the coverage claiming them, so a file cut
+ * short by a crash only loses its last records. Records that do not check
+ * out are cut off when the file is opened.
+ *
+ * @author vara
+ */
+final class VSSHistoryStore
+{
+	private static final Logger LOGGER = Logger.getLogger(VSSHistoryStore.class.getName());
+
+	/**
+	 * Start of the files, with the version of the format.
+	 */
+	private static final byte[] MAGIC = new byte[]{'V', 'S', 'S', 'H', 'I', 'S', 'T', '1'};
+
+	/**
+	 * Length of the header of a record, its length and CRC32.
+	 */
+	private static final int RECORD_HEADER_LENGTH = 8;
+
+	/**
+	 * Type of the history entry records.
+	 */
+	private static final byte ENTRY = 1;
+
+	/**
+	 * Type of the coverage records.
+	 */
+	private static final byte COVERAGE = 2;
+
+	/**
+	 * Opened stores by file name. The stores are kept open for the life of
+	 * this node.
+	 */
+	private static final Map<String, VSSHistoryStore> STORES = new HashMap<String, VSSHistoryStore>();
+
+	/**
+	 * The file.
+	 */
+	private final File file;
+
+	/**
+	 * Content of the file, mapped again after each append.
+	 */
+	private ByteBuffer buffer;
+
+	/**
+	 * Length of the valid records.
+	 */
+	private long length;
+
+	/**
+	 * Dates of the entries, in milliseconds, newest first.
+	 */
+	private long[] dates = new long[64];
+
+	/**
+	 * Offsets of the entries in the file, in the order of the dates.
+	 */
+	private int[] offsets = new int[64];
+
+	/**
+	 * Number of entries.
+	 */
+	private int count = 0;
+
+	/**
+	 * Start of the coverage, inclusive, 0 if there is none.
+	 */
+	private long coveredFrom = 0;
+
+	/**
+	 * End of the coverage, exclusive, 0 if there is none.
+	 */
+	private long coveredTo = 0;
+
+	private VSSHistoryStore(File file)
+	{
+		this.file = file;
+	}
+
+	/**
+	 * Opens the store of the given key, loading its file when first used on
+	 * this node.
+	 *
+	 * @param key Identifies the history, such as the database, the path and
+	 * the filter.
+	 * @return The store.
+	 * @throws IOException The file could not be read nor started again.
+	 */
+	static VSSHistoryStore open(String key) throws IOException
+	{
+		String name = Util.getDigestOf(key);
+		synchronized(STORES)
+		{
+			VSSHistoryStore store = STORES.get(name);
+			if(store == null)
+			{
+				store = new VSSHistoryStore(new File(getRoot(), name + ".dat"));
+				store.load();
+				STORES.put(name, store);
+			}
+			return store;
+		}
+	}
+
+	/**
+	 * Reads the records of the file, cutting off those that do not check
+	 * out.
+	 */
+	private void load() throws IOException
+	{
+		File parent = file.getParentFile();
+		if(!parent.isDirectory() && !parent.mkdirs())
+		{
+			throw new IOException("Unable to create " + parent);
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try
+		{
+			if(raf.length() < MAGIC.length || !hasMagic(raf))
+			{
+				if(raf.length() > 0)
+				{
+					LOGGER.warning("Starting " + file + " again, it is not a history store");
+				}
+				raf.setLength(0);
+				raf.write(MAGIC);
+				raf.getFD().sync();
+			}
+
+			map(raf.getChannel(), raf.length());
+			long position = MAGIC.length;
+			CRC32 crc = new CRC32();
+			while(position + RECORD_HEADER_LENGTH <= buffer.limit())
+			{
+				int start = (int)position;
+				int size = buffer.getInt(start);
+				if(size <= 0 || start + RECORD_HEADER_LENGTH + size > buffer.limit())
+				{
+					break;
+				}
+				byte[] data = new byte[size];
+				buffer.position(start + RECORD_HEADER_LENGTH);
+				buffer.get(data);
+				crc.reset();
+				crc.update(data);
+				if((int)crc.getValue() != buffer.getInt(start + 4))
+				{
+					break;
+				}
+				index(start, data);
+				position = start + RECORD_HEADER_LENGTH + size;
+			}
+			sort(dates, offsets, count);
+
+			length = position;
+			if(length < raf.length())
+			{
+				LOGGER.warning("Cutting off " + (raf.length() - length) + " bytes of "
+						+ file + " after an interrupted write");
+				try
+				{
+					raf.setLength(length);
+				}
+				catch(IOException e)
+				{
+					//Windows does not cut mapped files. The records appended
+					//are followed by an end mark instead.
+					LOGGER.log(Level.FINE, "Unable to cut off " + file, e);
+				}
+				map(raf.getChannel(), length);
+			}
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * Tells whether the file starts with the magic.
+	 */
+	private static boolean hasMagic(RandomAccessFile raf) throws IOException
+	{
+		byte[] magic = new byte[MAGIC.length];
+		raf.seek(0);
+		raf.readFully(magic);
+		for(int index = 0;index < MAGIC.length;index ++)
+		{
+			if(magic[index] != MAGIC[index])
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Maps the valid records of the file.
+	 */
+	private void map(FileChannel channel, long size) throws IOException
+	{
+		if(size > Integer.MAX_VALUE)
+		{
+			throw new IOException(file + " is too large to be mapped");
+		}
+		buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+	}
+
+	/**
+	 * Adds a record read or written to the index.
+	 *
+	 * @param offset Offset of the record in the file.
+	 * @param data Data of the record.
+	 */
+	private void index(int offset, byte[] data)
+	{
+		ByteBuffer record = ByteBuffer.wrap(data);
+		byte type = record.get();
+		if(type == COVERAGE)
+		{
+			coveredFrom = record.getLong();
+			coveredTo = record.getLong();
+		}
+		else if(type == ENTRY)
+		{
+			if(count == dates.length)
+			{
+				grow(count * 2);
+			}
+			dates[count] = record.getLong();
+			offsets[count] = offset;
+			count++;
+		}
+	}
+
+	/**
+	 * Resizes the index.
+	 */
+	private void grow(int size)
+	{
+		long[] newDates = new long[size];
+		System.arraycopy(dates, 0, newDates, 0, count);
+		dates = newDates;
+		int[] newOffsets = new int[size];
+		System.arraycopy(offsets, 0, newOffsets, 0, count);
+		offsets = newOffsets;
+	}
+
+	/**
+	 * Sorts entries newest first. Each walk writes its entries newest
+	 * first, so they are only out of order after walks of newer entries.
+	 *
+	 * @param dates Dates of the entries.
+	 * @param offsets Offsets of the entries, sorted along.
+	 * @param count Number of entries.
+	 */
+	private static void sort(final long[] dates, int[] offsets, int count)
+	{
+		boolean sorted = true;
+		for(int index = 1;index < count && sorted;index ++)
+		{
+			sorted = dates[index - 1] >= dates[index];
+		}
+		if(sorted)
+		{
+			return;
+		}
+
+		Integer[] order = new Integer[count];
+		for(int index = 0;index < count;index ++)
+		{
+			order[index] = Integer.valueOf(index);
+		}
+		Arrays.sort(order, new Comparator<Integer>()
+		{
+			public int compare(Integer a, Integer b)
+			{
+				long difference = dates[b.intValue()] - dates[a.intValue()];
+				return difference < 0 ? -1 : (difference > 0 ? 1 : a.compareTo(b));
+			}
+		});
+		long[] sortedDates = new long[count];
+		int[] sortedOffsets = new int[count];
+		for(int index = 0;index < count;index ++)
+		{
+			sortedDates[index] = dates[order[index].intValue()];
+			sortedOffsets[index] = offsets[order[index].intValue()];
+		}
+		System.arraycopy(sortedDates, 0, dates, 0, count);
+		System.arraycopy(sortedOffsets, 0, offsets, 0, count);
+	}
+
+	/**
+	 * Merges entries written into the index, keeping it newest first.
+	 *
+	 * @param newDates Dates of the entries, newest first.
+	 * @param newOffsets Offsets of the entries.
+	 * @param size Number of entries.
+	 */
+	private void merge(long[] newDates, int[] newOffsets, int size)
+	{
+		long[] mergedDates = new long[Math.max(dates.length, count + size)];
+		int[] mergedOffsets = new int[mergedDates.length];
+		int stored = 0;
+		int added = 0;
+		for(int index = 0;index < count + size;index ++)
+		{
+			if(added == size || (stored < count && dates[stored] >= newDates[added]))
+			{
+				mergedDates[index] = dates[stored];
+				mergedOffsets[index] = offsets[stored++];
+			}
+			else
+			{
+				mergedDates[index] = newDates[added];
+				mergedOffsets[index] = newOffsets[added++];
+			}
+		}
+		dates = mergedDates;
+		offsets = mergedOffsets;
+		count += size;
+	}
+
+	/**
+	 * Returns the index of the first entry older than the given date.
+	 */
+	private int find(long date)
+	{
+		int low = 0;
+		int high = count;
+		while(low < high)
+		{
+			int middle = (low + high) >>> 1;
+			if(dates[middle] >= date)
+			{
+				low = middle + 1;
+			}
+			else
+			{
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Tells whether the store holds the entries wanted up to the end of the
+	 * coverage, so that only the entries after the coverage are to be
+	 * walked. It does if the coverage starts at or before the start date,
+	 * or if it holds enough entries to stop before reaching the start date.
+	 *
+	 * @param startDate The date from which the entries are needed.
+	 * @param maxEntries Maximum number of entries needed.
+	 * @return True if the store holds the entries.
+	 */
+	synchronized boolean covers(Date startDate, int maxEntries)
+	{
+		return coveredTo > 0 && (coveredFrom <= startDate.getTime() || find(coveredFrom) >= maxEntries);
+	}
+
+	/**
+	 *
+	 * @return End of the coverage, the date to walk the history from to
+	 * bring the store up to date.
+	 *
+	 */
+	synchronized Date getCoveredTo()
+	{
+		return new Date(coveredTo);
+	}
+
+	/**
+	 * Appends the entries of a walk of the history, leaving out those
+	 * already stored, and extends the coverage.
+	 *
+	 * @param entries The entries, in the form of the VSS automation.
+	 * @param from Date the walk covers every entry from.
+	 * @param to Date the walk covers every entry until.
+	 * @throws IOException Any error while writing.
+	 */
+	synchronized void append(List<Object[]> entries, Date from, Date to) throws IOException
+	{
+		ByteArrayOutputStream records = new ByteArrayOutputStream();
+		Set<String> stored = getKeys(from.getTime());
+		long[] addedDates = new long[entries.size()];
+		int[] addedOffsets = new int[entries.size()];
+		int added = 0;
+		for(Object[] entry : entries)
+		{
+			Date date = (Date)entry[VSSSCM.ENTRY_DATE];
+			if(!stored.add(getKey(date.getTime(), (String)entry[0], (String)entry[5])))
+			{
+				continue;
+			}
+			ByteArrayOutputStream data = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(data);
+			out.writeByte(ENTRY);
+			out.writeLong(date.getTime());
+			for(int field = 0;field < 6;field ++)
+			{
+				if(field != 4)
+				{
+					writeString(out, (String)entry[field]);
+				}
+			}
+			addedDates[added] = date.getTime();
+			addedOffsets[added++] = records.size();
+			writeRecord(records, data.toByteArray());
+		}
+
+		//Keep the coverage in one piece: a walk that does not reach the
+		//stored coverage replaces it.
+		long newFrom = from.getTime();
+		long newTo = to.getTime();
+		boolean extended = false;
+		if(newFrom < newTo)
+		{
+			if(coveredTo > 0 && newFrom <= coveredTo && newTo >= coveredFrom)
+			{
+				newFrom = Math.min(newFrom, coveredFrom);
+				newTo = Math.max(newTo, coveredTo);
+			}
+			extended = newFrom != coveredFrom || newTo != coveredTo;
+		}
+		if(extended)
+		{
+			ByteArrayOutputStream data = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(data);
+			out.writeByte(COVERAGE);
+			out.writeLong(newFrom);
+			out.writeLong(newTo);
+			writeRecord(records, data.toByteArray());
+		}
+		if(records.size() == 0)
+		{
+			return;
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			channel.write(ByteBuffer.wrap(records.toByteArray()), length);
+			if(channel.size() > length + records.size())
+			{
+				//End mark before what is left of an interrupted write.
+				channel.write(ByteBuffer.wrap(new byte[RECORD_HEADER_LENGTH]), length + records.size());
+			}
+			channel.force(false);
+			int offset = (int)length;
+			length += records.size();
+			map(channel, length);
+			for(int index = 0;index < added;index ++)
+			{
+				addedOffsets[index] += offset;
+			}
+			sort(addedDates, addedOffsets, added);
+			merge(addedDates, addedOffsets, added);
+		}
+		finally
+		{
+			raf.close();
+		}
+		if(extended)
+		{
+			coveredFrom = newFrom;
+			coveredTo = newTo;
+		}
+	}
+
+	/**
+	 * Returns the entries since the given date, newest first.
+	 *
+	 * @param startDate The date from which the entries are needed.
+	 * @param maxEntries Maximum number of entries to be returned.
+	 * @param rootLength Length of the VSS path of the store, to make the
+	 * deleted files relative to it.
+	 * @param deletions List of files deleted or recovered to collect, may be
+	 * null.
+	 * @return The entries, in the form of the VSS automation.
+	 * @throws IOException The file could not be read.
+	 */
+	synchronized List<Object[]> read(Date startDate, int maxEntries, int rootLength,
+			List<String> deletions) throws IOException
+	{
+		List<Object[]> entries = new ArrayList<Object[]>();
+		List<String> deleted = new ArrayList<String>();
+		int end = find(startDate.getTime());
+		for(int index = 0;index < end && entries.size() < maxEntries;index ++)
+		{
+			Object[] entry = readEntry(offsets[index]);
+			VSSAction action = VSSAction.classify((String)entry[3]);
+			if(action == VSSAction.DELETED || action == VSSAction.RECOVERED)
+			{
+				deleted.add(((String)entry[0]).substring(rootLength));
+			}
+			entries.add(entry);
+		}
+
+		//Only report deletions once everything has been read.
+		if(deletions != null)
+		{
+			deletions.addAll(deleted);
+		}
+		return entries;
+	}
+
+	/**
+	 * Returns the keys of the stored entries since the given date, to leave
+	 * out the entries walked again.
+	 */
+	private Set<String> getKeys(long date) throws IOException
+	{
+		Set<String> keys = new HashSet<String>();
+		int end = find(date);
+		for(int index = 0;index < end;index ++)
+		{
+			Object[] entry = readEntry(offsets[index]);
+			keys.add(getKey(dates[index], (String)entry[0], (String)entry[5]));
+		}
+		return keys;
+	}
+
+	/**
+	 * Returns the key of an entry, its date, file and version.
+	 */
+	private static String getKey(long date, String file, String version)
+	{
+		return date + "|" + version + "|" + file;
+	}
+
+	/**
+	 * Reads the entry record at the given offset.
+	 */
+	private Object[] readEntry(int offset) throws IOException
+	{
+		ByteBuffer record = buffer.duplicate();
+		record.position(offset + RECORD_HEADER_LENGTH + 1);
+		Date date = new Date(record.getLong());
+		Object[] entry = new Object[7];
+		for(int field = 0;field < 6;field ++)
+		{
+			if(field != 4)
+			{
+				entry[field] = readString(record);
+			}
+		}
+		entry[4] = VSSSCM.formatDate(date);
+		entry[VSSSCM.ENTRY_DATE] = date;
+		return entry;
+	}
+
+	/**
+	 * Writes a record, its length, CRC32 and data.
+	 */
+	private static void writeRecord(ByteArrayOutputStream records, byte[] data) throws IOException
+	{
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		DataOutputStream out = new DataOutputStream(records);
+		out.writeInt(data.length);
+		out.writeInt((int)crc.getValue());
+		out.write(data);
+	}
+
+	/**
+	 * Writes a string as its length and UTF-8 bytes, -1 for null.
+	 */
+	private static void writeString(DataOutputStream out, String string) throws IOException
+	{
+		if(string == null)
+		{
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = string.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads a string written by {@link #writeString(DataOutputStream, String)}.
+	 */
+	private static String readString(ByteBuffer record) throws IOException
+	{
+		int size = record.getInt();
+		if(size < 0)
+		{
+			return null;
+		}
+		byte[] bytes = new byte[size];
+		record.get(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * Forgets the stores opened, so that they are loaded again. Stores in
+	 * use stay usable.
+	 */
+	static void reset()
+	{
+		synchronized(STORES)
+		{
+			STORES.clear();
+		}
+	}
+
+	/**
+	 *
+	 * @return The directory under which the stores are kept.
+	 *
+	 */
+	static File getRoot()
+	{
+		return new File(Hudson.getInstance().getRootDir(), "vss-history");
+	}
+
+	/**
+	 * Logs a store that could not be used.
+	 *
+	 * @param key Identifies the history.
+	 * @param error The error.
+	 */
+	static void log(String key, IOException error)
+	{
+		LOGGER.log(Level.WARNING, "Unable to use the history store of " + key, error);
+	}
+}
@@ -0,0 +1,199 @@
+package scm.vss;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Writes change log entries to a response as NDJSON, one JSON object per
+ * line. Entries are filtered by the <tt>path</tt> and <tt>user</tt>
+ * parameters of the request and at most <tt>limit</tt> entries are written.
+ * Each entry holds the cursor to pass to get the entries after it.
+ *
+ * <pre>
+ * {"cursor":"12:3","build":12,"file":"$/Product/Src/Main.cs","user":"vara",...}
+ * </pre>
+ *
+ * @author vara
+ */
+final class VSSHistoryStream
+{
+	/**
+	 * Entries written when no limit is given.
+	 */
+	private static final int DEFAULT_LIMIT = 1000;
+
+	/**
+	 * Most entries written at once.
+	 */
+	private static final int MAX_LIMIT = 10000;
+
+	/**
+	 * Names of the fields, in the order of the change log tags.
+	 */
+	private static final String[] NAMES = VSSSCM.TAGS;
+
+	private final Writer out;
+
+	/**
+	 * Lower case prefix of the paths wanted, null for all.
+	 */
+	private final String path;
+
+	/**
+	 * User wanted, null for all.
+	 */
+	private final String user;
+
+	private final int limit;
+
+	private int written = 0;
+
+	/**
+	 * Starts the response.
+	 *
+	 * @param req The request with the filters.
+	 * @param rsp The response to write to.
+	 * @throws IOException Any error while starting the response.
+	 */
+	VSSHistoryStream(StaplerRequest req, StaplerResponse rsp) throws IOException
+	{
+		String path = req.getParameter("path");
+		this.path = path == null || path.length() == 0 ? null : path.replace('\\', '/').toLowerCase();
+		String user = req.getParameter("user");
+		this.user = user == null || user.length() == 0 ? null : user;
+		this.limit = Math.min(parseInt(req.getParameter("limit"), DEFAULT_LIMIT), MAX_LIMIT);
+
+		rsp.setContentType("application/x-ndjson;charset=UTF-8");
+		out = new BufferedWriter(new OutputStreamWriter(rsp.getOutputStream(), "UTF-8"));
+	}
+
+	/**
+	 * Writes the entry if it is wanted.
+	 *
+	 * @param cursor Cursor of the entries after this one.
+	 * @param build Number of the build of the entry, 0 if unknown.
+	 * @param fields Values of the entry, in the order of the tags.
+	 * @return False once the limit has been reached.
+	 * @throws IOException Any error while writing.
+	 */
+	boolean add(String cursor, int build, String[] fields) throws IOException
+	{
+		if(written >= limit)
+		{
+			return false;
+		}
+		if(path != null && (fields[0] == null
+				|| !fields[0].replace('\\', '/').toLowerCase().startsWith(path)))
+		{
+			return true;
+		}
+		if(user != null && !user.equalsIgnoreCase(fields[1]))
+		{
+			return true;
+		}
+
+		out.write("{\"cursor\":");
+		writeString(out, cursor);
+		if(build > 0)
+		{
+			out.write(",\"build\":");
+			out.write(Integer.toString(build));
+		}
+		for(int field = 0;field < NAMES.length;field ++)
+		{
+			out.write(",\"");
+			out.write(NAMES[field]);
+			out.write("\":");
+			writeString(out, fields[field]);
+		}
+		out.write("}\n");
+		written++;
+		return written < limit;
+	}
+
+	/**
+	 * Ends the response.
+	 *
+	 * @throws IOException Any error while writing.
+	 */
+	void close() throws IOException
+	{
+		out.close();
+	}
+
+	/**
+	 * Writes a JSON string, or null.
+	 *
+	 * @param out Where to write.
+	 * @param string The string, may be null.
+	 * @throws IOException Any error while writing.
+	 */
+	static void writeString(Writer out, String string) throws IOException
+	{
+		if(string == null)
+		{
+			out.write("null");
+			return;
+		}
+
+		out.write('"');
+		int size = string.length();
+		for(int index = 0;index < size;index ++)
+		{
+			char ch = string.charAt(index);
+			switch(ch)
+			{
+				case '"'  : out.write("\\\"");	break;
+				case '\\' : out.write("\\\\");	break;
+				case '\n' : out.write("\\n");	break;
+				case '\r' : out.write("\\r");	break;
+				case '\t' : out.write("\\t");	break;
+				default:
+					if(ch < 0x20)
+					{
+						out.write(String.format("\\u%04x", Integer.valueOf(ch)));
+					}
+					else
+					{
+						out.write(ch);
+					}
+			}
+		}
+		out.write('"');
+	}
+
+	/**
+	 * Parses a number parameter.
+	 *
+	 * @param value The parameter, may be null.
+	 * @param defaultValue Value if there is no parameter.
+	 * @return The number.
+	 * @throws IllegalArgumentException The parameter is not a positive
+	 * number.
+	 */
+	static int parseInt(String value, int defaultValue)
+	{
+		if(value == null || value.length() == 0)
+		{
+			return defaultValue;
+		}
+		try
+		{
+			int number = Integer.parseInt(value.trim());
+			if(number >= 0)
+			{
+				return number;
+			}
+		}
+		catch(NumberFormatException e)
+		{
+			//Reported below.
+		}
+		throw new IllegalArgumentException("Not a valid number: " + value);
+	}
+}
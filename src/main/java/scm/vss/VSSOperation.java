@@ -0,0 +1,257 @@
+package scm.vss;
+
+import hudson.util.IOException2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs a VSS operation on its own thread so that the caller can give up on
+ * it when the build is aborted or the operation takes too long. A COM call
+ * in progress can not be stopped, so the operation is interrupted and is
+ * expected to stop at the next item by calling {@link #checkInterrupted()}.
+ *
+ * The caller waits a while for a cancelled operation to stop. An operation
+ * writing into a directory that is still running after that keeps the
+ * directory busy, and the next checkout into it waits for it with
+ * {@link #awaitIdle(File, PrintStream)}.
+ *
+ * @author vara
+ */
+final class VSSOperation
+{
+	/**
+	 * Time in seconds waited for a cancelled operation to stop, and then by
+	 * a checkout for the directory it writes into.
+	 */
+	private static final int STOP_TIMEOUT = Integer.getInteger(
+			VSSOperation.class.getName() + ".stopTimeout", 30).intValue();
+
+	/**
+	 * Directories being written into by operations, absolute.
+	 */
+	private static final Set<File> BUSY = new HashSet<File>();
+
+	/**
+	 * Utility class.
+	 */
+	private VSSOperation()
+	{
+	}
+
+	/**
+	 * Runs the operation and waits for it to complete.
+	 *
+	 * @param name Name of the operation, used for the thread and messages.
+	 * @param timeout Time in minutes after which the operation is given up,
+	 * 0 to wait forever.
+	 * @param operation The operation to run.
+	 * @return The result of the operation.
+	 * @throws IOException Error in the operation or timeout.
+	 * @throws InterruptedException The caller has been interrupted.
+	 */
+	static <T> T run(String name, int timeout, Callable<T> operation)
+			throws IOException, InterruptedException
+	{
+		return run(name, timeout, null, null, operation);
+	}
+
+	/**
+	 * Runs an operation writing into a directory and waits for it to
+	 * complete. The directory is busy until the operation has stopped.
+	 *
+	 * @param name Name of the operation, used for the thread and messages.
+	 * @param timeout Time in minutes after which the operation is given up,
+	 * 0 to wait forever.
+	 * @param directory Directory the operation writes into, null for none.
+	 * @param logger Logger told of an operation that does not stop, null
+	 * for none.
+	 * @param operation The operation to run.
+	 * @return The result of the operation.
+	 * @throws IOException Error in the operation or timeout.
+	 * @throws InterruptedException The caller has been interrupted.
+	 */
+	static <T> T run(String name, int timeout, File directory, PrintStream logger,
+			Callable<T> operation) throws IOException, InterruptedException
+	{
+		final FutureTask<T> task = new FutureTask<T>(operation);
+		final File busy = directory != null ? directory.getAbsoluteFile() : null;
+		Thread thread = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					task.run();
+				}
+				finally
+				{
+					release(busy);
+				}
+			}
+		}, "VSS " + name);
+		thread.setDaemon(true);
+		acquire(busy);
+		thread.start();
+
+		try
+		{
+			if(timeout > 0)
+			{
+				return task.get(timeout * 60L, TimeUnit.SECONDS);
+			}
+			return task.get();
+		}
+		catch(InterruptedException error)
+		{
+			//Build aborted. Let the operation stop on its own.
+			cancel(name, task, thread, busy, logger);
+			throw error;
+		}
+		catch(TimeoutException error)
+		{
+			cancel(name, task, thread, busy, logger);
+			throw new IOException(name + " timed out after " + timeout + " minutes");
+		}
+		catch(ExecutionException error)
+		{
+			Throwable cause = error.getCause();
+			if(cause instanceof IOException)
+			{
+				throw (IOException)cause;
+			}
+			if(cause instanceof InterruptedException)
+			{
+				throw (InterruptedException)cause;
+			}
+			if(cause instanceof RuntimeException)
+			{
+				throw (RuntimeException)cause;
+			}
+			if(cause instanceof Error)
+			{
+				throw (Error)cause;
+			}
+			throw new IOException2(cause);
+		}
+	}
+
+	/**
+	 * Cancels an operation and waits a while for it to stop, telling the
+	 * user if it does not.
+	 */
+	private static void cancel(String name, FutureTask<?> task, Thread thread, File busy,
+			PrintStream logger)
+	{
+		task.cancel(true);
+		try
+		{
+			thread.join(STOP_TIMEOUT * 1000L);
+		}
+		catch(InterruptedException e)
+		{
+			//Aborted again, give up waiting.
+			Thread.currentThread().interrupt();
+		}
+		if(thread.isAlive() && logger != null)
+		{
+			logger.println("[" + name + "] Still running after " + STOP_TIMEOUT
+					+ " seconds, the next checkout into " + busy + " will wait for it");
+		}
+	}
+
+	/**
+	 * Waits for the operations still writing into the given directory, or
+	 * into a directory under it, to stop.
+	 *
+	 * @param directory The directory.
+	 * @param logger Logger told of the wait.
+	 * @throws IOException The operations have not stopped in time.
+	 * @throws InterruptedException The caller has been interrupted.
+	 */
+	static void awaitIdle(File directory, PrintStream logger) throws IOException, InterruptedException
+	{
+		String path = directory.getAbsolutePath() + File.separator;
+		long end = System.currentTimeMillis() + STOP_TIMEOUT * 1000L;
+		synchronized(BUSY)
+		{
+			boolean told = false;
+			while(isBusy(path))
+			{
+				long left = end - System.currentTimeMillis();
+				if(left <= 0)
+				{
+					throw new IOException(directory + " is still being written by a cancelled VSS operation");
+				}
+				if(!told)
+				{
+					logger.println("[checkout] Waiting for a cancelled VSS operation writing into "
+							+ directory);
+					told = true;
+				}
+				BUSY.wait(left);
+			}
+		}
+	}
+
+	/**
+	 * Tells whether a busy directory is the given one or under it. To be
+	 * called holding the lock of {@link #BUSY}.
+	 */
+	private static boolean isBusy(String path)
+	{
+		for(File busy : BUSY)
+		{
+			if((busy.getPath() + File.separator).startsWith(path))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void acquire(File busy)
+	{
+		if(busy != null)
+		{
+			synchronized(BUSY)
+			{
+				BUSY.add(busy);
+			}
+		}
+	}
+
+	private static void release(File busy)
+	{
+		if(busy != null)
+		{
+			synchronized(BUSY)
+			{
+				BUSY.remove(busy);
+				BUSY.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Stops the current operation if it has been cancelled. To be called
+	 * between the items of an operation.
+	 *
+	 * @throws InterruptedException The operation has been cancelled.
+	 */
+	static void checkInterrupted() throws InterruptedException
+	{
+		if(Thread.interrupted())
+		{
+			throw new InterruptedException();
+		}
+	}
+}
@@ -0,0 +1,311 @@
+package scm.vss;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Include and exclude patterns selecting the part of a VSS tree a job
+ * works with. Patterns are separated by commas or new lines and use
+ * <tt>*</tt> and <tt>?</tt> within a name and <tt>**</tt> for any number of
+ * folders. They are relative to each VSS path of the job unless they start
+ * with <tt>$/</tt>. Matching ignores case, like VSS.
+ *
+ * <pre>
+ * includes: Src/**, Build/*.proj
+ * excludes: **&#47;Docs/**, $/Product/Main/Src/Legacy/**
+ * </pre>
+ *
+ * @author vara
+ */
+final class VSSPathFilter
+{
+	/**
+	 * The compiled first segment of absolute patterns.
+	 */
+	private static final String ROOT = Pattern.quote("$");
+
+	/**
+	 * Include patterns, split in segments. Null segments stand for **.
+	 */
+	private final List<Pattern[]> includes;
+
+	/**
+	 * Exclude patterns, split in segments. Null segments stand for **.
+	 */
+	private final List<Pattern[]> excludes;
+
+	/**
+	 * Creates the filter.
+	 *
+	 * @param includes Include patterns, empty to include everything.
+	 * @param excludes Exclude patterns, empty to exclude nothing.
+	 */
+	VSSPathFilter(String includes, String excludes)
+	{
+		this.includes = parse(includes);
+		this.excludes = parse(excludes);
+	}
+
+	/**
+	 *
+	 * @return True if the filter leaves out anything.
+	 *
+	 */
+	boolean isActive()
+	{
+		return !includes.isEmpty() || !excludes.isEmpty();
+	}
+
+	/**
+	 * Tells whether the given file, or any other item, is selected.
+	 *
+	 * @param root The VSS path of the job the item is under.
+	 * @param spec VSS path of the item.
+	 * @return True if the item is selected.
+	 */
+	boolean includes(String root, String spec)
+	{
+		String[] path = split(root, spec);
+		if(path.length == 0)
+		{
+			//The root itself.
+			return true;
+		}
+
+		boolean included = includes.isEmpty();
+		for(Pattern[] pattern : includes)
+		{
+			if(matches(pattern, relativeTo(root, pattern), path, 0, false))
+			{
+				included = true;
+				break;
+			}
+		}
+		return included && !isExcluded(root, path, false);
+	}
+
+	/**
+	 * Tells whether the given folder may hold selected items, so that it
+	 * has to be walked.
+	 *
+	 * @param root The VSS path of the job the folder is under.
+	 * @param spec VSS path of the folder.
+	 * @return True if the folder has to be walked.
+	 */
+	boolean includesFolder(String root, String spec)
+	{
+		String[] path = split(root, spec);
+		if(path.length == 0)
+		{
+			return true;
+		}
+		if(isExcluded(root, path, true))
+		{
+			return false;
+		}
+		if(includes.isEmpty())
+		{
+			return true;
+		}
+		for(Pattern[] pattern : includes)
+		{
+			if(matches(pattern, relativeTo(root, pattern), path, 0, true))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Tells whether an exclude pattern matches the path. A folder is
+	 * excluded when everything under it is.
+	 */
+	private boolean isExcluded(String root, String[] path, boolean folder)
+	{
+		for(Pattern[] pattern : excludes)
+		{
+			int start = relativeTo(root, pattern);
+			if(start < 0)
+			{
+				continue;
+			}
+			if(matches(pattern, start, path, 0, false))
+			{
+				return true;
+			}
+			if(folder && pattern.length > 0 && pattern[pattern.length - 1] == null)
+			{
+				Pattern[] parent = new Pattern[pattern.length - 1];
+				System.arraycopy(pattern, 0, parent, 0, parent.length);
+				if(matches(parent, start, path, 0, false))
+				{
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the index of the first segment of the pattern that is
+	 * relative to the root, or -1 if the pattern is for another root.
+	 */
+	private static int relativeTo(String root, Pattern[] pattern)
+	{
+		if(pattern.length == 0 || pattern[0] == null || !ROOT.equals(pattern[0].pattern()))
+		{
+			return 0;
+		}
+
+		//An absolute pattern must start with the root.
+		String[] rootPath = root.replace('\\', '/').split("/");
+		int index = 0;
+		for(String segment : rootPath)
+		{
+			if(segment.length() == 0)
+			{
+				continue;
+			}
+			if(index >= pattern.length || pattern[index] == null 
+					|| !pattern[index].matcher(segment).matches())
+			{
+				return -1;
+			}
+			index++;
+		}
+		return index;
+	}
+
+	/**
+	 * Matches the pattern segments against the path segments.
+	 *
+	 * @param pattern The pattern, null segments standing for **.
+	 * @param start Index of the current segment of the pattern.
+	 * @param path The path.
+	 * @param index Index of the current segment of the path.
+	 * @param prefix Indicates whether matching the start of the pattern is
+	 * enough, used to find folders that may hold matches.
+	 * @return True if the pattern matches.
+	 */
+	private static boolean matches(Pattern[] pattern, int start,
+			String[] path, int index, boolean prefix)
+	{
+		if(start < 0)
+		{
+			return false;
+		}
+		if(index == path.length)
+		{
+			if(prefix)
+			{
+				return true;
+			}
+
+			//Trailing ** matches nothing as well.
+			for(int rest = start;rest < pattern.length;rest ++)
+			{
+				if(pattern[rest] != null)
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+		if(start == pattern.length)
+		{
+			return false;
+		}
+
+		if(pattern[start] == null)
+		{
+			return matches(pattern, start + 1, path, index, prefix)
+				|| matches(pattern, start, path, index + 1, prefix);
+		}
+		return pattern[start].matcher(path[index]).matches()
+			&& matches(pattern, start + 1, path, index + 1, prefix);
+	}
+
+	/**
+	 * Compiles a pattern segment with * and ?, null for **.
+	 */
+	private static Pattern compile(String pattern)
+	{
+		if("**".equals(pattern))
+		{
+			return null;
+		}
+
+		StringBuilder regex = new StringBuilder();
+		for(int index = 0;index < pattern.length();index ++)
+		{
+			char ch = pattern.charAt(index);
+			switch(ch)
+			{
+				case '*' : regex.append("[^/]*");	break;
+				case '?' : regex.append("[^/]");	break;
+				default: 	regex.append(Pattern.quote(String.valueOf(ch)));
+			}
+		}
+		return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE);
+	}
+
+	/**
+	 * Splits the path of the item below the root in segments.
+	 */
+	private static String[] split(String root, String spec)
+	{
+		String rootPath = root.replace('\\', '/');
+		while(rootPath.endsWith("/"))
+		{
+			rootPath = rootPath.substring(0, rootPath.length() - 1);
+		}
+		String path = spec.replace('\\', '/');
+		if(path.length() >= rootPath.length()
+				&& path.substring(0, rootPath.length()).equalsIgnoreCase(rootPath))
+		{
+			path = path.substring(rootPath.length());
+		}
+
+		List<String> segments = new ArrayList<String>();
+		for(String segment : path.split("/"))
+		{
+			if(segment.length() > 0)
+			{
+				segments.add(segment);
+			}
+		}
+		return segments.toArray(new String[segments.size()]);
+	}
+
+	/**
+	 * Parses the patterns in segments.
+	 */
+	private static List<Pattern[]> parse(String patterns)
+	{
+		List<Pattern[]> parsed = new ArrayList<Pattern[]>();
+		if(patterns == null)
+		{
+			return parsed;
+		}
+		for(String pattern : patterns.split("[,\\r\\n]+"))
+		{
+			pattern = pattern.trim().replace('\\', '/');
+			if(pattern.length() == 0)
+			{
+				continue;
+			}
+			List<Pattern> segments = new ArrayList<Pattern>();
+			for(String segment : pattern.split("/"))
+			{
+				if(segment.length() > 0)
+				{
+					segments.add(compile(segment));
+				}
+			}
+			parsed.add(segments.toArray(new Pattern[segments.size()]));
+		}
+		return parsed;
+	}
+}
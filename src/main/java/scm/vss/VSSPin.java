@@ -0,0 +1,157 @@
+package scm.vss;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * A VSS path pinned to a label or a point in time, written as the path
+ * followed by <tt>@label:</tt> or <tt>@date:</tt>:
+ *
+ * <pre>
+ * $/Product/Main@label:Release 1.2
+ * $/Product/Main@date:2011-06-30 18:00
+ * </pre>
+ *
+ * Pinned paths are fetched as of the pin and do not change, so they have
+ * no history and are not polled.
+ *
+ * @author vara
+ */
+final class VSSPin
+{
+	/**
+	 * Marker of a label pin.
+	 */
+	private static final String LABEL = "@label:";
+
+	/**
+	 * Marker of a date pin.
+	 */
+	private static final String DATE = "@date:";
+
+	/**
+	 * Formats of the date pins, the most precise first.
+	 */
+	private static final String[] DATE_FORMATS = new String[]{
+			"yyyy-MM-dd HH:mm:ss", "yyyy-MM-dd HH:mm", "yyyy-MM-dd"};
+
+	/**
+	 * The VSS path.
+	 */
+	private final String path;
+
+	/**
+	 * The label or the date the path is pinned to.
+	 */
+	private final Object version;
+
+	private VSSPin(String path, Object version)
+	{
+		this.path = path;
+		this.version = version;
+	}
+
+	/**
+	 * Parses the pin of a configured VSS path.
+	 *
+	 * @param vssPath The VSS path as configured.
+	 * @return The pin, or null if the path is not pinned.
+	 * @throws IOException The pin is not valid.
+	 */
+	static VSSPin parse(String vssPath) throws IOException
+	{
+		int index = vssPath.indexOf(LABEL);
+		if(index >= 0)
+		{
+			String label = vssPath.substring(index + LABEL.length()).trim();
+			if(label.length() == 0)
+			{
+				throw new IOException("No label given in " + vssPath);
+			}
+			return new VSSPin(vssPath.substring(0, index).trim(), label);
+		}
+
+		index = vssPath.indexOf(DATE);
+		if(index >= 0)
+		{
+			String date = vssPath.substring(index + DATE.length()).trim();
+			for(String format : DATE_FORMATS)
+			{
+				SimpleDateFormat parser = new SimpleDateFormat(format);
+				parser.setLenient(false);
+				try
+				{
+					if(date.length() == format.length())
+					{
+						return new VSSPin(vssPath.substring(0, index).trim(), parser.parse(date));
+					}
+				}
+				catch(ParseException e)
+				{
+					//Try the next format.
+				}
+			}
+			throw new IOException("Invalid date in " + vssPath + ", expected yyyy-MM-dd HH:mm");
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the VSS path without its pin.
+	 *
+	 * @param vssPath The VSS path as configured.
+	 * @return The VSS path.
+	 */
+	static String getPath(String vssPath)
+	{
+		int index = vssPath.indexOf(LABEL);
+		if(index < 0)
+		{
+			index = vssPath.indexOf(DATE);
+		}
+		return index < 0 ? vssPath : vssPath.substring(0, index).trim();
+	}
+
+	/**
+	 * Tells whether the VSS path is pinned.
+	 *
+	 * @param vssPath The VSS path as configured.
+	 * @return True if the path is pinned.
+	 */
+	static boolean isPinned(String vssPath)
+	{
+		return vssPath.indexOf(LABEL) >= 0 || vssPath.indexOf(DATE) >= 0;
+	}
+
+	/**
+	 *
+	 * @return The VSS path.
+	 *
+	 */
+	String getPath()
+	{
+		return path;
+	}
+
+	/**
+	 *
+	 * @return The label or the date, as taken by IVSSItem.version().
+	 *
+	 */
+	Object getVersion()
+	{
+		return version;
+	}
+
+	@Override
+	public String toString()
+	{
+		if(version instanceof Date)
+		{
+			return path + " as of " + VSSSCM.formatDate((Date)version);
+		}
+		return path + " at label " + version;
+	}
+}
@@ -0,0 +1,92 @@
+package scm.vss;
+
+import java.util.Date;
+
+/**
+ * When polling next looks at a VSS path. A path without changes is looked
+ * at less and less often, the wait doubling after each poll finding
+ * nothing, up to the maximum back-off and to a quarter of the usual time
+ * between its changes. A change brings the path back to every poll.
+ *
+ * @author vara
+ */
+final class VSSPollSchedule
+{
+	/**
+	 * The first wait after a poll finding nothing, in milliseconds.
+	 */
+	private static final long MIN_BACKOFF = 60 * 1000L;
+
+	/**
+	 * Time on this node of the last poll looking at the path.
+	 */
+	private long lastPoll = 0;
+
+	/**
+	 * Time in milliseconds to wait after the last poll.
+	 */
+	private long backoff = 0;
+
+	/**
+	 * Date of the newest change seen.
+	 */
+	private long lastChange = 0;
+
+	/**
+	 * Average time in milliseconds between the changes seen, 0 if not
+	 * known yet.
+	 */
+	private long averageGap = 0;
+
+	/**
+	 * Tells whether the path is to be looked at by this poll.
+	 *
+	 * @param now Time on this node.
+	 * @return True if the wait is over.
+	 */
+	synchronized boolean isDue(long now)
+	{
+		return now - lastPoll >= backoff;
+	}
+
+	/**
+	 * Records a poll of the path.
+	 *
+	 * @param newest Date of the newest change found, null if none.
+	 * @param now Time on this node.
+	 * @param maxBackoff Longest wait in milliseconds.
+	 */
+	synchronized void update(Date newest, long now, long maxBackoff)
+	{
+		lastPoll = now;
+		if(newest != null)
+		{
+			long change = newest.getTime();
+			if(lastChange > 0 && change > lastChange)
+			{
+				long gap = change - lastChange;
+				averageGap = averageGap == 0 ? gap : (averageGap * 3 + gap) / 4;
+			}
+			lastChange = Math.max(lastChange, change);
+			backoff = 0;
+			return;
+		}
+
+		long limit = maxBackoff;
+		if(averageGap > 0)
+		{
+			limit = Math.min(limit, averageGap / 4);
+		}
+		backoff = Math.min(Math.max(backoff * 2, MIN_BACKOFF), limit);
+	}
+
+	/**
+	 *
+	 * @return Time in milliseconds to wait after the last poll.
+	 *
+	 */
+	synchronized long getBackoff()
+	{
+		return backoff;
+	}
+}
@@ -0,0 +1,407 @@
+package scm.vss;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * A physical file of a VSS database, opened for reading. The files
+ * are made of records, each starting with a header holding the length of
+ * the record data, a two letter signature and a checksum. Values are little
+ * endian and strings are fixed-length and zero-terminated.
+ *
+ * Records are read by positioning on one with {@link #readRecord(int, String)}
+ * and reading its fields in order. Each record is read into memory at the
+ * offset asked for, rather than mapping the file: on Windows a mapped file
+ * stays locked until the mapping is collected, which would prevent VSS
+ * from writing to the database. The file must be closed after use.
+ *
+ * @author vara
+ */
+final class VSSRecordFile
+{
+	/**
+	 * Signature at the start of item files.
+	 */
+	static final String FILE_SIGNATURE = "SourceSafe@Microsoft";
+
+	/**
+	 * Length of the header of item files. The first record follows it.
+	 */
+	static final int FILE_HEADER_LENGTH = 0x34;
+
+	/**
+	 * Length of the header of a record.
+	 */
+	private static final int RECORD_HEADER_LENGTH = 8;
+
+	/**
+	 * The file read.
+	 */
+	private final File file;
+
+	/**
+	 * The opened file.
+	 */
+	private final RandomAccessFile raf;
+
+	/**
+	 * Channel of the file, read at absolute offsets.
+	 */
+	private final FileChannel channel;
+
+	/**
+	 * Size of the file.
+	 */
+	private final int size;
+
+	/**
+	 * Content of the current record, header included.
+	 */
+	private ByteBuffer buffer = ByteBuffer.allocate(0);
+
+	/**
+	 * Offset in the file of the start of the buffer.
+	 */
+	private int base = 0;
+
+	/**
+	 * Encoding of the strings.
+	 */
+	private final Charset charset;
+
+	/**
+	 * Position of the next field to be read.
+	 */
+	private int position = 0;
+
+	/**
+	 * End of the current record.
+	 */
+	private int limit = 0;
+
+	/**
+	 * Opens the given file.
+	 *
+	 * @param file The file to read.
+	 * @param charset Encoding of the strings.
+	 * @throws IOException Any error while opening the file.
+	 */
+	VSSRecordFile(File file, Charset charset) throws IOException
+	{
+		this.file = file;
+		this.charset = charset;
+
+		raf = new RandomAccessFile(file, "r");
+		channel = raf.getChannel();
+		long length = channel.size();
+		if(length > Integer.MAX_VALUE)
+		{
+			raf.close();
+			throw error("file too large");
+		}
+		size = (int)length;
+	}
+
+	/**
+	 * Closes the file.
+	 *
+	 * @throws IOException Any error while closing the file.
+	 */
+	void close() throws IOException
+	{
+		raf.close();
+	}
+
+	/**
+	 * Reads the given part of the file into the buffer.
+	 *
+	 * @param offset Offset of the part in the file.
+	 * @param length Length of the part.
+	 * @throws IOException The part is outside the file, or could not be
+	 * read.
+	 */
+	private void load(int offset, int length) throws IOException
+	{
+		if(offset < 0 || length < 0 || (long)offset + length > size)
+		{
+			throw error("file truncated at offset " + offset);
+		}
+
+		//Records are small, so the buffer is only grown.
+		if(buffer.capacity() < length)
+		{
+			buffer = ByteBuffer.allocate(Math.max(length, 2 * buffer.capacity()));
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+		}
+		buffer.clear();
+		buffer.limit(length);
+		while(buffer.hasRemaining())
+		{
+			if(channel.read(buffer, offset + buffer.position()) < 0)
+			{
+				throw error("file truncated at offset " + (offset + buffer.position()));
+			}
+		}
+		base = offset;
+	}
+
+	/**
+	 * Checks that the file starts with the item file header of the
+	 * supported version.
+	 *
+	 * @return The type of the item, 1 for a project and 2 for a file.
+	 * @throws IOException The header is not valid, or could not be read.
+	 */
+	int readFileHeader() throws IOException
+	{
+		if(size < FILE_HEADER_LENGTH)
+		{
+			throw error("not a VSS item file");
+		}
+		load(0, FILE_HEADER_LENGTH);
+		position = 0;
+		limit = FILE_HEADER_LENGTH;
+		if(!FILE_SIGNATURE.equals(readString(0x20)))
+		{
+			throw error("not a VSS item file");
+		}
+		int type = readInt16();
+		int version = readInt16();
+		if(version != 6)
+		{
+			throw error("unsupported file version " + version);
+		}
+		return type;
+	}
+
+	/**
+	 * Tells whether the file starts with the item file signature.
+	 *
+	 * @return True if there is a file header.
+	 * @throws IOException Any error while reading the file.
+	 */
+	boolean hasFileHeader() throws IOException
+	{
+		if(size < FILE_HEADER_LENGTH)
+		{
+			return false;
+		}
+		load(0, FILE_SIGNATURE.length());
+		for(int index = 0;index < FILE_SIGNATURE.length();index ++)
+		{
+			if(buffer.get(index) != FILE_SIGNATURE.charAt(index))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Tells whether a record with the given signature starts at the offset.
+	 *
+	 * @param offset Offset of the record header.
+	 * @param signature Expected signature.
+	 * @return True if there is such a record.
+	 * @throws IOException Any error while reading the file.
+	 */
+	boolean isRecordAt(int offset, String signature) throws IOException
+	{
+		if(offset < 0 || (long)offset + RECORD_HEADER_LENGTH > size)
+		{
+			return false;
+		}
+		load(offset, RECORD_HEADER_LENGTH);
+		int length = buffer.getInt(0);
+		return length >= 0
+			&& (long)offset + RECORD_HEADER_LENGTH + length <= size
+			&& buffer.get(4) == signature.charAt(0)
+			&& buffer.get(5) == signature.charAt(1);
+	}
+
+	/**
+	 * Positions on the data of the record at the given offset.
+	 *
+	 * @param offset Offset of the record header.
+	 * @param signature Expected signature.
+	 * @throws IOException There is no such record at the offset, or it
+	 * could not be read.
+	 */
+	void readRecord(int offset, String signature) throws IOException
+	{
+		if(!isRecordAt(offset, signature))
+		{
+			throw error("no " + signature + " record at offset " + offset);
+		}
+		load(offset, RECORD_HEADER_LENGTH + buffer.getInt(0));
+		position = offset + RECORD_HEADER_LENGTH;
+		limit = offset + buffer.limit();
+	}
+
+	/**
+	 *
+	 * @return Offset just after the current record.
+	 *
+	 */
+	int getRecordEnd()
+	{
+		return limit;
+	}
+
+	/**
+	 *
+	 * @return Position of the next field to be read.
+	 *
+	 */
+	int getPosition()
+	{
+		return position;
+	}
+
+	/**
+	 * Moves to the given position within the current record.
+	 *
+	 * @param position Position of the next field to be read.
+	 * @throws VSSFormatException The position is outside the record.
+	 */
+	void setPosition(int position) throws VSSFormatException
+	{
+		if(position < 0 || position > limit)
+		{
+			throw error("position " + position + " outside record");
+		}
+		this.position = position;
+	}
+
+	/**
+	 * Skips the given number of bytes.
+	 */
+	void skip(int count) throws VSSFormatException
+	{
+		check(count);
+		position += count;
+	}
+
+	/**
+	 * Reads an unsigned 16 bit value, such as a count, a version or a
+	 * length.
+	 */
+	int readInt16() throws VSSFormatException
+	{
+		check(2);
+		int value = buffer.getShort(position - base) & 0xFFFF;
+		position += 2;
+		return value;
+	}
+
+	/**
+	 * Reads an unsigned 16 bit value that can not be more than the given
+	 * maximum.
+	 *
+	 * @param name Name of the field, for the error.
+	 * @param max Largest valid value.
+	 * @return The value.
+	 * @throws VSSFormatException The value is out of range.
+	 */
+	int readInt16(String name, int max) throws VSSFormatException
+	{
+		int start = position;
+		int value = readInt16();
+		if(value > max)
+		{
+			throw error(name + " " + value + " out of range at offset " + start);
+		}
+		return value;
+	}
+
+	/**
+	 * Reads the offset of a record of this file, 0 for none.
+	 *
+	 * @param name Name of the field, for the error.
+	 * @return The offset.
+	 * @throws VSSFormatException The offset is outside the file.
+	 */
+	int readOffset(String name) throws VSSFormatException
+	{
+		int start = position;
+		int value = readInt32();
+		if(value < 0 || value >= size())
+		{
+			throw error(name + " " + value + " out of range at offset " + start);
+		}
+		return value;
+	}
+
+	/**
+	 * Reads a 32 bit value.
+	 */
+	int readInt32() throws VSSFormatException
+	{
+		check(4);
+		int value = buffer.getInt(position - base);
+		position += 4;
+		return value;
+	}
+
+	/**
+	 * Reads a zero-terminated string from a field of the given length.
+	 */
+	String readString(int length) throws VSSFormatException
+	{
+		check(length);
+		int end = position;
+		while(end < position + length && buffer.get(end - base) != 0)
+		{
+			end++;
+		}
+		byte[] bytes = new byte[end - position];
+		for(int index = 0;index < bytes.length;index ++)
+		{
+			bytes[index] = buffer.get(position - base + index);
+		}
+		position += length;
+		return charset.decode(ByteBuffer.wrap(bytes)).toString();
+	}
+
+	/**
+	 * Reads a string from the rest of the record.
+	 */
+	String readRemaining() throws VSSFormatException
+	{
+		return readString(limit - position);
+	}
+
+	/**
+	 *
+	 * @return Size of the file.
+	 *
+	 */
+	int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Creates the exception for an error in this file.
+	 */
+	VSSFormatException error(String message)
+	{
+		return new VSSFormatException(file, message);
+	}
+
+	/**
+	 * Checks that the given number of bytes can be read from the record.
+	 */
+	private void check(int count) throws VSSFormatException
+	{
+		if(count < 0 || position + count > limit)
+		{
+			throw error("record too short at offset " + position);
+		}
+	}
+}
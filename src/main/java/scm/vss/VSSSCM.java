@@ -14,6 +14,7 @@ import hudson.scm.SCM;
 import hudson.scm.SCMDescriptor;
 import hudson.scm.SCMRevisionState;
 import hudson.util.IOException2;
+import hudson.util.LogTaskListener;
 
 import java.io.File;
 import java.io.FileOutputStream;
@@ -23,16 +24,28 @@ import java.io.PrintWriter;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.kohsuke.stapler.StaplerRequest;
 import org.xml.sax.SAXException;
 
-import vss.ClassFactory;
 import vss.IVSSDatabase;
 import vss.IVSSItem;
 import vss.IVSSItems;
@@ -50,11 +63,29 @@ import com4j.Holder;
  */
 public class VSSSCM extends SCM
 {
+	private static final Logger LOGGER = Logger.getLogger(VSSSCM.class.getName());
+
 	/** 
 	 * Maximum history entries to be maintained.
 	 */
 	private static final int MAX_HISTORY_ENTRIES = 100;
 
+	/**
+	 * Most history entries walked at once to fill a history store. The 
+	 * store answers for the newest entries even when it does not hold the
+	 * whole history.
+	 */
+	private static final int HISTORY_STORE_WALK = Integer.getInteger(
+			VSSSCM.class.getName() + ".historyStoreWalk", 10000).intValue();
+
+	/**
+	 * Most history entries walked for a change log when the changes are
+	 * collapsed per file, before they are collapsed to at most
+	 * {@link #MAX_HISTORY_ENTRIES} files.
+	 */
+	private static final int COLLAPSE_WALK = Integer.getInteger(
+			VSSSCM.class.getName() + ".collapseWalk", 1000).intValue();
+
 	/**
 	 * Date format to display the log details.
 	 */
@@ -68,26 +99,44 @@ public class VSSSCM extends SCM
 			"file", "user", "comment", "action", "date", "version"};
 
 	/**
-	 * 
-	 * Constant representing deleted type history entry from VSS.
-	 * 
+	 * Index of the date of a history entry. It follows the tags and is not
+	 * written to the change log.
+	 */
+	static final int ENTRY_DATE = 6;
+
+	/**
+	 * Index of the number of versions of a collapsed history entry.
+	 */
+	static final int ENTRY_COUNT = 7;
+
+	/**
+	 * Index of the comments of the versions of a collapsed history entry.
+	 */
+	static final int ENTRY_COMMENTS = 8;
+
+	/**
+	 * Number of recent versions looked at per path when polling waits for
+	 * check-ins to settle.
 	 */
-	private static final String DELETED_ACTION = "Deleted";
+	private static final int SETTLE_WINDOW = 20;
 
 	/**
-	 * Constant representing destroyed type history entry from VSS.
+	 * Item type of a VSS project (folder).
 	 */
-	private static final String DESTROYED_ACTION = "Destroyed";
+	private static final int ITEM_TYPE_PROJECT = 0;
 
 	/**
-	 * Constant representing added type history entry from VSS.
+	 * Prefetched files are checked for changes made since this many 
+	 * milliseconds before the prefetch, to allow for clock differences 
+	 * between the VSS clients and this node.
 	 */
-	private static final String ADDED_ACTION = "Added";
+	private static final long PREFETCH_CLOCK_MARGIN = 5 * 60 * 1000L;
 
 	/**
-	 * Constant representing recovered type history entry from VSS.
+	 * Number of times a sub tree that failed to be fetched in parallel is
+	 * tried again.
 	 */
-	private static final String RECOVERED_ACTION = "Recovered";
+	private static final int SUBTREE_RETRIES = 2;
 
 	/**
 	 * Path to srcsafe.ini file.
@@ -125,6 +174,114 @@ public class VSSSCM extends SCM
 	 */
 	private boolean useUpdate = false;
 
+	/**
+	 * Time in minutes after which getting the history is given up, 0 for no
+	 * limit.
+	 */
+	private int historyTimeout = 0;
+
+	/**
+	 * Time in minutes after which getting the files is given up, 0 for no
+	 * limit.
+	 */
+	private int getTimeout = 0;
+
+	/**
+	 * Indicates whether identical fetches running at the same time on this
+	 * node are to be done once and copied to each workspace.
+	 */
+	private boolean coalesceFetches = false;
+
+	/**
+	 * Indicates whether polling that finds changes starts fetching the files
+	 * into the staging area right away.
+	 */
+	private boolean prefetchOnPoll = false;
+
+	/**
+	 * Time in seconds without new check-ins polling waits for before
+	 * reporting changes, 0 to report them right away.
+	 */
+	private int settleTime = 0;
+
+	/**
+	 * Indicates whether the history is to be read directly from the database
+	 * files instead of through COM.
+	 */
+	private boolean readHistoryDirectly = false;
+
+	/**
+	 * Shadow folder mirroring the VSS root to copy the files from instead of
+	 * getting them from VSS, null to get them from VSS.
+	 */
+	private String shadowFolder = null;
+
+	/**
+	 * Patterns of the items to work with, empty for all.
+	 */
+	private String includes = null;
+
+	/**
+	 * Patterns of the items not to work with.
+	 */
+	private String excludes = null;
+
+	/**
+	 * The filter made of the patterns.
+	 */
+	private transient VSSPathFilter pathFilter;
+
+	/**
+	 * Number of VSS sessions used to get a recursive path in parallel, 0 or
+	 * 1 to get it with a single session.
+	 */
+	private int fetchSessions = 0;
+
+	/**
+	 * Indicates whether the old workspace contents are deleted in the
+	 * background.
+	 */
+	private boolean asyncCleanup = false;
+
+	/**
+	 * Indicates whether the history walked is kept on disk and only the
+	 * entries after it are walked.
+	 */
+	private boolean useHistoryStore = false;
+
+	/**
+	 * Longest time in minutes polling leaves a path without changes alone,
+	 * 0 to look at every path on each poll.
+	 */
+	private int pollBackoff = 0;
+
+	/**
+	 * Indicates whether the change log keeps only the newest version of
+	 * each file changed.
+	 */
+	private boolean collapseChanges = false;
+
+	/**
+	 * Indicates whether a digest of the files fetched is recorded on the
+	 * build.
+	 */
+	private boolean recordSourceDigest = false;
+
+	/**
+	 * Creates the database objects, null for COM.
+	 */
+	private transient VSSDatabaseFactory databaseFactory;
+
+	/**
+	 * Recent versions seen by polling, by VSS path.
+	 */
+	private transient Map<String, VSSCheckinWindow> checkinWindows;
+
+	/**
+	 * When polling next looks at each VSS path.
+	 */
+	private transient Map<String, VSSPollSchedule> pollSchedules;
+
 	/**
 	 * All the details necessary to get the content from VSS.
 	 * 
@@ -136,6 +293,7 @@ public class VSSSCM extends SCM
 	 * not.
 	 * @param isRecursive Indicates whether to get the files in recursive order
 	 * or not.
+	 * @param useUpdate Indicates whether only the updates are to be fetched.
 	 */
 	public VSSSCM(String serverPath, String user, String password, 
 			String vssPath, boolean isWritable, boolean isRecursive, 
@@ -168,11 +326,12 @@ public class VSSSCM extends SCM
 	 * 
 	 */
 	public boolean checkout(AbstractBuild build, Launcher launcher, FilePath workspace,
-			BuildListener listener, File changelogFile)
+			final BuildListener listener, File changelogFile)
 			throws IOException, InterruptedException
 	{
-        // better be on Windows, or else it won't work
-        if(launcher.isUnix())
+        // better be on Windows, or else it won't work, unless nothing
+        // needs the VSS automation
+        if(launcher.isUnix() && (shadowFolder == null || !readHistoryDirectly))
         {
             listener.getLogger().println("[checkout] ERROR : VSS only runs on Windows");
             return false;
@@ -180,13 +339,117 @@ public class VSSSCM extends SCM
 
 		//Are there any builds made before this?
         listener.getLogger().println("[checkout] Checking previous build");
+		AbstractBuild lastBuild = (AbstractBuild) build.getPreviousBuild();
+		if(!checkout(lastBuild != null ? lastBuild.getTimestamp().getTime() : null, 
+				workspace, listener, changelogFile))
+		{
+			return false;
+		}
+
+		//Index the changes so that the builds changing a file are found
+		//without reading every change log.
+		try
+		{
+			VSSHistoryAction.index(build, changelogFile);
+		}
+		catch(IOException e)
+		{
+			LOGGER.log(Level.WARNING, "Unable to index the changes of " + build, e);
+			listener.getLogger().println("[checkout] Unable to index the changes: " + e.getMessage());
+		}
+
+		//Updating a workspace leaves the files that were not fetched, which
+		//would count in the digest.
+		if(recordSourceDigest && useUpdate && lastBuild != null && shadowFolder == null)
+		{
+			listener.getLogger().println("[checkout] WARNING : No source digest, the workspace "
+					+ "is updated and may hold files not fetched from VSS");
+		}
+		else if(recordSourceDigest)
+		{
+			recordSourceDigest(build, workspace, listener);
+		}
+		return true;
+	}
+
+	/**
+	 * Records the digest of the files fetched for each VSS path on the 
+	 * build. The build goes on without it if the files can not be read.
+	 * 
+	 * @throws InterruptedException The build has been aborted.
+	 * 
+	 */
+	private void recordSourceDigest(AbstractBuild build, FilePath workspace, 
+			TaskListener listener) throws InterruptedException
+	{
+		long start = System.currentTimeMillis();
+		VSSSourceDigest digest = new VSSSourceDigest();
+		List<String> paths = new ArrayList<String>();
+		List<String> digests = new ArrayList<String>();
+		try
+		{
+			File root = new File(workspace.toURI());
+			for(String configuredPath : vssPaths)
+			{
+				String vssPath = VSSPin.getPath(configuredPath);
+				paths.add(configuredPath.trim());
+				digests.add(digest.digest(new File(root, vssPath.substring(2))));
+			}
+		}
+		catch(IOException e)
+		{
+			LOGGER.log(Level.WARNING, "Unable to digest the sources of " + build, e);
+			listener.getLogger().println("[checkout] Unable to digest the sources: " + e.getMessage());
+			return;
+		}
+
+		VSSSourceDigestAction action = new VSSSourceDigestAction(paths, digests);
+		build.addAction(action);
+		listener.getLogger().println("[checkout] Source digest " + action.getSourceDigest() 
+				+ ", " + digest.getSummary() + " in " 
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Gives the build the digest of its sources as VSS_SOURCE_DIGEST, if
+	 * recorded.
+	 * 
+	 */
+	@Override
+	public void buildEnvVars(AbstractBuild<?, ?> build, Map<String, String> env)
+	{
+		VSSSourceDigestAction action = build.getAction(VSSSourceDigestAction.class);
+		if(action != null)
+		{
+			env.put("VSS_SOURCE_DIGEST", action.getSourceDigest());
+		}
+	}
+
+	/**
+	 * Fetches the content from VSS into the workspace and writes the changes
+	 * since the last build to the change log.
+	 * 
+	 * @param lastBuildTime Time of the previous build, null if there is none.
+	 * @param workspace The workspace.
+	 * @param changelogFile The change log file.
+	 * @return True if the content has been fetched.
+	 * @throws IOException Any error while fetching the content.
+	 * @throws InterruptedException The build has been aborted.
+	 * 
+	 */
+	boolean checkout(Date lastBuildTime, FilePath workspace, TaskListener listener, 
+			File changelogFile) throws IOException, InterruptedException
+	{
+		//A get of an aborted build may still be writing into the workspace.
+		VSSOperation.awaitIdle(new File(workspace.toURI()), listener.getLogger());
+
 		List<Object[]> historyEntries;
 		List<String> deletions = null;
-		AbstractBuild lastBuild = (AbstractBuild) build.getPreviousBuild();
-		if(lastBuild == null)
+		int maxEntries = collapseChanges ? COLLAPSE_WALK : MAX_HISTORY_ENTRIES;
+		if(lastBuildTime == null)
 		{
 			//Get all changes.
-			historyEntries = getHistoryEntries(new Date(0), null, listener);
+			historyEntries = getHistoryEntries(new Date(0), maxEntries, null, listener);
 		}
 		else
 		{
@@ -196,32 +459,64 @@ public class VSSSCM extends SCM
 			}
 
 			//Get the changes from last build time.
-			Date buildTime = lastBuild.getTimestamp().getTime();
-			historyEntries = getHistoryEntries(buildTime, deletions, listener);
+			historyEntries = getHistoryEntries(lastBuildTime, maxEntries, deletions, listener);
 		
 			//Too many changes?
-			if(historyEntries.size() >= MAX_HISTORY_ENTRIES)
+			if(historyEntries.size() >= maxEntries)
 			{
 				deletions = null;
 			}
 		}
-        
-		//Clean and refetch the content.
-        listener.getLogger().println("[checkout] Cleaning workspace");
-		if(deletions != null)
-		{
-			delete(new File(workspace.toURI()), deletions);
-		}
-		else
+
+		//Keep the newest version of each file.
+		if(collapseChanges)
 		{
-			workspace.deleteContents();
+			int versions = historyEntries.size();
+			historyEntries = VSSChangeCollapser.collapse(historyEntries, MAX_HISTORY_ENTRIES);
+			if(deletions != null)
+			{
+				deletions = VSSChangeCollapser.collapseDeletions(deletions);
+			}
+			listener.getLogger().println("[history] " + versions + " versions collapsed to " 
+					+ historyEntries.size() + " files.");
 		}
+        
+		//Clean and refetch the content. Synchronizing with the shadow folder
+		//removes the old files itself.
+        if(shadowFolder == null)
+        {
+            listener.getLogger().println("[checkout] Cleaning workspace");
+            if(deletions != null)
+            {
+                if(asyncCleanup)
+                {
+                    VSSWorkspaceCleaner.discard(new File(workspace.toURI()), deletions, 
+                            listener.getLogger());
+                }
+                else
+                {
+                    delete(new File(workspace.toURI()), deletions);
+                }
+            }
+            else if(asyncCleanup)
+            {
+                VSSWorkspaceCleaner.cleanContents(new File(workspace.toURI()), 
+                        listener.getLogger());
+            }
+            else
+            {
+                workspace.deleteContents();
+            }
+        }
 
         // we have multiple paths, and want the files in the correct
         // place. So, create the folder structure as well and get the
         // files for each path.
-        for (String vssPath : vssPaths)
+        for (final String configuredPath : vssPaths)
         {
+            // The path without its label or date pin, if any.
+            final String vssPath = VSSPin.getPath(configuredPath);
+
             // Create the path structure. This is a workaround because
             // I was unable to get source safe to do it for me.
             // Basically, if we have two paths $/path1 and $/path2, we
@@ -238,11 +533,37 @@ public class VSSSCM extends SCM
                 (new File(localPath)).mkdirs();
             } catch (Exception e)
             {
-                System.err.println("Error: " + e.getMessage());
+                LOGGER.log(Level.WARNING, "Unable to create " + localPath, e);
+                listener.getLogger().println("[checkout] Unable to create " + localPath 
+                        + ": " + e.getMessage());
             }
 
             // 3. get the files for this path
-            get(localPath, vssPath, listener);
+            if(VSSPin.isPinned(configuredPath))
+            {
+                VSSSnapshotCache.fetch(getSnapshotKey(configuredPath, listener), new File(localPath), 
+                        createFetcher(configuredPath, listener), listener.getLogger());
+            }
+            else if(shadowFolder != null)
+            {
+                syncFromShadowFolder(localPath, vssPath, listener);
+            }
+            else if(coalesceFetches || prefetchOnPoll)
+            {
+                Date staged = VSSFetchCoalescer.fetch(getFetchKey(vssPath), 
+                        new File(localPath), createFetcher(vssPath, listener), 
+                        listener.getLogger());
+
+                // 4. prefetched files may be out of date by now
+                if(staged != null)
+                {
+                    refreshPrefetched(localPath, vssPath, staged, listener);
+                }
+            }
+            else
+            {
+                get(localPath, vssPath, listener);
+            }
         }
 
         //Persist the changes.
@@ -253,125 +574,431 @@ public class VSSSCM extends SCM
 	}
 			
 	/**
-	 * Returns the history entries after the start date.
+	 * Returns the history entries after the start date. Maximum specified
+	 * number of entries will be collected.
 	 * 
 	 * @param startDate The date after which the history entries are needed.
+	 * @param maxEntries Maximum number of entries to be fetched.
 	 * @param deletions List of files deleted to collect.
 	 * @return The list of history entries.
 	 * @throws IOException Any error while getting the history information.
+	 * @throws InterruptedException The build has been aborted.
 	 * 
 	 */
-	private List<Object[]> getHistoryEntries(Date startDate, List<String> deletions, TaskListener listener) throws IOException
+	private List<Object[]> getHistoryEntries(Date startDate, int maxEntries, 
+			List<String> deletions, TaskListener listener) 
+			throws IOException, InterruptedException
 	{
-		return getHistoryEntries(startDate, MAX_HISTORY_ENTRIES, deletions, listener);
+		return getHistoryEntries(getTrackedPaths(), startDate, maxEntries, deletions, listener);
 	}
 
 	/**
-	 * Returns the history entries after the start date. Maximum specified
-	 * number of entries will be collected.
+	 * Returns the history entries of the given paths after the start date. 
+	 * Maximum specified number of entries will be collected.
 	 * 
+	 * @param paths Directory paths in the VSS server.
 	 * @param startDate The date after which the history entries are needed.
 	 * @param maxEntries Maximum number of entries to be fetched.
 	 * @param deletions List of files deleted to collect.
 	 * @return The list of history entries.
 	 * @throws IOException Any error while getting the history information.
+	 * @throws InterruptedException The build has been aborted.
 	 * 
 	 */
-	private List<Object[]> getHistoryEntries(Date startDate, int maxEntries, List<String> deletions, TaskListener listener) throws IOException
+	List<Object[]> getHistoryEntries(String[] paths, Date startDate, 
+			int maxEntries, List<String> deletions, TaskListener listener) 
+			throws IOException, InterruptedException
 	{
-        listener.getLogger().println("[history] Getting list of changes since " + startDate);
-        
-        if(!new File(serverPath).exists())
-        {
-            throw new IOException(serverPath + " doesn't exist. Configuration error?");
-        }
-
-        if(new File(serverPath).isDirectory())
-        {
-            throw new IOException(serverPath + " is a directory. Please specify the location of srcsafe.ini");
-        }
+		return getHistoryEntries(paths, startDate, maxEntries, deletions, true, listener);
+	}
 
-        //Open database.
-        IVSSDatabase database;
-        try
-		{
-			database = ClassFactory.createVSSDatabase();
-			database.open(serverPath, user, password);
-        }
-        catch(RuntimeException error)
+	/**
+	 * Brings prefetched files up to date with the changes made since the
+	 * prefetch. Getting again updates the files changed, but leaves the
+	 * files removed from VSS, so the path is got from scratch if any were.
+	 * 
+	 * @param localPath Local directory path of the files.
+	 * @param vssPath The VSS path.
+	 * @param staged Time the files were prefetched at.
+	 * @throws IOException Any error while getting the files.
+	 * @throws InterruptedException The build has been aborted.
+	 * 
+	 */
+	private void refreshPrefetched(String localPath, String vssPath, Date staged, 
+			TaskListener listener) throws IOException, InterruptedException
+	{
+		String[] paths = new String[]{vssPath};
+		Date since = new Date(staged.getTime() - PREFETCH_CLOCK_MARGIN);
+		if(!hasHistoryEntries(paths, since, listener))
 		{
-            listener.getLogger().println("[history] Unable to open database " + serverPath);
-			throw new IOException2(error);
+			return;
 		}
-            
-        try
-        {
-			//Get history.
-            List<Object[]> historyEntries = new ArrayList<Object[]>();
-			int historyCount = 0;
-			for (String vssPath : vssPaths)
-            {    
-                IVSSItem vssItem = database.vssItem(vssPath, false);
-                int vssLength = vssItem.spec().length();
-                int flag;
-                if(isRecursive)
-                {
-                    flag = VSSFlags.VSSFLAG_RECURSYES.comEnumValue();
-                }
-                else
-                {
-                    flag = VSSFlags.VSSFLAG_RECURSNO.comEnumValue();
-                }
-                IVSSVersions versions = vssItem.versions(flag);
 
-                //Loop through and collect the information.
-                Iterator iterator = versions.iterator();
-                while(historyCount < maxEntries && iterator.hasNext())
-                {
-                    Com4jObject object = (Com4jObject)iterator.next();
-                    IVSSVersion version = object.queryInterface(IVSSVersion.class);
+		List<String> deletions = new ArrayList<String>();
+		List<Object[]> entries = getHistoryEntries(paths, since, MAX_HISTORY_ENTRIES, 
+				deletions, listener);
+		boolean removed = !deletions.isEmpty() || entries.size() >= MAX_HISTORY_ENTRIES;
+		for(Object[] entry : entries)
+		{
+			String action = (String)entry[3];
+			if(action != null && (VSSAction.classify(action) == VSSAction.DESTROYED 
+					|| action.startsWith("Renamed") || action.startsWith("Moved")))
+			{
+				removed = true;
+			}
+		}
 
-                    //Break off if the history entries are before the given start
-                    //date.
-                    Date historyDate = version.date();
-                    if(historyDate.before(startDate))
-                    {
-                        version.dispose();
-                        object.dispose();
-                        break;
-                    }
+		if(removed)
+		{
+			listener.getLogger().println("[get] Items removed since the prefetch, getting again from scratch");
+			Util.deleteContentsRecursive(new File(localPath));
+		}
+		else
+		{
+			listener.getLogger().println("[get] Changes since the prefetch, getting again");
+		}
+		get(localPath, vssPath, listener);
+	}
 
-                    //Form the history entry.
-                    int versionNo = version.versionNumber();
-                    IVSSItem historyItem = version.vssItem();
-                    Object[] content = new Object[6];
-                    content[0] = historyItem.spec();
-                    content[1] = version.username();
-                    content[2] = version.comment();
-                    content[3] = version.action().trim();
-                    content[4] = DATE_FORMAT.format(version.date());
-                    content[5] = Integer.toString(versionNo);
+	/**
+	 * Tells whether there are history entries of the given paths after the
+	 * start date. Only the dates of the versions are read from VSS, unless
+	 * the items are needed to filter the entries.
+	 * 
+	 * @param paths Directory paths in the VSS server.
+	 * @param startDate The date after which the history entries are looked for.
+	 * @return True if there are history entries.
+	 * @throws IOException Any error while getting the history information.
+	 * @throws InterruptedException The build has been aborted.
+	 * 
+	 */
+	boolean hasHistoryEntries(String[] paths, Date startDate, TaskListener listener) 
+			throws IOException, InterruptedException
+	{
+		return !getHistoryEntries(paths, startDate, 1, null, false, listener).isEmpty();
+	}
 
-                    //Workaround: VSS returns folder name for the files deleted or 
-                    //added under it. This is workaround to find files added/deleted
-                    //under a folder. Version no can not be 1 for files added or
-                    //deleted. This check is only for safety.
-                    if(versionNo != 1 && (DELETED_ACTION.equals(content[3]) || 
-                       DESTROYED_ACTION.equals(content[3]) || 
-                       ADDED_ACTION.equals(content[3]) || 
-                       RECOVERED_ACTION.equals(content[3])))
-                    {
-                        IVSSItem preItem = historyItem.version(versionNo - 1);
+	/**
+	 * Returns the history entries of the given paths after the start date. 
+	 * Maximum specified number of entries will be collected.
+	 * 
+	 * @param details Indicates whether the file, user, comment and action of
+	 * the entries are needed. Without them only the date is sure to be set.
+	 * @see #getHistoryEntries(String[], Date, int, List, TaskListener)
+	 * 
+	 */
+	List<Object[]> getHistoryEntries(final String[] paths, final Date startDate, 
+			final int maxEntries, final List<String> deletions, final boolean details, 
+			final TaskListener listener) throws IOException, InterruptedException
+	{
+		if(paths.length == 0)
+		{
+			return new ArrayList<Object[]>();
+		}
+		return VSSOperation.run("history of " + serverPath, historyTimeout, 
+				createHistoryOperation(paths, startDate, maxEntries, deletions, details, listener));
+	}
 
-                        //Collect files from this version and previous version.
-                        Set post = collectItems(historyItem);
-                        Set pre  = collectItems(preItem);
+	/**
+	 * Returns the history entries of the given paths after the start date
+	 * for polling. The history is read on the VSS session of the database, 
+	 * shared by the polls of all the jobs using it.
+	 * 
+	 * @see #getHistoryEntries(String[], Date, int, List, boolean, TaskListener)
+	 * 
+	 */
+	private List<Object[]> pollHistoryEntries(String[] paths, Date startDate, int maxEntries, 
+			boolean details, TaskListener listener) throws IOException, InterruptedException
+	{
+		if(paths.length == 0)
+		{
+			return new ArrayList<Object[]>();
+		}
+		return VSSSession.run("history of " + serverPath, historyTimeout, serverPath, user, password, 
+				databaseFactory != null ? databaseFactory : VSSDatabaseFactory.COM, 
+				createHistoryOperation(paths, startDate, maxEntries, null, details, listener));
+	}
 
-                        preItem.dispose();
+	/**
+	 * Creates the operation reading the history entries of the given paths
+	 * after the start date. The benchmarks call it on their own thread.
+	 * 
+	 * @see #getHistoryEntries(String[], Date, int, List, boolean, TaskListener)
+	 * 
+	 */
+	Callable<List<Object[]>> createHistoryOperation(final String[] paths, final Date startDate, 
+			final int maxEntries, final List<String> deletions, final boolean details, 
+			final TaskListener listener)
+	{
+		return new Callable<List<Object[]>>()
+		{
+			public List<Object[]> call() throws IOException, InterruptedException
+			{
+				if(useHistoryStore)
+				{
+					return readStoredHistory(paths, startDate, maxEntries, deletions, listener);
+				}
+				return walkHistory(paths, startDate, maxEntries, deletions, details, listener);
+			}
+		};
+	}
+
+	/**
+	 * Walks the history entries after the start date, from the database 
+	 * files if so configured or else through COM. Runs on the thread of the
+	 * operation.
+	 * 
+	 * @see #getHistoryEntries(String[], Date, int, List, boolean, TaskListener)
+	 * 
+	 */
+	private List<Object[]> walkHistory(String[] paths, Date startDate, int maxEntries, 
+			List<String> deletions, boolean details, TaskListener listener) 
+			throws IOException, InterruptedException
+	{
+		if(readHistoryDirectly)
+		{
+			try
+			{
+				return readHistory(paths, startDate, maxEntries, deletions, listener);
+			}
+			catch(VSSFormatException error)
+			{
+				listener.getLogger().println("[history] Unable to read the database files, using COM: " 
+						+ error.getMessage());
+			}
+		}
+		return collectHistory(paths, startDate, maxEntries, deletions, details, listener);
+	}
+
+	/**
+	 * Reads the history entries after the start date from the history 
+	 * stores of the paths, walking only the entries they do not hold yet.
+	 * A path whose store can not be used is walked as usual. Runs on the 
+	 * thread of the operation.
+	 * 
+	 * @see #getHistoryEntries(String[], Date, int, List, TaskListener)
+	 * 
+	 */
+	private List<Object[]> readStoredHistory(String[] paths, Date startDate, int maxEntries, 
+			List<String> deletions, TaskListener listener) 
+			throws IOException, InterruptedException
+	{
+		List<Object[]> historyEntries = new ArrayList<Object[]>();
+		for (String vssPath : paths)
+		{
+			int remaining = maxEntries - historyEntries.size();
+			if(remaining <= 0)
+			{
+				break;
+			}
+
+			List<Object[]> entries = null;
+			String key = getHistoryStoreKey(vssPath);
+			VSSHistoryStore store = null;
+			try
+			{
+				store = VSSHistoryStore.open(key);
+			}
+			catch(IOException error)
+			{
+				reportHistoryStoreError(key, error, listener);
+			}
+			if(store != null)
+			{
+				synchronized(store)
+				{
+					//Walk what the store does not hold, the changes after it
+					//or, for older changes, everything from the start date.
+					Date from = store.covers(startDate, remaining) ? store.getCoveredTo() : startDate;
+					Date to = new Date(System.currentTimeMillis() - PREFETCH_CLOCK_MARGIN);
+					int walk = Math.max(remaining, HISTORY_STORE_WALK);
+					List<Object[]> walked = walkHistory(new String[]{vssPath}, from, 
+							walk, null, true, listener);
+					if(walked.size() >= walk)
+					{
+						Date oldest = (Date)walked.get(walked.size() - 1)[ENTRY_DATE];
+						from = new Date(oldest.getTime() + 1);
+					}
+					try
+					{
+						store.append(walked, from, to);
+						entries = store.read(startDate, remaining, 
+								VSSDatabaseReader.trimPath(vssPath).length(), deletions);
+						listener.getLogger().println("[history] " + entries.size() 
+								+ " changes of " + vssPath + " read from the history store");
+					}
+					catch(IOException error)
+					{
+						reportHistoryStoreError(key, error, listener);
+					}
+				}
+			}
+			if(entries == null)
+			{
+				entries = walkHistory(new String[]{vssPath}, startDate, remaining, 
+						deletions, true, listener);
+			}
+			historyEntries.addAll(entries);
+		}
+		return historyEntries;
+	}
+
+	/**
+	 * Reads the history entries after the start date directly from the 
+	 * database files. Runs on the thread of the operation.
+	 * 
+	 * @throws VSSFormatException The database files could not be understood.
+	 * @see #getHistoryEntries(String[], Date, int, List, TaskListener)
+	 * 
+	 */
+	private List<Object[]> readHistory(String[] paths, Date startDate, int maxEntries, 
+			List<String> deletions, TaskListener listener) 
+			throws IOException, InterruptedException
+	{
+        listener.getLogger().println("[history] Reading list of changes since " + startDate 
+                + " from the database files");
+
+        VSSDatabaseReader reader = new VSSDatabaseReader(serverPath);
+        List<Object[]> historyEntries;
+        try
+        {
+            historyEntries = reader.getHistory(paths, isRecursive, 
+                    getPathFilter(), startDate, maxEntries, deletions);
+        }
+        finally
+        {
+            //The files must not stay open, VSS could not write to them.
+            reader.close();
+        }
+
+        listener.getLogger().println("[history] " + historyEntries.size() + " files changed since last build."); 
+        return historyEntries;
+	}
+
+	/**
+	 * Reports a history store that can not be used, the history being 
+	 * walked instead.
+	 * 
+	 */
+	private static void reportHistoryStoreError(String key, IOException error, 
+			TaskListener listener)
+	{
+		VSSHistoryStore.log(key, error);
+		listener.getLogger().println("[history] Unable to use the history store, walking the history: " 
+				+ error.getMessage());
+	}
+
+	/**
+	 * Collects the history entries after the start date from VSS. Runs on
+	 * the thread of the operation.
+	 * 
+	 * @see #getHistoryEntries(String[], Date, int, List, TaskListener)
+	 * 
+	 */
+	private List<Object[]> collectHistory(String[] paths, Date startDate, int maxEntries, 
+			List<String> deletions, boolean details, TaskListener listener) 
+			throws IOException, InterruptedException
+	{
+        listener.getLogger().println("[history] Getting list of changes since " + startDate);
+        
+        if(!new File(serverPath).exists())
+        {
+            throw new IOException(serverPath + " doesn't exist. Configuration error?");
+        }
+
+        if(new File(serverPath).isDirectory())
+        {
+            throw new IOException(serverPath + " is a directory. Please specify the location of srcsafe.ini");
+        }
+
+        //Open database.
+        ComArena arena = new ComArena("history of " + serverPath);
+        try
+        {
+            IVSSDatabase database = openDatabase(arena, "[history]", listener);
+
+			//Get history.
+            VSSPathFilter filter = getPathFilter();
+            List<Object[]> historyEntries = new ArrayList<Object[]>();
+			int historyCount = 0;
+			for (String vssPath : paths)
+            {    
+                IVSSItem vssItem = arena.add(database.vssItem(vssPath, false));
+                int vssLength = vssItem.spec().length();
+                int flag;
+                if(isRecursive)
+                {
+                    flag = VSSFlags.VSSFLAG_RECURSYES.comEnumValue();
+                }
+                else
+                {
+                    flag = VSSFlags.VSSFLAG_RECURSNO.comEnumValue();
+                }
+                IVSSVersions versions = arena.add(vssItem.versions(flag));
+
+                //Loop through and collect the information. Each property is a
+                //call to VSS, so each is read once and only if needed.
+                boolean needItem = details || deletions != null || filter.isActive();
+                Iterator<Com4jObject> iterator = arena.addEnumerator(versions.iterator());
+                while(historyCount < maxEntries && iterator.hasNext())
+                {
+                    VSSOperation.checkInterrupted();
+
+                    Com4jObject object = arena.add(iterator.next());
+                    IVSSVersion version = arena.add(object.queryInterface(IVSSVersion.class));
+
+                    //Break off if the history entries are before the given start
+                    //date.
+                    Date historyDate = version.date();
+                    if(historyDate.before(startDate))
+                    {
+                        arena.release(version);
+                        arena.release(object);
+                        break;
+                    }
+
+                    //Form the history entry.
+                    Object[] content = new Object[7];
+                    content[4] = formatDate(historyDate);
+                    content[ENTRY_DATE] = historyDate;
+                    if(!needItem)
+                    {
+                        arena.release(version);
+                        arena.release(object);
+                        historyEntries.add(content);
+                        historyCount++;
+                        continue;
+                    }
+
+                    int versionNo = version.versionNumber();
+                    String actionText = version.action().trim();
+                    VSSAction action = VSSAction.classify(actionText);
+                    IVSSItem historyItem = arena.add(version.vssItem());
+                    content[0] = historyItem.spec();
+                    content[3] = actionText;
+                    content[5] = Integer.toString(versionNo);
+                    if(details)
+                    {
+                        content[1] = version.username();
+                        content[2] = version.comment();
+                    }
+
+                    //Workaround: VSS returns folder name for the files deleted or 
+                    //added under it. This is workaround to find files added/deleted
+                    //under a folder. Version no can not be 1 for files added or
+                    //deleted. This check is only for safety.
+                    if(versionNo != 1 && action.changesProject())
+                    {
+                        IVSSItem preItem = arena.add(historyItem.version(versionNo - 1));
+
+                        //Collect files from this version and previous version.
+                        Set post = collectItems(arena, historyItem);
+                        Set pre  = collectItems(arena, preItem);
+
+                        arena.release(preItem);
 
                         //Collect the added/deleted file to post.
-                        if(ADDED_ACTION.equals(content[3]) || 
-                           RECOVERED_ACTION.equals(content[3]))
+                        if(action.isAddition())
                         {
                             post.removeAll(pre);
                         }
@@ -390,35 +1017,36 @@ public class VSSSCM extends SCM
 
                     }
 
+                    //Dispose
+                    arena.release(historyItem);
+                    arena.release(version);
+                    arena.release(object);
+
+                    //Leave out what the job does not work with.
+                    if(!filter.includes(vssPath, (String)content[0]))
+                    {
+                        continue;
+                    }
+
                     //Update deletions. It will be used if useUpdate is set.
-                    if(deletions != null && (DELETED_ACTION.equals(content[3]) || 
-                            RECOVERED_ACTION.equals(content[3])))
+                    if(deletions != null && (action == VSSAction.DELETED || 
+                            action == VSSAction.RECOVERED))
                     {
                         deletions.add(((String)content[0]).substring(vssLength));
                     }
 
-                    //Dispose
-                    historyItem.dispose();
-                    version.dispose();
-                    object.dispose();
-
                     historyEntries.add(content);
 
                     historyCount++;
                 }
 
-                //Dispose.
-                while(iterator.hasNext())
-                {
-                    Com4jObject object = (Com4jObject)iterator.next();
-                    object.dispose();
-                }
-
-                versions.dispose();
-                vssItem.dispose();
+                //The versions left are not enumerated, creating them only to
+                //release them would take a call each. The enumerator holds a
+                //handle until it is exhausted, so it is released now.
+                arena.releaseEnumerator(iterator);
+                arena.release(versions);
+                arena.release(vssItem);
             }
-            
-			database.dispose();
 
             listener.getLogger().println("[history] " + historyEntries.size() + " files changed since last build."); 
             
@@ -429,6 +1057,42 @@ public class VSSSCM extends SCM
 			//Some COM error.
 			throw new IOException2(error);
 		}
+		finally
+		{
+			arena.close();
+		}
+	}
+
+	/**
+	 * Opens the VSS database. The database is disposed with the arena.
+	 * 
+	 * @param arena Arena of the operation.
+	 * @param prefix Prefix of the log messages.
+	 * @return The opened database.
+	 * @throws IOException Any error while opening the database.
+	 * 
+	 */
+	private IVSSDatabase openDatabase(ComArena arena, String prefix, TaskListener listener) throws IOException
+	{
+		try
+		{
+			//Polling shares the database of its session.
+			VSSSession session = VSSSession.current();
+			if(session != null)
+			{
+				return session.getDatabase();
+			}
+
+			VSSDatabaseFactory factory = databaseFactory != null ? databaseFactory : VSSDatabaseFactory.COM;
+			IVSSDatabase database = arena.add(factory.createDatabase());
+			database.open(serverPath, user, password);
+			return database;
+		}
+		catch(RuntimeException error)
+		{
+            listener.getLogger().println(prefix + " Unable to open database " + serverPath);
+			throw new IOException2(error);
+		}
 	}
 
 	/**
@@ -440,7 +1104,7 @@ public class VSSSCM extends SCM
 	 * @throws IOException Any error while writing the log file.
 	 * 
 	 */
-	private void save(File file, List<Object[]> history) throws IOException
+	void save(File file, List<Object[]> history) throws IOException
 	{
 		PrintWriter stream = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file),"UTF-8"));
 		Object[] entry;
@@ -461,6 +1125,21 @@ public class VSSSCM extends SCM
 				stream.print(TAGS[tag]);
 				stream.println('>');
 			}
+			if(entry.length > ENTRY_COMMENTS && ((Integer)entry[ENTRY_COUNT]).intValue() > 1)
+			{
+				//A collapsed entry, with the versions and comments of the file.
+				stream.print("\t\t<count>");
+				stream.print(entry[ENTRY_COUNT]);
+				stream.println("</count>");
+				stream.println("\t\t<comments>");
+				for(Object comment : (List)entry[ENTRY_COMMENTS])
+				{
+					stream.print("\t\t\t<text>");
+					stream.print(escapeForXml(comment));
+					stream.println("</text>");
+				}
+				stream.println("\t\t</comments>");
+			}
 			stream.println("\t</entry>");
 		}
 		stream.println("</history>");
@@ -468,196 +1147,1036 @@ public class VSSSCM extends SCM
 	}
 
 	/**
-	 * Gets the latest from the VSS to the given local path.
+	 * Gets the latest from the VSS to the given local path. Recursive gets are
+	 * done folder by folder so that the progress can be reported.
+	 * 
+	 * @param localPath Local directory path where the information has to be
+	 * retrieved.
+	 * @throws IOException Any error while getting the latest.
+	 * @throws InterruptedException The build has been aborted.
+	 * 
+	 */
+	private void get(final String localPath, final String vssPath, final TaskListener listener) 
+			throws IOException, InterruptedException
+	{
+        listener.getLogger().println("[get] Getting source code from: " + vssPath);
+
+		VSSOperation.run("get of " + vssPath, getTimeout, new File(localPath), listener.getLogger(), 
+				new Callable<Object>()
+		{
+			public Object call() throws IOException, InterruptedException
+			{
+				fetch(localPath, vssPath, listener);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Fetches the latest from VSS to the given local path. Runs on the thread
+	 * of the operation.
+	 * 
+	 * @see #get(String, String, TaskListener)
+	 * 
+	 */
+	private void fetch(String localPath, String vssPath, TaskListener listener) 
+			throws IOException, InterruptedException
+	{
+		ComArena arena = new ComArena("get of " + vssPath);
+		try
+		{
+			//Open database.
+			IVSSDatabase database = openDatabase(arena, "[get]", listener);
+            
+			//Get the patch to the given VSS path, as of its pin if any.
+			VSSPin pin = VSSPin.parse(vssPath);
+			String spec = pin != null ? pin.getPath() : vssPath;
+			IVSSItem vssItem = arena.add(database.vssItem(spec, false));
+			if(pin != null)
+			{
+				listener.getLogger().println("[get] Getting " + pin);
+				vssItem = arena.add(vssItem.version(pin.getVersion()));
+			}
+			int flags = VSSFlags.VSSFLAG_FORCEDIRNO.comEnumValue();
+
+			//Writable flag for the files fetched.
+			if(isWritable)
+			{
+				flags |= VSSFlags.VSSFLAG_USERRONO.comEnumValue();
+			}
+			else
+			{
+				flags |= VSSFlags.VSSFLAG_USERROYES.comEnumValue();
+			}
+
+			//Each folder is fetched on its own. Recursion is done by walking
+			//the sub folders.
+			flags |= VSSFlags.VSSFLAG_RECURSNO.comEnumValue();
+
+			//Get the latest from vss.
+			VSSGetProgress progress = new VSSGetProgress(listener.getLogger());
+			if(vssItem.type() != ITEM_TYPE_PROJECT)
+			{
+				vssItem.get(new Holder<String>(localPath), flags);
+			}
+			else if(isRecursive && fetchSessions > 1 && pin == null)
+			{
+				fetchInParallel(arena, database, vssItem, localPath, flags, progress, listener);
+			}
+			else
+			{
+				walk(arena, spec, vssItem, localPath, flags, isRecursive, progress);
+			}
+			progress.finish();
+		}
+		catch(RuntimeException error)
+		{
+			//Some COM error.
+			throw new IOException2(error);
+		}
+		finally
+		{
+			arena.close();
+		}
+	}
+
+	/**
+	 * Gets the given folder and, if recursive, all its sub folders one folder
+	 * at a time. The folders are released once fetched.
+	 * 
+	 * @param arena Arena of the operation.
+	 * @param rootSpec The VSS path of the job the folder is under.
+	 * @param root The folder to start with.
+	 * @param localPath Local directory path of the folder.
+	 * @param flags Flags for the get, must not be recursive.
+	 * @param recursive Indicates whether the sub folders are fetched.
+	 * @param progress Progress to be updated for each folder.
+	 * @throws InterruptedException The build has been aborted.
+	 * 
+	 */
+	private void walk(ComArena arena, String rootSpec, IVSSItem root, String localPath, 
+			int flags, boolean recursive, VSSGetProgress progress)
+			throws InterruptedException
+	{
+		VSSPathFilter filter = getPathFilter();
+		LinkedList<Object[]> pending = new LinkedList<Object[]>();
+		pending.add(new Object[]{root, localPath});
+		while(!pending.isEmpty())
+		{
+			VSSOperation.checkInterrupted();
+
+			Object[] next = pending.removeFirst();
+			IVSSItem folder = (IVSSItem)next[0];
+			File local = new File((String)next[1]);
+			local.mkdirs();
+
+			//Get the files of this folder, one by one if only some of
+			//them are wanted.
+			long start = System.currentTimeMillis();
+			String spec = folder.spec();
+			if(!filter.isActive())
+			{
+				folder.get(new Holder<String>(local.getPath()), flags);
+			}
+
+			//Queue the sub folders.
+			if(recursive || filter.isActive())
+			{
+				IVSSItems items = arena.add(folder.items(false));
+				Iterator iterator = items.iterator();
+				while(iterator.hasNext())
+				{
+					Com4jObject object = arena.add((Com4jObject)iterator.next());
+					IVSSItem item = arena.add(object.queryInterface(IVSSItem.class));
+					arena.release(object);
+					if(item.type() == ITEM_TYPE_PROJECT)
+					{
+						if(recursive && filter.includesFolder(rootSpec, item.spec()))
+						{
+							pending.add(new Object[]{item, 
+									new File(local, item.name()).getPath()});
+							continue;
+						}
+					}
+					else if(filter.isActive() && filter.includes(rootSpec, item.spec()))
+					{
+						item.get(new Holder<String>(new File(local, item.name()).getPath()), flags);
+					}
+					arena.release(item);
+				}
+				arena.release(items);
+			}
+			arena.release(folder);
+			long millis = System.currentTimeMillis() - start;
+
+			//Count what has been fetched.
+			int fileCount = 0;
+			long byteCount = 0;
+			File[] children = local.listFiles();
+			if(children != null)
+			{
+				for(File child : children)
+				{
+					if(child.isFile())
+					{
+						fileCount++;
+						byteCount += child.length();
+					}
+				}
+			}
+			progress.folderDone(spec, fileCount, byteCount, millis, pending.size());
+		}
+	}
+
+	/**
+	 * Gets a recursive path with several VSS sessions. The top levels of the
+	 * tree are split in sub trees, which are fetched by a pool of sessions,
+	 * the largest first. Sub trees that fail are tried again on their own.
+	 * 
+	 * @param arena Arena of the operation.
+	 * @param database The database of the operation.
+	 * @param root The folder of the path.
+	 * @param localPath Local directory path of the folder.
+	 * @param flags Flags for the get, must not be recursive.
+	 * @param progress Progress to be updated for each folder.
+	 * @throws IOException Some sub trees could not be fetched.
+	 * @throws InterruptedException The build has been aborted.
+	 * 
+	 */
+	private void fetchInParallel(ComArena arena, IVSSDatabase database, IVSSItem root, 
+			String localPath, final int flags, final VSSGetProgress progress, 
+			final TaskListener listener) throws IOException, InterruptedException
+	{
+		final String rootSpec = root.spec();
+
+		//Split the tree, one level deeper if there are too few sub trees.
+		List<Object[]> units = listSubtrees(arena, rootSpec, root, localPath);
+		if(units.size() < fetchSessions)
+		{
+			List<Object[]> expanded = new ArrayList<Object[]>();
+			for(Object[] unit : units)
+			{
+				IVSSItem folder = arena.add(database.vssItem((String)unit[0], false));
+				expanded.addAll(listSubtrees(arena, rootSpec, folder, (String)unit[1]));
+				arena.release(folder);
+				expanded.add(new Object[]{unit[0], unit[1], Boolean.FALSE, unit[3], 
+						Integer.valueOf(0)});
+			}
+			units = expanded;
+		}
+		units.add(new Object[]{rootSpec, localPath, Boolean.FALSE, Integer.valueOf(0), 
+				Integer.valueOf(0)});
+
+		//Largest first, so that the sessions end at about the same time.
+		Collections.sort(units, new Comparator<Object[]>()
+		{
+			public int compare(Object[] a, Object[] b)
+			{
+				return ((Integer)b[3]).compareTo((Integer)a[3]);
+			}
+		});
+		final LinkedList<Object[]> queue = new LinkedList<Object[]>(units);
+		final Map<String, String> failures = new TreeMap<String, String>();
+		listener.getLogger().println("[get] Getting " + units.size() + " sub trees with " 
+				+ fetchSessions + " sessions");
+
+		int sessions = Math.min(fetchSessions, units.size());
+		ExecutorService pool = Executors.newFixedThreadPool(sessions);
+		try
+		{
+			List<Future<Object>> workers = new ArrayList<Future<Object>>();
+			for(int index = 0;index < sessions;index ++)
+			{
+				workers.add(pool.submit(new Callable<Object>()
+				{
+					public Object call() throws InterruptedException
+					{
+						fetchSubtrees(queue, failures, rootSpec, flags, progress, listener);
+						return null;
+					}
+				}));
+			}
+			for(Future<Object> worker : workers)
+			{
+				try
+				{
+					worker.get();
+				}
+				catch(ExecutionException error)
+				{
+					throw new IOException2(error.getCause());
+				}
+			}
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+
+		if(!failures.isEmpty())
+		{
+			throw new IOException("Failed to get " + failures.size() + " sub trees of " 
+					+ rootSpec + ": " + failures);
+		}
+	}
+
+	/**
+	 * Fetches sub trees from the queue with its own VSS session until the
+	 * queue is empty. Runs on a thread of the session pool.
+	 * 
+	 * @param queue Sub trees to fetch.
+	 * @param failures Sub trees that could not be fetched, with the error.
+	 * @param rootSpec The VSS path of the job.
+	 * @param flags Flags for the get, must not be recursive.
+	 * @param progress Progress to be updated for each folder.
+	 * @throws InterruptedException The build has been aborted.
+	 * 
+	 */
+	private void fetchSubtrees(LinkedList<Object[]> queue, Map<String, String> failures, 
+			String rootSpec, int flags, VSSGetProgress progress, TaskListener listener) 
+			throws InterruptedException
+	{
+		ComArena session = null;
+		IVSSDatabase database = null;
+		try
+		{
+			while(true)
+			{
+				VSSOperation.checkInterrupted();
+
+				Object[] unit;
+				synchronized(queue)
+				{
+					if(queue.isEmpty())
+					{
+						return;
+					}
+					unit = queue.removeFirst();
+				}
+
+				String spec = (String)unit[0];
+				int attempt = ((Integer)unit[4]).intValue();
+				try
+				{
+					if(session == null)
+					{
+						session = new ComArena("get of " + spec);
+						database = openDatabase(session, "[get]", listener);
+					}
+					IVSSItem folder = session.add(database.vssItem(spec, false));
+					walk(session, rootSpec, folder, (String)unit[1], flags, 
+							((Boolean)unit[2]).booleanValue(), progress);
+				}
+				catch(Exception error)
+				{
+					if(error instanceof InterruptedException)
+					{
+						throw (InterruptedException)error;
+					}
+
+					//Start again with a new session.
+					session.close();
+					session = null;
+					if(attempt < SUBTREE_RETRIES)
+					{
+						listener.getLogger().println("[get] Failed to get " + spec 
+								+ ", trying again: " + error);
+						unit[4] = Integer.valueOf(attempt + 1);
+						synchronized(queue)
+						{
+							queue.add(unit);
+						}
+					}
+					else
+					{
+						listener.getLogger().println("[get] Failed to get " + spec + ": " + error);
+						synchronized(failures)
+						{
+							failures.put(spec, error.toString());
+						}
+					}
+				}
+			}
+		}
+		finally
+		{
+			if(session != null)
+			{
+				session.close();
+			}
+		}
+	}
+
+	/**
+	 * Lists the sub folders of a folder as sub trees to be fetched.
+	 * 
+	 * @param arena Arena of the operation.
+	 * @param rootSpec The VSS path of the job.
+	 * @param folder The folder.
+	 * @param localPath Local directory path of the folder.
+	 * @return The sub trees as VSS path, local path, whether recursive, 
+	 * estimated size and attempts.
+	 * 
+	 */
+	private List<Object[]> listSubtrees(ComArena arena, String rootSpec, IVSSItem folder, 
+			String localPath)
+	{
+		VSSPathFilter filter = getPathFilter();
+		List<Object[]> subtrees = new ArrayList<Object[]>();
+		IVSSItems items = arena.add(folder.items(false));
+		Iterator iterator = items.iterator();
+		while(iterator.hasNext())
+		{
+			Com4jObject object = arena.add((Com4jObject)iterator.next());
+			IVSSItem item = arena.add(object.queryInterface(IVSSItem.class));
+			arena.release(object);
+			String spec = item.spec();
+			if(item.type() == ITEM_TYPE_PROJECT && filter.includesFolder(rootSpec, spec))
+			{
+				//The number of items directly in it stands for its size.
+				IVSSItems children = arena.add(item.items(false));
+				subtrees.add(new Object[]{spec, new File(localPath, item.name()).getPath(),
+						Boolean.TRUE, Integer.valueOf(children.count()), Integer.valueOf(0)});
+				arena.release(children);
+			}
+			arena.release(item);
+		}
+		arena.release(items);
+		return subtrees;
+	}
+
+	/**
+	 * Copies the files of the given path from the shadow folder, leaving
+	 * the files that are already up to date.
+	 * 
+	 * @param localPath Local directory path where the files are copied.
+	 * @param vssPath Directory path in the VSS server.
+	 * @throws IOException Any error while copying.
+	 * @throws InterruptedException The build has been aborted.
+	 * 
+	 */
+	private void syncFromShadowFolder(String localPath, String vssPath, TaskListener listener) 
+			throws IOException, InterruptedException
+	{
+		File source = new File(shadowFolder, vssPath.substring(2));
+		listener.getLogger().println("[get] Synchronizing " + vssPath + " from shadow folder " + source);
+
+		long start = System.currentTimeMillis();
+		VSSTreeSync sync = new VSSTreeSync(isRecursive, !isWritable, getPathFilter(), vssPath);
+		sync.sync(source, new File(localPath));
+		listener.getLogger().println("[get] " + sync.getSummary() + " in " 
+				+ VSSGetProgress.formatDuration(System.currentTimeMillis() - start));
+	}
+
+	/**
+	 * Returns the fetcher getting the given path into a staging area.
+	 * 
+	 * @param vssPath Directory path in the VSS server.
+	 * @param listener Listener of the fetch.
+	 * @return The fetcher.
+	 * 
+	 */
+	private VSSFetchCoalescer.Fetcher createFetcher(final String vssPath, final TaskListener listener)
+	{
+		return new VSSFetchCoalescer.Fetcher()
+		{
+			public void fetch(File directory) throws IOException, InterruptedException
+			{
+				get(directory.getPath(), vssPath, listener);
+			}
+		};
+	}
+
+	/**
+	 * Returns the key identifying the content fetched for the given path.
+	 * Fetches with equal keys get the same files.
+	 * 
+	 * @param vssPath Directory path in the VSS server.
+	 * @return The key.
+	 * 
+	 */
+	private String getFetchKey(String vssPath)
+	{
+		return serverPath + '|' + user + '|' + vssPath + '|' + isWritable + '|' + isRecursive
+			+ '|' + includes + '|' + excludes;
+	}
+
+	/**
+	 * Returns the key of the snapshot of a pinned path. A label can be moved
+	 * to other versions, so the key of a label pin also holds the version 
+	 * the label is on now.
+	 * 
+	 * @param configuredPath The VSS path with its pin.
+	 * @return The key.
+	 * @throws IOException Any error while looking up the label.
+	 * @throws InterruptedException The build has been aborted.
+	 * 
+	 */
+	private String getSnapshotKey(final String configuredPath, final TaskListener listener) 
+			throws IOException, InterruptedException
+	{
+		final VSSPin pin = VSSPin.parse(configuredPath);
+		if(!(pin.getVersion() instanceof String))
+		{
+			return getFetchKey(configuredPath);
+		}
+
+		Integer version = VSSOperation.run("label lookup of " + configuredPath, getTimeout, 
+				new Callable<Integer>()
+		{
+			public Integer call() throws IOException
+			{
+				ComArena arena = new ComArena("label lookup of " + configuredPath);
+				try
+				{
+					IVSSDatabase database = openDatabase(arena, "[get]", listener);
+					IVSSItem vssItem = arena.add(database.vssItem(pin.getPath(), false));
+					IVSSItem labeled = arena.add(vssItem.version(pin.getVersion()));
+					return Integer.valueOf(labeled.versionNumber());
+				}
+				catch(RuntimeException error)
+				{
+					//Some COM error.
+					throw new IOException2(error);
+				}
+				finally
+				{
+					arena.close();
+				}
+			}
+		});
+		return getFetchKey(configuredPath) + '|' + version;
+	}
+
+	/**
+	 * Returns the key of the history store of the given path. The store
+	 * holds the entries seen through the filter.
+	 * 
+	 * @param vssPath The VSS path.
+	 * @return The key.
+	 * 
+	 */
+	private String getHistoryStoreKey(String vssPath)
+	{
+		return serverPath + '|' + user + '|' + vssPath + '|' + isRecursive
+			+ '|' + includes + '|' + excludes;
+	}
+
+	/**
+	 * Returns the filter selecting the items to work with.
+	 * 
+	 * @return The filter.
+	 * 
+	 */
+	private VSSPathFilter getPathFilter()
+	{
+		if(pathFilter == null)
+		{
+			pathFilter = new VSSPathFilter(includes, excludes);
+		}
+		return pathFilter;
+	}
+
+	/**
+	 * Delete the given list of files.
+	 * 
+	 * @param workspace Base folder.
+	 * @param deletions Files to be deleted recursively.
+	 * 
+	 */
+	private void delete(File workspace, List<String> deletions)
+	{
+        for (String deletion : deletions)
+        {
+            File file = new File(workspace,deletion);
+            if(file.exists())
+            {
+                try
+                {
+                    Util.deleteRecursive(file);
+                }
+                catch(IOException e)
+                {
+                    //Just ignore the error.
+                }
+            }
+        }
+    }
+
+	/**
+	 * Returns the VSS paths whose history is followed, leaving out the 
+	 * pinned paths.
+	 * 
+	 * @return The paths.
+	 */
+	private String[] getTrackedPaths()
+	{
+		List<String> paths = new ArrayList<String>();
+		for (String vssPath : vssPaths)
+		{
+			if(!VSSPin.isPinned(vssPath))
+			{
+				paths.add(vssPath);
+			}
+		}
+		return paths.toArray(new String[paths.size()]);
+	}
+
+	/**
+	 * Formats the date of a history entry for the change log.
+	 * 
+	 * @param date Date of the entry.
+	 * @return The formatted date.
+	 */
+	static String formatDate(Date date)
+	{
+		//The format is shared by all the history operations.
+		synchronized(DATE_FORMAT)
+		{
+			return DATE_FORMAT.format(date);
+		}
+	}
+
+	/**
+	 * Converts the input in the way that it can be written to the XML.
+	 * Special characters are converted to XML understandable way.
+	 * 
+	 * @param object The object to be escaped.
+	 * @return Escaped string that can be written to XML.
+	 */
+	public static String escapeForXml(Object object)
+	{
+		if(object == null)
+		{
+			return null;
+		}
+
+		//Loop through and replace the special chars.
+		String string = object.toString();
+		int size = string.length();
+		char ch;
+        StringBuilder escapedString = new StringBuilder(size);
+		for(int index = 0;index < size;index ++)
+		{
+			//Convert special chars.
+			ch = string.charAt(index);
+			switch(ch)
+			{
+				case '&'  : escapedString.append("&amp;");	break;
+				case '<'  : escapedString.append("&lt;");	break;
+				case '>'  : escapedString.append("&gt;");	break;
+				case '\'' : escapedString.append("&apos;");	break;
+				case '\"' : escapedString.append("&quot;");break;
+				default: 	escapedString.append(ch);
+			}
+		}
+
+		return escapedString.toString();
+	}
+
+	/**
+	 * Collects the sub items from the folder given.
+	 * 
+	 * @param arena Arena of the operation.
+	 * @param folder Folder to be checked.
+	 * @return The set of sub items from the folder.
+	 */
+	private Set collectItems(ComArena arena, IVSSItem folder)
+	{
+		//Get the items from the folder.
+		IVSSItems items = arena.add(folder.items(false));
+		Iterator iterator = items.iterator();
+		Set<String> itemSet = new HashSet<String>(items.count());
+
+		//Just copy the items to a set.
+		while(iterator.hasNext())
+		{
+            Com4jObject object = arena.add((Com4jObject)iterator.next());
+            IVSSItem item = arena.add(object.queryInterface(IVSSItem.class));
+			itemSet.add(item.spec());
+            
+            // dispose
+            arena.release(item);
+            arena.release(object);
+		}
+        
+        // dispose
+        // according to other code in this class, when iterator.hasNext is
+        // false you don't need to dispose the iterator.
+        arena.release(items);
+        
+		return itemSet;
+	}
+
+	/**
+	 * 
+	 * Returns the change log parser.
+	 * 
+	 */
+	public ChangeLogParser createChangeLogParser()
+	{
+		return new VSSChangeLogParser();
+	}
+
+	//Attributes.
+	/**
+	 * 
+	 * @return The writable flag.
+	 * 
+	 */
+	public boolean isWritable()
+	{
+		return isWritable;
+	}
+
+	/**
+	 * 
+	 * @return The recursive flag.
+	 * 
+	 */
+	public boolean isRecursive()
+	{
+		return isRecursive;
+	}
+
+	/**
+	 * 
+	 * @return The useUpdate flag.
+	 * 
+	 */
+	public boolean isUseUpdate()
+	{
+		return useUpdate;
+	}
+
+	/**
+	 * 
+	 * @return Minutes after which getting the history is given up.
+	 * 
+	 */
+	public int getHistoryTimeout()
+	{
+		return historyTimeout;
+	}
+
+	/**
+	 * 
+	 * @param historyTimeout Minutes after which getting the history is given
+	 * up, 0 for no limit.
+	 * 
+	 */
+	public void setHistoryTimeout(int historyTimeout)
+	{
+		this.historyTimeout = historyTimeout;
+	}
+
+	/**
+	 * 
+	 * @return Minutes after which getting the files is given up.
+	 * 
+	 */
+	public int getGetTimeout()
+	{
+		return getTimeout;
+	}
+
+	/**
+	 * 
+	 * @param getTimeout Minutes after which getting the files is given up, 0
+	 * for no limit.
+	 * 
+	 */
+	public void setGetTimeout(int getTimeout)
+	{
+		this.getTimeout = getTimeout;
+	}
+
+	/**
+	 * 
+	 * @return The coalesceFetches flag.
+	 * 
+	 */
+	public boolean isCoalesceFetches()
+	{
+		return coalesceFetches;
+	}
+
+	/**
+	 * 
+	 * @param coalesceFetches Indicates whether identical fetches running at
+	 * the same time are to be shared.
+	 * 
+	 */
+	public void setCoalesceFetches(boolean coalesceFetches)
+	{
+		this.coalesceFetches = coalesceFetches;
+	}
+
+	/**
+	 * 
+	 * @return The prefetchOnPoll flag.
+	 * 
+	 */
+	public boolean isPrefetchOnPoll()
+	{
+		return prefetchOnPoll;
+	}
+
+	/**
+	 * 
+	 * @param prefetchOnPoll Indicates whether polling that finds changes is 
+	 * to start fetching the files.
+	 * 
+	 */
+	public void setPrefetchOnPoll(boolean prefetchOnPoll)
+	{
+		this.prefetchOnPoll = prefetchOnPoll;
+	}
+
+	/**
+	 * 
+	 * @return Seconds without new check-ins polling waits for.
+	 * 
+	 */
+	public int getSettleTime()
+	{
+		return settleTime;
+	}
+
+	/**
+	 * 
+	 * @param settleTime Seconds without new check-ins polling waits for
+	 * before reporting changes, 0 to report them right away.
+	 * 
+	 */
+	public void setSettleTime(int settleTime)
+	{
+		this.settleTime = settleTime;
+	}
+
+	/**
+	 * 
+	 * @return The readHistoryDirectly flag.
+	 * 
+	 */
+	public boolean isReadHistoryDirectly()
+	{
+		return readHistoryDirectly;
+	}
+
+	/**
+	 * 
+	 * @param readHistoryDirectly Indicates whether the history is to be read 
+	 * directly from the database files.
+	 * 
+	 */
+	public void setReadHistoryDirectly(boolean readHistoryDirectly)
+	{
+		this.readHistoryDirectly = readHistoryDirectly;
+	}
+
+	/**
+	 * 
+	 * @return The shadow folder, null if files are got from VSS.
+	 * 
+	 */
+	public String getShadowFolder()
+	{
+		return shadowFolder;
+	}
+
+	/**
+	 * 
+	 * @param shadowFolder Shadow folder mirroring the VSS root to copy the 
+	 * files from, empty to get them from VSS.
+	 * 
+	 */
+	public void setShadowFolder(String shadowFolder)
+	{
+		this.shadowFolder = Util.fixEmptyAndTrim(shadowFolder);
+	}
+
+	/**
+	 * 
+	 * @return Patterns of the items to work with.
+	 * 
+	 */
+	public String getIncludes()
+	{
+		return includes;
+	}
+
+	/**
+	 * 
+	 * @param includes Patterns of the items to work with, empty for all.
+	 * 
+	 */
+	public void setIncludes(String includes)
+	{
+		this.includes = Util.fixEmptyAndTrim(includes);
+		pathFilter = null;
+	}
+
+	/**
+	 * 
+	 * @return Patterns of the items not to work with.
+	 * 
+	 */
+	public String getExcludes()
+	{
+		return excludes;
+	}
+
+	/**
+	 * 
+	 * @param excludes Patterns of the items not to work with.
+	 * 
+	 */
+	public void setExcludes(String excludes)
+	{
+		this.excludes = Util.fixEmptyAndTrim(excludes);
+		pathFilter = null;
+	}
+
+	/**
+	 * 
+	 * @return Number of VSS sessions used to get a recursive path.
+	 * 
+	 */
+	public int getFetchSessions()
+	{
+		return fetchSessions;
+	}
+
+	/**
+	 * 
+	 * @param fetchSessions Number of VSS sessions used to get a recursive 
+	 * path in parallel.
+	 * 
+	 */
+	public void setFetchSessions(int fetchSessions)
+	{
+		this.fetchSessions = fetchSessions;
+	}
+
+	/**
+	 * 
+	 * @return True if the old workspace contents are deleted in the 
+	 * background.
+	 * 
+	 */
+	public boolean isAsyncCleanup()
+	{
+		return asyncCleanup;
+	}
+
+	/**
 	 * 
-	 * @param localPath Local directory path where the information has to be
-	 * retrieved.
-	 * @throws IOException Any error while getting the latest.
+	 * @param asyncCleanup Indicates whether the old workspace contents are 
+	 * deleted in the background.
 	 * 
 	 */
-	private void get(String localPath, String vssPath, TaskListener listener) throws IOException
+	public void setAsyncCleanup(boolean asyncCleanup)
 	{
-        listener.getLogger().println("[get] Getting source code from: " + vssPath);
-        
-		try
-		{
-			//Open database.
-			IVSSDatabase database = ClassFactory.createVSSDatabase();
-			database.open(serverPath, user, password);
-            
-			//Get the patch to the given VSS path.
-			IVSSItem vssItem = database.vssItem(vssPath, false);
-			int flags = VSSFlags.VSSFLAG_FORCEDIRNO.comEnumValue();
-
-			//Writable flag for the files fetched.
-			if(isWritable)
-			{
-				flags |= VSSFlags.VSSFLAG_USERRONO.comEnumValue();
-			}
-			else
-			{
-				flags |= VSSFlags.VSSFLAG_USERROYES.comEnumValue();
-			}
-
-			//Recursive flag to decide whether all subfolders & files to be
-			//fetched.
-			if(isRecursive)
-			{
-				flags |= VSSFlags.VSSFLAG_RECURSYES.comEnumValue();
-			}
-			else
-			{
-				flags |= VSSFlags.VSSFLAG_RECURSNO.comEnumValue();
-			}
-
-			//Get the latest from vss.
-            vssItem.get(new Holder<String>(localPath), flags);
-            
-			//Dispose.
-			vssItem.dispose();
-			database.dispose();
-		}
-		catch(RuntimeException error)
-		{
-			//Some COM error.
-			throw new IOException2(error);
-		}
+		this.asyncCleanup = asyncCleanup;
 	}
 
 	/**
-	 * Delete the given list of files.
 	 * 
-	 * @param workspace Base folder.
-	 * @param deletions Files to be deleted recursively.
+	 * @return True if the history walked is kept on disk.
 	 * 
 	 */
-	private void delete(File workspace, List<String> deletions)
+	public boolean isUseHistoryStore()
 	{
-        for (String deletion : deletions)
-        {
-            File file = new File(workspace,deletion);
-            if(file.exists())
-            {
-                try
-                {
-                    Util.deleteRecursive(file);
-                }
-                catch(IOException e)
-                {
-                    //Just ignore the error.
-                }
-            }
-        }
-    }
+		return useHistoryStore;
+	}
 
 	/**
-	 * Converts the input in the way that it can be written to the XML.
-	 * Special characters are converted to XML understandable way.
 	 * 
-	 * @param object The object to be escaped.
-	 * @return Escaped string that can be written to XML.
+	 * @param useHistoryStore Indicates whether the history walked is kept
+	 * on disk.
+	 * 
 	 */
-	public static String escapeForXml(Object object)
+	public void setUseHistoryStore(boolean useHistoryStore)
 	{
-		if(object == null)
-		{
-			return null;
-		}
-
-		//Loop through and replace the special chars.
-		String string = object.toString();
-		int size = string.length();
-		char ch;
-        StringBuilder escapedString = new StringBuilder(size);
-		for(int index = 0;index < size;index ++)
-		{
-			//Convert special chars.
-			ch = string.charAt(index);
-			switch(ch)
-			{
-				case '&'  : escapedString.append("&amp;");	break;
-				case '<'  : escapedString.append("&lt;");	break;
-				case '>'  : escapedString.append("&gt;");	break;
-				case '\'' : escapedString.append("&apos;");	break;
-				case '\"' : escapedString.append("&quot;");break;
-				default: 	escapedString.append(ch);
-			}
-		}
+		this.useHistoryStore = useHistoryStore;
+	}
 
-		return escapedString.toString();
+	/**
+	 * 
+	 * @return Longest time in minutes polling leaves a path without changes
+	 * alone.
+	 * 
+	 */
+	public int getPollBackoff()
+	{
+		return pollBackoff;
 	}
 
 	/**
-	 * Collects the sub items from the folder given.
 	 * 
-	 * @param folder Folder to be checked.
-	 * @return The set of sub items from the folder.
+	 * @param pollBackoff Longest time in minutes polling leaves a path 
+	 * without changes alone, 0 to look at every path on each poll.
+	 * 
 	 */
-	private Set collectItems(IVSSItem folder)
+	public void setPollBackoff(int pollBackoff)
 	{
-		//Get the items from the folder.
-		IVSSItems items = folder.items(false);
-		Iterator iterator = items.iterator();
-		Set<String> itemSet = new HashSet<String>(items.count());
+		this.pollBackoff = pollBackoff;
+	}
 
-		//Just copy the items to a set.
-		while(iterator.hasNext())
-		{
-            Com4jObject object = (Com4jObject)iterator.next();
-            IVSSItem item = object.queryInterface(IVSSItem.class);
-			itemSet.add(item.spec());
-            
-            // dispose
-            item.dispose();
-		}
-        
-        // dispose
-        // according to other code in this class, when iterator.hasNext is
-        // false you don't need to dispose the iterator.
-        items.dispose();
-        
-		return itemSet;
+	/**
+	 * 
+	 * @return True if the change log keeps only the newest version of each
+	 * file changed.
+	 * 
+	 */
+	public boolean isCollapseChanges()
+	{
+		return collapseChanges;
 	}
 
 	/**
 	 * 
-	 * Returns the change log parser.
+	 * @param collapseChanges Indicates whether the change log keeps only the
+	 * newest version of each file changed.
 	 * 
 	 */
-	public ChangeLogParser createChangeLogParser()
+	public void setCollapseChanges(boolean collapseChanges)
 	{
-		return new VSSChangeLogParser();
+		this.collapseChanges = collapseChanges;
 	}
 
-	//Attributes.
 	/**
 	 * 
-	 * @return The writable flag.
+	 * @return True if a digest of the files fetched is recorded on the 
+	 * build.
 	 * 
 	 */
-	public boolean isWritable()
+	public boolean isRecordSourceDigest()
 	{
-		return isWritable;
+		return recordSourceDigest;
 	}
 
 	/**
 	 * 
-	 * @return The recursive flag.
+	 * @param recordSourceDigest Indicates whether a digest of the files 
+	 * fetched is recorded on the build.
 	 * 
 	 */
-	public boolean isRecursive()
+	public void setRecordSourceDigest(boolean recordSourceDigest)
 	{
-		return isRecursive;
+		this.recordSourceDigest = recordSourceDigest;
 	}
 
 	/**
+	 * Replaces the COM factory of the database objects.
 	 * 
-	 * @return The useUpdate flag.
+	 * @param databaseFactory The factory, null for COM.
 	 * 
 	 */
-	public boolean isUseUpdate()
+	void setDatabaseFactory(VSSDatabaseFactory databaseFactory)
 	{
-		return useUpdate;
+		this.databaseFactory = databaseFactory;
 	}
 
 	/**
@@ -734,6 +2253,18 @@ public class VSSSCM extends SCM
         return SCMRevisionState.NONE;
     }
 
+	/**
+	 * 
+	 * Polling only reads the VSS history, on this node, so it needs no 
+	 * workspace nor agent.
+	 * 
+	 */
+    @Override
+    public boolean requiresWorkspaceForPolling()
+    {
+        return false;
+    }
+
     @Override
     protected PollingResult compareRemoteRevisionWith(AbstractProject<?, ?> project,
                                                       Launcher lnchr,
@@ -745,7 +2276,7 @@ public class VSSSCM extends SCM
     {
         //If this is the build then it deserves a build.
 		AbstractBuild<?, ?> lastBuild = (AbstractBuild<?,?>)project.getLastBuild();
-		if(lastBuild == null)
+		if(lastBuild != null)
 		{
 			tl.getLogger().println("[poll] Last Build : #" + lastBuild.getNumber());
 		}
@@ -756,9 +2287,23 @@ public class VSSSCM extends SCM
             return PollingResult.BUILD_NOW;
 		}
         
-        Date buildTime = lastBuild.getTimestamp().getTime();
-		
-        if(getHistoryEntries(buildTime, 1, null, tl).isEmpty())
+        return poll(lastBuild.getTimestamp().getTime(), tl);
+    }
+
+	/**
+	 * Looks for changes after the last build.
+	 * 
+	 * @param buildTime Time of the last build.
+	 * @return The result of the polling.
+	 * @throws IOException Any error while getting the history information.
+	 * @throws InterruptedException Polling has been aborted.
+	 * 
+	 */
+    PollingResult poll(Date buildTime, TaskListener tl) throws IOException, InterruptedException
+    {
+        String[] paths = getPolledPaths(tl);
+        if(paths.length == 0 || (settleTime > 0 ? !hasSettledChanges(paths, buildTime, tl) 
+                : !hasChanges(paths, buildTime, tl)))
         {
             tl.getLogger().println("[poll] No changes found in repository.");
             return PollingResult.NO_CHANGES;
@@ -766,10 +2311,192 @@ public class VSSSCM extends SCM
         else
         {
             tl.getLogger().println("[poll] Changes found in repository.");
+            if(prefetchOnPoll)
+            {
+                //Nobody is listening by the time the prefetch is done.
+                tl.getLogger().println("[poll] Prefetching the files for the build.");
+                TaskListener log = new LogTaskListener(LOGGER, Level.FINE);
+                for (String vssPath : getTrackedPaths())
+                {
+                    VSSFetchCoalescer.prefetch(getFetchKey(vssPath), 
+                            createFetcher(vssPath, log));
+                }
+            }
             return PollingResult.SIGNIFICANT;
         }        
     }
 
+	/**
+	 * Returns the paths polling is to look at, leaving out those without 
+	 * changes for a while when backing off.
+	 * 
+	 * @return The VSS paths.
+	 * 
+	 */
+	private String[] getPolledPaths(TaskListener tl)
+	{
+		String[] paths = getTrackedPaths();
+		if(pollBackoff <= 0)
+		{
+			return paths;
+		}
+
+		List<String> polled = new ArrayList<String>();
+		long now = System.currentTimeMillis();
+		for (String vssPath : paths)
+		{
+			VSSPollSchedule schedule = getPollSchedule(vssPath);
+			if(schedule.isDue(now))
+			{
+				polled.add(vssPath);
+			}
+			else
+			{
+				tl.getLogger().println("[poll] No recent changes in " + vssPath 
+						+ ", looking again " + VSSGetProgress.formatDuration(schedule.getBackoff()) 
+						+ " after the last look.");
+			}
+		}
+		return polled.toArray(new String[polled.size()]);
+	}
+
+	/**
+	 * Looks for changes after the given date.
+	 * 
+	 * @param paths The VSS paths to look at.
+	 * @param buildTime Time of the last build.
+	 * @return True if there are changes.
+	 * @throws IOException Any error while getting the history information.
+	 * @throws InterruptedException Polling has been aborted.
+	 * 
+	 */
+	private boolean hasChanges(String[] paths, Date buildTime, TaskListener tl) 
+			throws IOException, InterruptedException
+	{
+		if(pollBackoff <= 0)
+		{
+			return !pollHistoryEntries(paths, buildTime, 1, false, tl).isEmpty();
+		}
+
+		//Each path is looked at on its own to know which ones are quiet.
+		boolean changed = false;
+		for (String vssPath : paths)
+		{
+			List<Object[]> entries = pollHistoryEntries(new String[]{vssPath}, 
+					buildTime, 1, false, tl);
+			updatePollSchedule(vssPath, entries);
+			changed |= !entries.isEmpty();
+		}
+		return changed;
+	}
+
+	/**
+	 * Looks for changes after the given date and tells whether there are 
+	 * changes and no new check-ins have been made for the settle time.
+	 * 
+	 * @param paths The VSS paths to look at.
+	 * @param buildTime Time of the last build.
+	 * @return True if there are changes and the check-ins have settled.
+	 * @throws IOException Any error while getting the history information.
+	 * @throws InterruptedException Polling has been aborted.
+	 * 
+	 */
+	private boolean hasSettledChanges(String[] paths, Date buildTime, TaskListener tl) 
+			throws IOException, InterruptedException
+	{
+		boolean changed = false;
+		boolean settled = true;
+		long quietTime = settleTime * 1000L;
+		for (String vssPath : paths)
+		{
+			List<Object[]> entries = pollHistoryEntries(new String[]{vssPath}, 
+					buildTime, SETTLE_WINDOW, true, tl);
+			if(pollBackoff > 0)
+			{
+				updatePollSchedule(vssPath, entries);
+			}
+			VSSCheckinWindow window = getCheckinWindow(vssPath, entries.isEmpty());
+			if(window == null)
+			{
+				continue;
+			}
+
+			changed = true;
+			if(!window.update(entries, quietTime))
+			{
+				tl.getLogger().println("[poll] " + window.getBurstSize(quietTime) 
+						+ " recent versions in " + vssPath 
+						+ ", waiting for check-ins to settle.");
+				settled = false;
+			}
+		}
+		return changed && settled;
+	}
+
+	/**
+	 * Returns the recent versions seen by polling for the given path.
+	 * 
+	 * @param vssPath Directory path in the VSS server.
+	 * @param clear Indicates whether the versions are to be forgotten.
+	 * @return The recent versions, or null if cleared.
+	 * 
+	 */
+	private synchronized VSSCheckinWindow getCheckinWindow(String vssPath, boolean clear)
+	{
+		if(checkinWindows == null)
+		{
+			checkinWindows = new HashMap<String, VSSCheckinWindow>();
+		}
+		if(clear)
+		{
+			checkinWindows.remove(vssPath);
+			return null;
+		}
+
+		VSSCheckinWindow window = checkinWindows.get(vssPath);
+		if(window == null)
+		{
+			window = new VSSCheckinWindow();
+			checkinWindows.put(vssPath, window);
+		}
+		return window;
+	}
+
+	/**
+	 * Records a poll of the given path.
+	 * 
+	 * @param vssPath Directory path in the VSS server.
+	 * @param entries The history entries found, newest first.
+	 * 
+	 */
+	private void updatePollSchedule(String vssPath, List<Object[]> entries)
+	{
+		getPollSchedule(vssPath).update(entries.isEmpty() ? null : (Date)entries.get(0)[ENTRY_DATE], 
+				System.currentTimeMillis(), pollBackoff * 60 * 1000L);
+	}
+
+	/**
+	 * Returns when polling next looks at the given path.
+	 * 
+	 * @param vssPath Directory path in the VSS server.
+	 * @return The schedule of the path.
+	 * 
+	 */
+	private synchronized VSSPollSchedule getPollSchedule(String vssPath)
+	{
+		if(pollSchedules == null)
+		{
+			pollSchedules = new HashMap<String, VSSPollSchedule>();
+		}
+		VSSPollSchedule schedule = pollSchedules.get(vssPath);
+		if(schedule == null)
+		{
+			schedule = new VSSPollSchedule();
+			pollSchedules.put(vssPath, schedule);
+		}
+		return schedule;
+	}
+
 	/**
 	 * 
 	 * The VSS change log parser.
@@ -828,7 +2555,7 @@ public class VSSSCM extends SCM
 		public VSSSCM newInstance(StaplerRequest req,
                                   net.sf.json.JSONObject formData) throws FormException
 		{
-			return new VSSSCM(
+			VSSSCM scm = new VSSSCM(
 					req.getParameter("server_path"), 
 					req.getParameter("user"),
 					req.getParameter("password"),
@@ -836,6 +2563,46 @@ public class VSSSCM extends SCM
 					req.getParameter("writable") != null,
 					req.getParameter("recursive") != null,
 					req.getParameter("useupdate") != null);
+			scm.setHistoryTimeout(parseInt(req.getParameter("history_timeout")));
+			scm.setGetTimeout(parseInt(req.getParameter("get_timeout")));
+			scm.setCoalesceFetches(req.getParameter("coalesce_fetches") != null);
+			scm.setPrefetchOnPoll(req.getParameter("prefetch_on_poll") != null);
+			scm.setSettleTime(parseInt(req.getParameter("settle_time")));
+			scm.setReadHistoryDirectly(req.getParameter("read_history_directly") != null);
+			scm.setShadowFolder(req.getParameter("shadow_folder"));
+			scm.setIncludes(req.getParameter("includes"));
+			scm.setExcludes(req.getParameter("excludes"));
+			scm.setFetchSessions(parseInt(req.getParameter("fetch_sessions")));
+			scm.setAsyncCleanup(req.getParameter("async_cleanup") != null);
+			scm.setUseHistoryStore(req.getParameter("use_history_store") != null);
+			scm.setPollBackoff(parseInt(req.getParameter("poll_backoff")));
+			scm.setCollapseChanges(req.getParameter("collapse_changes") != null);
+			scm.setRecordSourceDigest(req.getParameter("record_source_digest") != null);
+			return scm;
+		}
+
+		/**
+		 * 
+		 * Parses the number entered in the form.
+		 * 
+		 * @param value Value of the form field.
+		 * @return The number or 0 if nothing valid has been entered.
+		 * 
+		 */
+		private static int parseInt(String value)
+		{
+			if(value == null)
+			{
+				return 0;
+			}
+			try
+			{
+				return Math.max(Integer.parseInt(value.trim()), 0);
+			}
+			catch(NumberFormatException e)
+			{
+				return 0;
+			}
 		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,348 @@
+package scm.vss;
+
+import hudson.Util;
+import hudson.util.IOException2;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import vss.IVSSDatabase;
+
+/**
+ * A VSS database kept open on a thread of its own, for polling. Polls of
+ * all the jobs using the same database and user run one after the other on
+ * that thread and share the database, instead of each opening it. The
+ * database is closed and the thread ends once no poll has come for the
+ * idle time.
+ *
+ * Operations run on the session get its database from
+ * {@link #current()}.
+ *
+ * A stuck operation would hold up every poll queued behind it, so an
+ * operation always has a time limit, the default one if the job sets none.
+ * When it is reached the session is dropped, and the next operation starts
+ * a new one with the database opened again.
+ *
+ * @author vara
+ */
+final class VSSSession implements Runnable
+{
+	private static final Logger LOGGER = Logger.getLogger(VSSSession.class.getName());
+
+	/**
+	 * Minutes without operations after which the database is closed.
+	 */
+	private static final int IDLE_TIMEOUT = Integer.getInteger(
+			VSSSession.class.getName() + ".idleTimeout", 10).intValue();
+
+	/**
+	 * Minutes after which an operation is given up when the job sets no
+	 * limit.
+	 */
+	private static final int DEFAULT_TIMEOUT = Integer.getInteger(
+			VSSSession.class.getName() + ".timeout", 30).intValue();
+
+	/**
+	 * Open sessions by database, user and factory. Also guards the closing
+	 * of the sessions.
+	 */
+	private static final Map<String, VSSSession> SESSIONS = new HashMap<String, VSSSession>();
+
+	/**
+	 * The session of the thread, if it is a session thread.
+	 */
+	private static final ThreadLocal<VSSSession> CURRENT = new ThreadLocal<VSSSession>();
+
+	private final String key;
+
+	private final String serverPath;
+
+	private final String user;
+
+	private final String password;
+
+	private final VSSDatabaseFactory factory;
+
+	/**
+	 * Operations waiting to run.
+	 */
+	private final BlockingQueue<FutureTask<?>> queue = new LinkedBlockingQueue<FutureTask<?>>();
+
+	/**
+	 * Indicates whether the session takes no more operations. Guarded by
+	 * SESSIONS.
+	 */
+	private boolean closed = false;
+
+	/**
+	 * The open database, only used on the session thread.
+	 */
+	private IVSSDatabase database;
+
+	private VSSSession(String key, String serverPath, String user, String password,
+			VSSDatabaseFactory factory)
+	{
+		this.key = key;
+		this.serverPath = serverPath;
+		this.user = user;
+		this.password = password;
+		this.factory = factory;
+	}
+
+	/**
+	 * Runs the operation on the session of the given database and user,
+	 * starting the session if needed.
+	 *
+	 * @param name Name of the operation, used in the messages.
+	 * @param timeout Time in minutes after which the operation is given up,
+	 * 0 for the default limit.
+	 * @param serverPath Path to srcsafe.ini file.
+	 * @param user User name.
+	 * @param password Password.
+	 * @param factory Creates the database object.
+	 * @param operation The operation.
+	 * @return The result of the operation.
+	 * @throws IOException The operation failed or timed out.
+	 * @throws InterruptedException The caller has been interrupted.
+	 */
+	static <T> T run(String name, int timeout, String serverPath, String user, String password,
+			VSSDatabaseFactory factory, final Callable<T> operation)
+			throws IOException, InterruptedException
+	{
+		final VSSSession session;
+		FutureTask<T> task;
+		String key = serverPath + '|' + user + '|' + Util.getDigestOf(String.valueOf(password))
+				+ '|' + System.identityHashCode(factory);
+		synchronized(SESSIONS)
+		{
+			VSSSession existing = SESSIONS.get(key);
+			if(existing == null)
+			{
+				existing = new VSSSession(key, serverPath, user, password, factory);
+				SESSIONS.put(key, existing);
+				Thread thread = new Thread(existing, "VSS session " + serverPath);
+				thread.setDaemon(true);
+				thread.start();
+			}
+			session = existing;
+
+			//The database is opened again after a failure, in case it is
+			//the cause.
+			task = new FutureTask<T>(new Callable<T>()
+			{
+				public T call() throws Exception
+				{
+					try
+					{
+						return operation.call();
+					}
+					catch(Exception error)
+					{
+						session.closeDatabase();
+						throw error;
+					}
+				}
+			});
+			session.queue.add(task);
+		}
+
+		if(timeout <= 0)
+		{
+			timeout = DEFAULT_TIMEOUT;
+		}
+		try
+		{
+			if(timeout > 0)
+			{
+				return task.get(timeout * 60L, TimeUnit.SECONDS);
+			}
+			return task.get();
+		}
+		catch(InterruptedException error)
+		{
+			task.cancel(true);
+			throw error;
+		}
+		catch(TimeoutException error)
+		{
+			//The session may be stuck, so the next operations get a new one.
+			task.cancel(true);
+			session.close();
+			throw new IOException(name + " timed out after " + timeout 
+					+ " minutes, the VSS session has been closed");
+		}
+		catch(CancellationException error)
+		{
+			throw new IOException(name + " was cancelled, the VSS session has been closed");
+		}
+		catch(ExecutionException error)
+		{
+			Throwable cause = error.getCause();
+			if(cause instanceof IOException)
+			{
+				throw (IOException)cause;
+			}
+			if(cause instanceof InterruptedException)
+			{
+				throw (InterruptedException)cause;
+			}
+			if(cause instanceof RuntimeException)
+			{
+				throw (RuntimeException)cause;
+			}
+			if(cause instanceof Error)
+			{
+				throw (Error)cause;
+			}
+			throw new IOException2(cause);
+		}
+	}
+
+	/**
+	 *
+	 * @return The session of the current thread, null if it is not a
+	 * session thread.
+	 *
+	 */
+	static VSSSession current()
+	{
+		return CURRENT.get();
+	}
+
+	/**
+	 * Returns the database of the session, opening it if needed. Only
+	 * called on the session thread.
+	 *
+	 * @return The open database, disposed by the session.
+	 */
+	IVSSDatabase getDatabase()
+	{
+		if(database == null)
+		{
+			IVSSDatabase opened = factory.createDatabase();
+			try
+			{
+				opened.open(serverPath, user, password);
+			}
+			catch(RuntimeException error)
+			{
+				opened.dispose();
+				throw error;
+			}
+			database = opened;
+		}
+		return database;
+	}
+
+	/**
+	 * Runs the operations until the session is closed or idle.
+	 */
+	public void run()
+	{
+		CURRENT.set(this);
+		try
+		{
+			while(true)
+			{
+				FutureTask<?> task;
+				try
+				{
+					task = queue.poll(IDLE_TIMEOUT, TimeUnit.MINUTES);
+				}
+				catch(InterruptedException e)
+				{
+					task = null;
+				}
+				if(task == null)
+				{
+					synchronized(SESSIONS)
+					{
+						if(closed || queue.isEmpty())
+						{
+							closeSession();
+							break;
+						}
+					}
+					continue;
+				}
+
+				task.run();
+				//Cancelling a task may have left the thread interrupted.
+				Thread.interrupted();
+
+				synchronized(SESSIONS)
+				{
+					if(closed)
+					{
+						break;
+					}
+				}
+			}
+		}
+		finally
+		{
+			closeDatabase();
+			CURRENT.remove();
+		}
+	}
+
+	/**
+	 * Closes the session. The operation running goes on, those waiting are
+	 * cancelled.
+	 */
+	private void close()
+	{
+		synchronized(SESSIONS)
+		{
+			closeSession();
+		}
+		FutureTask<?> task;
+		while((task = queue.poll()) != null)
+		{
+			task.cancel(false);
+		}
+	}
+
+	/**
+	 * Marks the session as closed and forgets it. Called holding SESSIONS.
+	 */
+	private void closeSession()
+	{
+		closed = true;
+		if(SESSIONS.get(key) == this)
+		{
+			SESSIONS.remove(key);
+		}
+	}
+
+	/**
+	 * Disposes the database, to be opened again by the next operation.
+	 */
+	private void closeDatabase()
+	{
+		if(database == null)
+		{
+			return;
+		}
+		try
+		{
+			database.dispose();
+		}
+		catch(RuntimeException error)
+		{
+			LOGGER.log(Level.WARNING, "Failed to close the VSS session of " + serverPath, error);
+		}
+		database = null;
+	}
+}
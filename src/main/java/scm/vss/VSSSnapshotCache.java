@@ -0,0 +1,313 @@
+package scm.vss;
+
+import hudson.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the trees fetched for pinned paths on this node, so that building
+ * the same label again copies the files instead of fetching them. A
+ * snapshot is fetched into a temporary directory and renamed into place
+ * once complete, and is never changed afterwards. The least recently used
+ * snapshots are deleted when there are too many.
+ *
+ * A label can be moved to other versions, so the key of a label snapshot
+ * holds the version the label is on when the build starts. The snapshots
+ * are kept out of JENKINS_HOME, in the temporary folder of the node unless
+ * another folder is set.
+ *
+ * @author vara
+ */
+final class VSSSnapshotCache
+{
+	private static final Logger LOGGER = Logger.getLogger(VSSSnapshotCache.class.getName());
+
+	/**
+	 * Number of snapshots kept.
+	 */
+	private static final int MAX_SNAPSHOTS = Integer.getInteger(
+			VSSSnapshotCache.class.getName() + ".maxSnapshots", 20).intValue();
+
+	/**
+	 * Folder the snapshots are kept in, null for the default.
+	 */
+	private static final String SNAPSHOT_ROOT = System.getProperty(
+			VSSSnapshotCache.class.getName() + ".snapshotRoot");
+
+	/**
+	 * Suffix of the snapshots being fetched.
+	 */
+	private static final String TEMPORARY_SUFFIX = ".tmp";
+
+	/**
+	 * Suffix of the snapshots being deleted.
+	 */
+	private static final String DELETED_SUFFIX = ".old";
+
+	/**
+	 * Number of checkouts using each snapshot, by name. Snapshots in use
+	 * are not deleted. Also guards the fetching of the snapshots.
+	 */
+	private static final Map<String, Integer> IN_USE = new HashMap<String, Integer>();
+
+	/**
+	 * Names of the snapshots being fetched. Guarded by IN_USE.
+	 */
+	private static final List<String> FETCHING = new ArrayList<String>();
+
+	/**
+	 * Names of the deleted snapshots being removed. Guarded by IN_USE.
+	 */
+	private static final List<String> DELETING = new ArrayList<String>();
+
+	/**
+	 * Utility class.
+	 */
+	private VSSSnapshotCache()
+	{
+	}
+
+	/**
+	 * Copies the snapshot with the given key into the target directory,
+	 * fetching it first if it is not in the cache.
+	 *
+	 * @param key Identifies the snapshot, including the pin and, for a
+	 * label, the version it is on.
+	 * @param target Directory to put the files in.
+	 * @param fetcher Fetches the snapshot.
+	 * @param logger Log to report to.
+	 * @throws IOException Any error while fetching or copying.
+	 * @throws InterruptedException The build has been aborted.
+	 */
+	static void fetch(String key, File target, VSSFetchCoalescer.Fetcher fetcher,
+			PrintStream logger) throws IOException, InterruptedException
+	{
+		String name = Util.getDigestOf(key);
+		File snapshot = new File(getRoot(), name);
+		boolean missing = acquire(name, snapshot);
+		try
+		{
+			if(!missing)
+			{
+				logger.println("[get] Copying from the snapshot cache");
+			}
+			else
+			{
+				logger.println("[get] Fetching into the snapshot cache");
+				File temporary = new File(getRoot(), name + TEMPORARY_SUFFIX);
+				Util.deleteRecursive(temporary);
+				if(!temporary.mkdirs())
+				{
+					throw new IOException("Unable to create " + temporary);
+				}
+				try
+				{
+					fetcher.fetch(temporary);
+					if(!temporary.renameTo(snapshot))
+					{
+						throw new IOException("Unable to move " + temporary + " to " + snapshot);
+					}
+				}
+				finally
+				{
+					Util.deleteRecursive(temporary);
+					fetched(name);
+				}
+			}
+
+			//The time of the last use, for the eviction.
+			snapshot.setLastModified(System.currentTimeMillis());
+
+			VSSTreeCopier copier = new VSSTreeCopier();
+			copier.copy(snapshot, target);
+			logger.println("[get] Copied " + copier.getFiles() + " files ("
+					+ VSSGetProgress.formatBytes(copier.getBytes()) + ")");
+		}
+		finally
+		{
+			release(name);
+		}
+		evict();
+	}
+
+	/**
+	 * Marks the snapshot as used, waiting while another checkout fetches
+	 * it.
+	 *
+	 * @return True if the snapshot is missing and is to be fetched by the
+	 * caller.
+	 */
+	private static boolean acquire(String name, File snapshot) throws InterruptedException
+	{
+		synchronized(IN_USE)
+		{
+			while(FETCHING.contains(name))
+			{
+				IN_USE.wait();
+			}
+			Integer users = IN_USE.get(name);
+			IN_USE.put(name, Integer.valueOf(users == null ? 1 : users.intValue() + 1));
+			if(snapshot.isDirectory())
+			{
+				return false;
+			}
+			FETCHING.add(name);
+			return true;
+		}
+	}
+
+	/**
+	 * Lets the checkouts waiting for the snapshot go on.
+	 */
+	private static void fetched(String name)
+	{
+		synchronized(IN_USE)
+		{
+			FETCHING.remove(name);
+			IN_USE.notifyAll();
+		}
+	}
+
+	/**
+	 * Marks the snapshot as no longer used.
+	 */
+	private static void release(String name)
+	{
+		synchronized(IN_USE)
+		{
+			int users = IN_USE.get(name).intValue() - 1;
+			if(users == 0)
+			{
+				IN_USE.remove(name);
+			}
+			else
+			{
+				IN_USE.put(name, Integer.valueOf(users));
+			}
+		}
+	}
+
+	/**
+	 * Deletes the least recently used snapshots beyond the maximum, except
+	 * those in use, and the snapshots left half fetched or half deleted,
+	 * such as by a crash.
+	 */
+	private static void evict()
+	{
+		File[] snapshots = getRoot().listFiles();
+		if(snapshots == null)
+		{
+			return;
+		}
+
+		List<File> sorted = new ArrayList<File>();
+		for(File snapshot : snapshots)
+		{
+			String name = snapshot.getName();
+			if(name.endsWith(TEMPORARY_SUFFIX))
+			{
+				synchronized(IN_USE)
+				{
+					if(FETCHING.contains(name.substring(0, name.length() - TEMPORARY_SUFFIX.length()))
+							|| DELETING.contains(name))
+					{
+						continue;
+					}
+					DELETING.add(name);
+				}
+				delete(snapshot);
+			}
+			else if(name.endsWith(DELETED_SUFFIX))
+			{
+				synchronized(IN_USE)
+				{
+					if(DELETING.contains(name))
+					{
+						continue;
+					}
+					DELETING.add(name);
+				}
+				delete(snapshot);
+			}
+			else
+			{
+				sorted.add(snapshot);
+			}
+		}
+		Collections.sort(sorted, new Comparator<File>()
+		{
+			public int compare(File a, File b)
+			{
+				return Long.valueOf(a.lastModified()).compareTo(Long.valueOf(b.lastModified()));
+			}
+		});
+
+		for(int index = 0;index < sorted.size() - MAX_SNAPSHOTS;index ++)
+		{
+			File snapshot = sorted.get(index);
+			synchronized(IN_USE)
+			{
+				if(IN_USE.containsKey(snapshot.getName()))
+				{
+					continue;
+				}
+
+				//Renamed first so that it is never seen half deleted.
+				File deleted = new File(getRoot(), snapshot.getName() + DELETED_SUFFIX);
+				if(DELETING.contains(deleted.getName()) || !snapshot.renameTo(deleted))
+				{
+					continue;
+				}
+				DELETING.add(deleted.getName());
+				snapshot = deleted;
+			}
+			delete(snapshot);
+		}
+	}
+
+	/**
+	 * Deletes a snapshot, marked as being deleted by the caller.
+	 */
+	private static void delete(File snapshot)
+	{
+		try
+		{
+			Util.deleteRecursive(snapshot);
+		}
+		catch(IOException e)
+		{
+			LOGGER.log(Level.WARNING, "Unable to delete " + snapshot, e);
+		}
+		finally
+		{
+			synchronized(IN_USE)
+			{
+				DELETING.remove(snapshot.getName());
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @return The directory under which the snapshots are kept.
+	 *
+	 */
+	static File getRoot()
+	{
+		if(SNAPSHOT_ROOT != null)
+		{
+			return new File(SNAPSHOT_ROOT);
+		}
+		return new File(System.getProperty("java.io.tmpdir"), "vss-snapshots");
+	}
+}
@@ -0,0 +1,307 @@
+package scm.vss;
+
+import hudson.Util;
+import hudson.util.IOException2;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Computes a digest of the files fetched into a folder, so that two builds
+ * can tell whether they used the same sources. The digest is a Merkle tree
+ * of SHA-256 hashes: each file is hashed from its contents, and each folder
+ * from the sorted names, kinds and hashes of its children. Only the
+ * contents and names count, not the dates. VSS does not fetch symbolic
+ * links, so they are left out rather than followed, which could loop.
+ *
+ * Files are hashed in parallel. Large files are read by mapping them into
+ * memory, in slices. On Windows a mapped file can not be deleted until the
+ * mapping is collected, which would fail the next fetch into the workspace,
+ * so files are only mapped there when a threshold is set.
+ *
+ * @author vara
+ */
+final class VSSSourceDigest
+{
+	/**
+	 * Number of files hashed at the same time.
+	 */
+	private static final int THREADS = Integer.getInteger(
+			VSSSourceDigest.class.getName() + ".threads",
+			Runtime.getRuntime().availableProcessors()).intValue();
+
+	/**
+	 * Size in bytes from which files are mapped instead of read. Never by
+	 * default on Windows, where the mapping locks the file.
+	 */
+	private static final long MAP_THRESHOLD = Long.getLong(
+			VSSSourceDigest.class.getName() + ".mapThreshold",
+			File.pathSeparatorChar == ';' ? Long.MAX_VALUE : 1024 * 1024L).longValue();
+
+	/**
+	 * Most bytes of a file mapped at once.
+	 */
+	private static final long MAP_SLICE = 64 * 1024 * 1024L;
+
+	/**
+	 * Size of the buffer small files are read with.
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Sorts files by name, the same on every file system.
+	 */
+	private static final Comparator<File> BY_NAME = new Comparator<File>()
+	{
+		public int compare(File a, File b)
+		{
+			return a.getName().compareTo(b.getName());
+		}
+	};
+
+	/**
+	 * Files hashed.
+	 */
+	private final AtomicInteger files = new AtomicInteger();
+
+	/**
+	 * Bytes hashed.
+	 */
+	private final AtomicLong bytes = new AtomicLong();
+
+	/**
+	 * Computes the digest of a folder.
+	 *
+	 * @param root The folder.
+	 * @return The digest, as hexadecimal.
+	 * @throws IOException Any error while reading the files.
+	 * @throws InterruptedException The build has been aborted.
+	 */
+	String digest(File root) throws IOException, InterruptedException
+	{
+		if(!root.isDirectory())
+		{
+			throw new IOException(root + " doesn't exist or is not a folder");
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(THREADS, 1));
+		try
+		{
+			Node tree = walk(root, pool);
+			return Util.toHexString(tree.getHash());
+		}
+		catch(ExecutionException error)
+		{
+			if(error.getCause() instanceof IOException)
+			{
+				throw (IOException)error.getCause();
+			}
+			throw new IOException2(error.getCause());
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Combines digests into one, such as the digests of the roots of a job.
+	 *
+	 * @param names Names of the digests.
+	 * @param digests The digests, as hexadecimal.
+	 * @return The combined digest, as hexadecimal.
+	 */
+	static String combine(List<String> names, List<String> digests)
+	{
+		MessageDigest sha = createDigest();
+		try
+		{
+			for(int index = 0;index < names.size();index ++)
+			{
+				sha.update((names.get(index) + '\0' + digests.get(index) + '\n').getBytes("UTF-8"));
+			}
+		}
+		catch(IOException e)
+		{
+			//UTF-8 is always supported.
+			throw new Error(e);
+		}
+		return Util.toHexString(sha.digest());
+	}
+
+	/**
+	 * Lists a folder and queues the hashing of its files.
+	 */
+	private Node walk(File folder, ExecutorService pool) throws IOException, InterruptedException
+	{
+		VSSOperation.checkInterrupted();
+
+		File[] children = folder.listFiles();
+		if(children == null)
+		{
+			throw new IOException("Unable to list " + folder);
+		}
+		//The order of the listing depends on the file system.
+		Arrays.sort(children, BY_NAME);
+
+		Node node = new Node(folder.getName(), true);
+		for(final File child : children)
+		{
+			if(Util.isSymlink(child))
+			{
+				continue;
+			}
+			if(child.isDirectory())
+			{
+				node.children.add(walk(child, pool));
+			}
+			else
+			{
+				Node file = new Node(child.getName(), false);
+				file.hash = pool.submit(new Callable<byte[]>()
+				{
+					public byte[] call() throws IOException
+					{
+						return hashFile(child);
+					}
+				});
+				node.children.add(file);
+			}
+		}
+		return node;
+	}
+
+	/**
+	 * Hashes the contents of a file.
+	 */
+	private byte[] hashFile(File file) throws IOException
+	{
+		MessageDigest sha = createDigest();
+		long length = file.length();
+		if(length >= MAP_THRESHOLD)
+		{
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try
+			{
+				FileChannel channel = raf.getChannel();
+				length = channel.size();
+				for(long position = 0;position < length;position += MAP_SLICE)
+				{
+					sha.update(channel.map(FileChannel.MapMode.READ_ONLY, position,
+							Math.min(MAP_SLICE, length - position)));
+				}
+			}
+			finally
+			{
+				raf.close();
+			}
+		}
+		else
+		{
+			FileInputStream in = new FileInputStream(file);
+			try
+			{
+				byte[] buffer = new byte[(int)Math.min(Math.max(length, 1), BUFFER_SIZE)];
+				int read;
+				length = 0;
+				while((read = in.read(buffer)) > 0)
+				{
+					sha.update(buffer, 0, read);
+					length += read;
+				}
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		files.incrementAndGet();
+		bytes.addAndGet(length);
+		return sha.digest();
+	}
+
+	private static MessageDigest createDigest()
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch(NoSuchAlgorithmException e)
+		{
+			//SHA-256 is always supported.
+			throw new Error(e);
+		}
+	}
+
+	/**
+	 *
+	 * @return A summary of what has been hashed.
+	 *
+	 */
+	String getSummary()
+	{
+		return files.get() + " files hashed (" + VSSGetProgress.formatBytes(bytes.get()) + ")";
+	}
+
+	/**
+	 * A file or folder of the tree.
+	 */
+	private static final class Node
+	{
+		private final String name;
+
+		private final boolean folder;
+
+		/**
+		 * Hash of a file, being computed.
+		 */
+		private Future<byte[]> hash;
+
+		/**
+		 * Children of a folder, sorted by name.
+		 */
+		private final List<Node> children = new ArrayList<Node>();
+
+		Node(String name, boolean folder)
+		{
+			this.name = name;
+			this.folder = folder;
+		}
+
+		/**
+		 * Returns the hash of the node, waiting for the files.
+		 */
+		byte[] getHash() throws IOException, InterruptedException, ExecutionException
+		{
+			if(!folder)
+			{
+				return hash.get();
+			}
+			MessageDigest sha = createDigest();
+			for(Node child : children)
+			{
+				sha.update((byte)(child.folder ? 'D' : 'F'));
+				sha.update(child.name.getBytes("UTF-8"));
+				sha.update((byte)0);
+				sha.update(child.getHash());
+			}
+			return sha.digest();
+		}
+	}
+}
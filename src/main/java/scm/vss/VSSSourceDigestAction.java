@@ -0,0 +1,92 @@
+package scm.vss;
+
+import hudson.model.Action;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * The digest of the sources fetched by a build, shown on the build page
+ * and exported by the remote API of the build:
+ *
+ * <pre>
+ * job/NAME/12/api/json?tree=actions[sourceDigest,rootDigests]
+ * </pre>
+ *
+ * Two builds with the same digest used the same files. The digest is also
+ * given to the build as <tt>VSS_SOURCE_DIGEST</tt>.
+ *
+ * @see VSSSourceDigest
+ * @author vara
+ */
+@ExportedBean
+public class VSSSourceDigestAction implements Action
+{
+	/**
+	 * Digest of all the VSS paths of the build.
+	 */
+	private final String sourceDigest;
+
+	/**
+	 * Digests by VSS path, in the order of the configuration.
+	 */
+	private final Map<String, String> rootDigests;
+
+	/**
+	 * Creates the action from the digests of the VSS paths.
+	 *
+	 * @param paths The VSS paths.
+	 * @param digests Their digests.
+	 */
+	VSSSourceDigestAction(List<String> paths, List<String> digests)
+	{
+		this.sourceDigest = VSSSourceDigest.combine(paths, digests);
+		this.rootDigests = new LinkedHashMap<String, String>();
+		for(int index = 0;index < paths.size();index ++)
+		{
+			rootDigests.put(paths.get(index), digests.get(index));
+		}
+	}
+
+	public String getIconFileName()
+	{
+		return null;
+	}
+
+	public String getDisplayName()
+	{
+		return "VSS Source Digest";
+	}
+
+	public String getUrlName()
+	{
+		return null;
+	}
+
+	/**
+	 *
+	 * @return Digest of all the VSS paths of the build, as hexadecimal.
+	 *
+	 */
+	@Exported
+	public String getSourceDigest()
+	{
+		return sourceDigest;
+	}
+
+	/**
+	 *
+	 * @return Digests by VSS path, as hexadecimal.
+	 *
+	 */
+	@Exported
+	public Map<String, String> getRootDigests()
+	{
+		return Collections.unmodifiableMap(rootDigests);
+	}
+}
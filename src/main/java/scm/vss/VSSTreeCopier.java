@@ -0,0 +1,137 @@
+package scm.vss;
+
+import hudson.Util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Copies local directory trees fetched from VSS, for example from a staging
+ * area into a workspace. Read-only flags and modification times are kept.
+ *
+ * @author vara
+ */
+final class VSSTreeCopier
+{
+	/**
+	 * Files copied.
+	 */
+	private int files = 0;
+
+	/**
+	 * Bytes copied.
+	 */
+	private long bytes = 0;
+
+	/**
+	 * Copies the content of the source directory into the target directory.
+	 * Existing files are overwritten.
+	 *
+	 * @param source Directory to copy from.
+	 * @param target Directory to copy to.
+	 * @throws IOException Any error while copying.
+	 * @throws InterruptedException The build has been aborted.
+	 */
+	void copy(File source, File target) throws IOException, InterruptedException
+	{
+		File[] children = source.listFiles();
+		if(children == null)
+		{
+			throw new IOException("Unable to list " + source);
+		}
+
+		if(!target.isDirectory() && !target.mkdirs())
+		{
+			throw new IOException("Unable to create " + target);
+		}
+
+		for(File child : children)
+		{
+			VSSOperation.checkInterrupted();
+
+			File copy = new File(target, child.getName());
+			if(child.isDirectory())
+			{
+				copy(child, copy);
+			}
+			else
+			{
+				copyFile(child, copy, !child.canWrite());
+				files++;
+				bytes += child.length();
+			}
+		}
+	}
+
+	/**
+	 * Copies a single file, replacing the target if it exists.
+	 *
+	 * @param source File to copy from.
+	 * @param target File to copy to.
+	 * @param readOnly Indicates whether the copy is to be made read-only.
+	 * @throws IOException Any error while copying.
+	 */
+	static void copyFile(File source, File target, boolean readOnly) throws IOException
+	{
+		//Read-only files can not be overwritten, nor deleted on Windows
+		//unless made writable first, which deleteFile does.
+		if(target.exists())
+		{
+			Util.deleteFile(target);
+		}
+
+		FileInputStream in = new FileInputStream(source);
+		try
+		{
+			FileOutputStream out = new FileOutputStream(target);
+			try
+			{
+				FileChannel from = in.getChannel();
+				FileChannel to = out.getChannel();
+				long size = from.size();
+				long position = 0;
+				while(position < size)
+				{
+					position += from.transferTo(position, size - position, to);
+				}
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+
+		target.setLastModified(source.lastModified());
+		if(readOnly)
+		{
+			target.setReadOnly();
+		}
+	}
+
+	/**
+	 *
+	 * @return Files copied so far.
+	 *
+	 */
+	int getFiles()
+	{
+		return files;
+	}
+
+	/**
+	 *
+	 * @return Bytes copied so far.
+	 *
+	 */
+	long getBytes()
+	{
+		return bytes;
+	}
+}
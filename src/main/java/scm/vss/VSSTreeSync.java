@@ -0,0 +1,246 @@
+package scm.vss;
+
+import hudson.Util;
+import hudson.util.IOException2;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes a local directory tree the same as a source tree, such as a VSS
+ * shadow folder. Files are copied in parallel and only when their size or
+ * modification time differ. Files that are not in the source are deleted.
+ * Files and folders left out by the include and exclude patterns of the
+ * job are neither copied nor deleted.
+ *
+ * @author vara
+ */
+final class VSSTreeSync
+{
+	/**
+	 * Number of files copied at the same time.
+	 */
+	private static final int THREADS = Integer.getInteger(
+			VSSTreeSync.class.getName() + ".threads", 8).intValue();
+
+	/**
+	 * Indicates whether sub folders are synchronized.
+	 */
+	private final boolean recursive;
+
+	/**
+	 * Indicates whether the copied files are made read-only.
+	 */
+	private final boolean readOnly;
+
+	/**
+	 * Selects the files synchronized.
+	 */
+	private final VSSPathFilter filter;
+
+	/**
+	 * The VSS path of the source directory.
+	 */
+	private final String rootSpec;
+
+	/**
+	 * Files copied.
+	 */
+	private final AtomicInteger copied = new AtomicInteger();
+
+	/**
+	 * Files found up to date.
+	 */
+	private final AtomicInteger skipped = new AtomicInteger();
+
+	/**
+	 * Files and folders deleted.
+	 */
+	private final AtomicInteger deleted = new AtomicInteger();
+
+	/**
+	 * Bytes copied.
+	 */
+	private final AtomicLong bytes = new AtomicLong();
+
+	/**
+	 * Creates the synchronization.
+	 *
+	 * @param recursive Indicates whether sub folders are synchronized.
+	 * @param readOnly Indicates whether the copied files are made read-only.
+	 * @param filter Selects the files synchronized.
+	 * @param rootSpec The VSS path of the source directory, which the
+	 * patterns of the filter are relative to.
+	 */
+	VSSTreeSync(boolean recursive, boolean readOnly, VSSPathFilter filter, String rootSpec)
+	{
+		this.recursive = recursive;
+		this.readOnly = readOnly;
+		this.filter = filter;
+		this.rootSpec = rootSpec;
+	}
+
+	/**
+	 * Synchronizes the target directory with the source directory.
+	 *
+	 * @param source Directory to copy from.
+	 * @param target Directory to copy to.
+	 * @throws IOException Any error while copying.
+	 * @throws InterruptedException The build has been aborted.
+	 */
+	void sync(File source, File target) throws IOException, InterruptedException
+	{
+		if(!source.isDirectory())
+		{
+			throw new IOException(source + " doesn't exist or is not a folder");
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+		try
+		{
+			List<Future<Object>> copies = new ArrayList<Future<Object>>();
+			walk(source, target, rootSpec, pool, copies);
+
+			for(Future<Object> copy : copies)
+			{
+				try
+				{
+					copy.get();
+				}
+				catch(ExecutionException error)
+				{
+					if(error.getCause() instanceof IOException)
+					{
+						throw (IOException)error.getCause();
+					}
+					throw new IOException2(error.getCause());
+				}
+			}
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Synchronizes one folder, with the given VSS path, and queues the
+	 * files to be copied.
+	 */
+	private void walk(File source, File target, String spec, ExecutorService pool,
+			List<Future<Object>> copies) throws IOException, InterruptedException
+	{
+		VSSOperation.checkInterrupted();
+
+		File[] children = source.listFiles();
+		if(children == null)
+		{
+			throw new IOException("Unable to list " + source);
+		}
+		if(!target.isDirectory() && !target.mkdirs())
+		{
+			throw new IOException("Unable to create " + target);
+		}
+
+		//Delete what is no longer there.
+		Set<String> names = new HashSet<String>();
+		for(File child : children)
+		{
+			names.add(child.getName());
+		}
+		File[] existing = target.listFiles();
+		if(existing != null)
+		{
+			for(File child : existing)
+			{
+				if(!names.contains(child.getName()) && (recursive || child.isFile())
+						&& isSelected(child, spec))
+				{
+					Util.deleteRecursive(child);
+					deleted.incrementAndGet();
+				}
+			}
+		}
+
+		for(final File child : children)
+		{
+			final File copy = new File(target, child.getName());
+			if(!isSelected(child, spec))
+			{
+				continue;
+			}
+			if(child.isDirectory())
+			{
+				if(recursive)
+				{
+					walk(child, copy, getSpec(spec, child), pool, copies);
+				}
+			}
+			else if(copy.isFile() && copy.length() == child.length()
+					&& copy.lastModified() == child.lastModified())
+			{
+				skipped.incrementAndGet();
+			}
+			else
+			{
+				copies.add(pool.submit(new Callable<Object>()
+				{
+					public Object call() throws IOException
+					{
+						VSSTreeCopier.copyFile(child, copy, readOnly);
+						copied.incrementAndGet();
+						bytes.addAndGet(child.length());
+						return null;
+					}
+				}));
+			}
+		}
+	}
+
+	/**
+	 * Tells whether a file or folder of the folder with the given VSS path
+	 * is selected by the filter.
+	 */
+	private boolean isSelected(File child, String spec)
+	{
+		if(!filter.isActive())
+		{
+			return true;
+		}
+		String childSpec = getSpec(spec, child);
+		return child.isDirectory() ? filter.includesFolder(rootSpec, childSpec)
+				: filter.includes(rootSpec, childSpec);
+	}
+
+	/**
+	 * Returns the VSS path of a file or folder of the folder with the given
+	 * VSS path.
+	 */
+	private static String getSpec(String spec, File child)
+	{
+		return spec.endsWith("/") ? spec + child.getName() : spec + '/' + child.getName();
+	}
+
+	/**
+	 *
+	 * @return A summary of what has been done.
+	 *
+	 */
+	String getSummary()
+	{
+		return copied.get() + " files copied ("
+			+ VSSGetProgress.formatBytes(bytes.get()) + "), "
+			+ skipped.get() + " up to date, " + deleted.get() + " deleted";
+	}
+}
@@ -0,0 +1,430 @@
+package scm.vss;
+
+import hudson.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cleans workspaces in the background. The old contents are renamed into a
+ * trash directory next to the workspace, which is quick on the same disk,
+ * and deleted by a pool of threads while the new contents are fetched.
+ *
+ * At most a few old workspaces are kept in the trash waiting to be
+ * deleted. When the backlog is full, workspaces are cleaned right away as
+ * before. Old contents left in the trash, for example by a restart, are
+ * deleted the next time the workspace is cleaned, right away too if the
+ * backlog is full. The trash of a job is deleted with the job.
+ *
+ * The backlog is bounded by a number of old workspaces, not by disk space:
+ * the disk of the workspaces needs room for that many old copies of the
+ * largest of them.
+ *
+ * @author vara
+ */
+final class VSSWorkspaceCleaner
+{
+	private static final Logger LOGGER = Logger.getLogger(VSSWorkspaceCleaner.class.getName());
+
+	/**
+	 * Number of threads deleting old contents.
+	 */
+	private static final int THREADS = Integer.getInteger(
+			VSSWorkspaceCleaner.class.getName() + ".threads", 4).intValue();
+
+	/**
+	 * Number of old contents that may wait to be deleted.
+	 */
+	private static final int MAX_BACKLOG = Integer.getInteger(
+			VSSWorkspaceCleaner.class.getName() + ".maxBacklog", 4).intValue();
+
+	/**
+	 * Suffix of the trash directory next to a workspace.
+	 */
+	private static final String TRASH_SUFFIX = "@vss-trash";
+
+	/**
+	 * Deletes the old contents.
+	 */
+	private static final ExecutorService DELETER = Executors.newFixedThreadPool(THREADS,
+			new ThreadFactory()
+	{
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "VSS workspace cleanup");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * Trash directories whose leftovers have been queued.
+	 */
+	private static final Set<File> RECOVERED = Collections.synchronizedSet(new HashSet<File>());
+
+	/**
+	 * Makes the names of the old contents unique.
+	 */
+	private static final AtomicLong SEQUENCE = new AtomicLong();
+
+	/**
+	 * Old contents waiting to be deleted.
+	 */
+	private static final AtomicInteger BACKLOG = new AtomicInteger();
+
+	/**
+	 * Files and folders of the old contents waiting to be deleted.
+	 */
+	private static final AtomicInteger BACKLOG_ENTRIES = new AtomicInteger();
+
+	/**
+	 * Files deleted in the background.
+	 */
+	private static final AtomicLong DELETED_FILES = new AtomicLong();
+
+	/**
+	 * Bytes deleted in the background.
+	 */
+	private static final AtomicLong DELETED_BYTES = new AtomicLong();
+
+	/**
+	 * Workspaces cleaned right away because the backlog was full.
+	 */
+	private static final AtomicLong SYNCHRONOUS = new AtomicLong();
+
+	/**
+	 * Files and folders that could not be deleted.
+	 */
+	private static final AtomicLong FAILURES = new AtomicLong();
+
+	/**
+	 * Utility class.
+	 */
+	private VSSWorkspaceCleaner()
+	{
+	}
+
+	/**
+	 * Empties the workspace, deleting the old contents in the background.
+	 *
+	 * @param workspace The workspace.
+	 * @param logger Log to report to.
+	 * @throws IOException Any error while cleaning the workspace.
+	 */
+	static void cleanContents(File workspace, PrintStream logger) throws IOException
+	{
+		File[] children = workspace.listFiles();
+		if(children == null || children.length == 0)
+		{
+			return;
+		}
+
+		List<File> entries = new ArrayList<File>();
+		for(File child : children)
+		{
+			entries.add(child);
+		}
+		moveAside(workspace, entries, logger);
+	}
+
+	/**
+	 * Deletes the given files of the workspace in the background.
+	 *
+	 * @param workspace The workspace.
+	 * @param paths Paths of the files relative to the workspace.
+	 * @param logger Log to report to.
+	 * @throws IOException Any error while deleting the files.
+	 */
+	static void discard(File workspace, List<String> paths, PrintStream logger) throws IOException
+	{
+		List<File> entries = new ArrayList<File>();
+		for(String path : paths)
+		{
+			File file = new File(workspace, path);
+			if(file.exists())
+			{
+				entries.add(file);
+			}
+		}
+		if(!entries.isEmpty())
+		{
+			moveAside(workspace, entries, logger);
+		}
+	}
+
+	/**
+	 * Renames the entries into the trash and queues them to be deleted.
+	 * Entries that can not be renamed are deleted right away.
+	 */
+	private static void moveAside(File workspace, List<File> entries, PrintStream logger)
+			throws IOException
+	{
+		File trash = new File(workspace.getParentFile(), workspace.getName() + TRASH_SUFFIX);
+		if(RECOVERED.add(trash))
+		{
+			recover(trash);
+		}
+
+		File batch = new File(trash, System.currentTimeMillis() + "-" + SEQUENCE.incrementAndGet());
+		boolean reserved = reserve();
+		if(!reserved || !batch.mkdirs())
+		{
+			if(reserved)
+			{
+				BACKLOG.decrementAndGet();
+			}
+			logger.println("[checkout] Cleanup backlog full, deleting " + entries.size()
+					+ " items right away");
+			SYNCHRONOUS.incrementAndGet();
+			for(File entry : entries)
+			{
+				Util.deleteRecursive(entry);
+			}
+			return;
+		}
+
+		//Names are numbered, files deleted from different folders may have
+		//the same name.
+		List<File> moved = new ArrayList<File>();
+		int index = 0;
+		for(File entry : entries)
+		{
+			File target = new File(batch, (index++) + "-" + entry.getName());
+			if(entry.renameTo(target))
+			{
+				moved.add(target);
+			}
+			else
+			{
+				Util.deleteRecursive(entry);
+			}
+		}
+		schedule(batch, moved);
+
+		logger.println("[checkout] Moved " + moved.size() + " items aside for deletion, "
+				+ getSummary());
+	}
+
+	/**
+	 * Queues the old contents left in the trash to be deleted.
+	 */
+	private static void recover(File trash)
+	{
+		File[] batches = trash.listFiles();
+		if(batches == null)
+		{
+			return;
+		}
+		for(File batch : batches)
+		{
+			File[] entries = batch.listFiles();
+			List<File> leftovers = new ArrayList<File>();
+			if(entries != null)
+			{
+				for(File entry : entries)
+				{
+					leftovers.add(entry);
+				}
+			}
+			if(!reserve())
+			{
+				LOGGER.fine("Cleanup backlog full, deleting " + leftovers.size() 
+						+ " items left in " + batch + " right away");
+				SYNCHRONOUS.incrementAndGet();
+				try
+				{
+					Util.deleteRecursive(batch);
+				}
+				catch(IOException e)
+				{
+					FAILURES.incrementAndGet();
+					LOGGER.log(Level.WARNING, "Unable to delete " + batch, e);
+				}
+				continue;
+			}
+			LOGGER.fine("Deleting " + leftovers.size() + " items left in " + batch);
+			schedule(batch, leftovers);
+		}
+	}
+
+	/**
+	 * Deletes the trash of a workspace in the background, such as when its
+	 * job is deleted.
+	 *
+	 * @param workspace The workspace.
+	 */
+	static void deleteTrash(File workspace)
+	{
+		final File trash = new File(workspace.getParentFile(), workspace.getName() + TRASH_SUFFIX);
+		RECOVERED.remove(trash);
+		if(!trash.exists())
+		{
+			return;
+		}
+		DELETER.execute(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					Util.deleteRecursive(trash);
+				}
+				catch(IOException e)
+				{
+					FAILURES.incrementAndGet();
+					LOGGER.log(Level.WARNING, "Unable to delete " + trash, e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Takes a place in the backlog, unless it is full.
+	 *
+	 * @return True if the place has been taken.
+	 */
+	private static boolean reserve()
+	{
+		if(BACKLOG.incrementAndGet() > MAX_BACKLOG)
+		{
+			BACKLOG.decrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Deletes the entries of the batch in parallel, then the batch itself,
+	 * in the place of the backlog reserved by the caller.
+	 */
+	private static void schedule(final File batch, List<File> entries)
+	{
+		BACKLOG_ENTRIES.addAndGet(entries.size());
+		if(entries.isEmpty())
+		{
+			finish(batch);
+			return;
+		}
+
+		final AtomicInteger remaining = new AtomicInteger(entries.size());
+		for(final File entry : entries)
+		{
+			DELETER.execute(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						delete(entry);
+					}
+					catch(IOException e)
+					{
+						FAILURES.incrementAndGet();
+						LOGGER.log(Level.WARNING, "Unable to delete " + entry, e);
+					}
+					BACKLOG_ENTRIES.decrementAndGet();
+					if(remaining.decrementAndGet() == 0)
+					{
+						finish(batch);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Removes the batch once its entries are deleted.
+	 */
+	private static void finish(File batch)
+	{
+		//The whole trash may have been deleted with its job.
+		if(!batch.delete() && batch.exists())
+		{
+			FAILURES.incrementAndGet();
+			LOGGER.warning("Unable to delete " + batch);
+		}
+		BACKLOG.decrementAndGet();
+	}
+
+	/**
+	 * Deletes a file or folder, counting what is deleted. Symbolic links
+	 * are deleted, not followed.
+	 */
+	private static void delete(File file) throws IOException
+	{
+		if(file.isDirectory() && !Util.isSymlink(file))
+		{
+			File[] children = file.listFiles();
+			if(children != null)
+			{
+				for(File child : children)
+				{
+					delete(child);
+				}
+			}
+			Util.deleteFile(file);
+			return;
+		}
+
+		long length = file.length();
+		Util.deleteFile(file);
+		DELETED_FILES.incrementAndGet();
+		DELETED_BYTES.addAndGet(length);
+	}
+
+	/**
+	 *
+	 * @return Old contents waiting to be deleted.
+	 *
+	 */
+	static int getBacklog()
+	{
+		return BACKLOG.get();
+	}
+
+	/**
+	 *
+	 * @return Files and folders of the old contents waiting to be deleted.
+	 *
+	 */
+	static int getBacklogEntries()
+	{
+		return BACKLOG_ENTRIES.get();
+	}
+
+	/**
+	 *
+	 * @return Files deleted in the background so far.
+	 *
+	 */
+	static long getDeletedFiles()
+	{
+		return DELETED_FILES.get();
+	}
+
+	/**
+	 *
+	 * @return A summary of the backlog and of what has been deleted.
+	 *
+	 */
+	static String getSummary()
+	{
+		return "cleanup backlog " + BACKLOG.get() + "/" + MAX_BACKLOG + " ("
+			+ BACKLOG_ENTRIES.get() + " items), " + DELETED_FILES.get() + " files ("
+			+ VSSGetProgress.formatBytes(DELETED_BYTES.get()) + ") deleted, "
+			+ SYNCHRONOUS.get() + " cleaned right away, " + FAILURES.get() + " failures";
+	}
+}
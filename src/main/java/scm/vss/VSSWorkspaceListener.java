@@ -0,0 +1,69 @@
+package scm.vss;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.AbstractProject;
+import hudson.model.Hudson;
+import hudson.model.Item;
+import hudson.model.TopLevelItem;
+import hudson.model.listeners.ItemListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Deletes the trash kept next to the workspace of a job using VSS when the
+ * job is deleted. Jenkins does not know of it, so it would stay behind.
+ * Also forgets the change index of a job deleted or renamed, so that a job
+ * later made with the same name does not get it.
+ *
+ * @see VSSWorkspaceCleaner
+ * @author vara
+ */
+@Extension
+public class VSSWorkspaceListener extends ItemListener
+{
+	private static final Logger LOGGER = Logger.getLogger(VSSWorkspaceListener.class.getName());
+
+	@Override
+	public void onRenamed(Item item, String oldName, String newName)
+	{
+		if(item instanceof TopLevelItem)
+		{
+			VSSChangeIndex.forget(new File(item.getRootDir().getParentFile(), oldName));
+		}
+	}
+
+	@Override
+	public void onDeleted(Item item)
+	{
+		//The job may have used VSS before.
+		VSSChangeIndex.forget(item.getRootDir());
+
+		if(!(item instanceof TopLevelItem) || !(item instanceof AbstractProject)
+				|| !(((AbstractProject<?, ?>)item).getScm() instanceof VSSSCM))
+		{
+			return;
+		}
+
+		//Only the workspaces of this node are cleaned in the background.
+		FilePath workspace = Hudson.getInstance().getWorkspaceFor((TopLevelItem)item);
+		try
+		{
+			if(workspace != null && !workspace.isRemote())
+			{
+				VSSWorkspaceCleaner.deleteTrash(new File(workspace.toURI()));
+			}
+		}
+		catch(IOException e)
+		{
+			LOGGER.log(Level.WARNING, "Unable to delete the VSS trash of " + item, e);
+		}
+		catch(InterruptedException e)
+		{
+			LOGGER.log(Level.WARNING, "Unable to delete the VSS trash of " + item, e);
+		}
+	}
+}
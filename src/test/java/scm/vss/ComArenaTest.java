@@ -0,0 +1,111 @@
+package scm.vss;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import hudson.model.TaskListener;
+import hudson.util.NullStream;
+import hudson.util.StreamTaskListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the COM objects of a history walk are all released, whether
+ * the walk succeeds or a COM call fails part-way through it.
+ *
+ * @author vara
+ */
+public class ComArenaTest
+{
+	private final TaskListener listener = new StreamTaskListener(new NullStream());
+
+	private File ini;
+
+	private FakeVSSBackend backend;
+
+	private VSSSCM scm;
+
+	private String[] paths;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		ini = File.createTempFile("srcsafe", ".ini");
+		backend = FakeVSSBackend.generate(1, 200, 1000, 0, 16, 1L);
+		scm = backend.createSCM(ini);
+		paths = new String[]{backend.getProjects().get(0)};
+	}
+
+	@After
+	public void tearDown()
+	{
+		ini.delete();
+	}
+
+	@Test
+	public void releasesEveryHandleAfterAWalk() throws Exception
+	{
+		int live = ComArena.getLiveHandles();
+		int leaked = ComArena.getLeakedHandles();
+
+		assertEquals(1000, scm.getHistoryEntries(paths, new Date(0), 5000, null, listener).size());
+
+		assertEquals(0, backend.getOpenHandles());
+		assertEquals(live, ComArena.getLiveHandles());
+		assertEquals(leaked, ComArena.getLeakedHandles());
+	}
+
+	@Test
+	public void releasesTheEnumeratorOfAWalkEndedEarly() throws Exception
+	{
+		int live = ComArena.getLiveHandles();
+
+		assertEquals(10, scm.getHistoryEntries(paths, new Date(0), 10, null, listener).size());
+
+		assertEquals(0, backend.getOpenHandles());
+		assertEquals(live, ComArena.getLiveHandles());
+	}
+
+	@Test
+	public void releasesEveryHandleWhenACallFails() throws Exception
+	{
+		int live = ComArena.getLiveHandles();
+		int leaked = ComArena.getLeakedHandles();
+
+		backend.failOn("IVSSVersion.action", 100);
+		try
+		{
+			scm.getHistoryEntries(paths, new Date(0), 5000, null, listener);
+			fail("The walk should have failed");
+		}
+		catch(IOException expected)
+		{
+			assertTrue(expected.getCause().getMessage().contains("IVSSVersion.action"));
+		}
+
+		assertEquals(0, backend.getOpenHandles());
+		assertEquals(live, ComArena.getLiveHandles());
+		assertEquals(leaked, ComArena.getLeakedHandles());
+	}
+
+	@Test
+	public void countsTheHandlesThatCanNotBeDisposed() throws Exception
+	{
+		int live = ComArena.getLiveHandles();
+		int leaked = ComArena.getLeakedHandles();
+
+		backend.failOn("IVSSVersion.dispose", 10);
+		assertEquals(1000, scm.getHistoryEntries(paths, new Date(0), 5000, null, listener).size());
+
+		assertEquals(1, backend.getOpenHandles());
+		assertEquals(live, ComArena.getLiveHandles());
+		assertEquals(leaked + 1, ComArena.getLeakedHandles());
+	}
+}
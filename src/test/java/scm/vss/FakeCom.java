@@ -0,0 +1,154 @@
+package scm.vss;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com4j.Com4jObject;
+
+/**
+ * Implements a VSS COM interface with a plain object. Calls are forwarded
+ * to the public method of the object with the same name and parameters;
+ * disposing does nothing and querying an interface wraps the same object
+ * in a new COM object. Methods the object does not have fail. An
+ * interceptor may be told of each call, for example to count them or to
+ * simulate latency.
+ *
+ * @author vara
+ */
+final class FakeCom implements InvocationHandler
+{
+	/**
+	 * Methods of the objects, by object class and interface method.
+	 */
+	private static final Map<String, Method> METHODS = new ConcurrentHashMap<String, Method>();
+
+	/**
+	 * Told of the calls made to a COM object.
+	 */
+	interface Interceptor
+	{
+		/**
+		 * Called before each call.
+		 *
+		 * @param type The COM interface.
+		 * @param method The method called.
+		 */
+		void call(Class<?> type, Method method);
+	}
+
+	/**
+	 * The COM interface.
+	 */
+	private final Class<?> type;
+
+	/**
+	 * The object implementing the interface.
+	 */
+	private final Object target;
+
+	/**
+	 * Told of the calls, may be null.
+	 */
+	private final Interceptor interceptor;
+
+	private FakeCom(Class<?> type, Object target, Interceptor interceptor)
+	{
+		this.type = type;
+		this.target = target;
+		this.interceptor = interceptor;
+	}
+
+	/**
+	 * Wraps the object in the given interface.
+	 *
+	 * @param type The COM interface.
+	 * @param target The object implementing it.
+	 * @return The COM object.
+	 */
+	static <T extends Com4jObject> T wrap(Class<T> type, Object target)
+	{
+		return wrap(type, target, null);
+	}
+
+	/**
+	 * Wraps the object in the given interface, telling the interceptor of
+	 * the calls.
+	 *
+	 * @param type The COM interface.
+	 * @param target The object implementing it.
+	 * @param interceptor Told of the calls, may be null.
+	 * @return The COM object.
+	 */
+	static <T extends Com4jObject> T wrap(Class<T> type, Object target, Interceptor interceptor)
+	{
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), 
+				new Class[]{type}, new FakeCom(type, target, interceptor)));
+	}
+
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+	{
+		String name = method.getName();
+		if(method.getDeclaringClass() == Object.class)
+		{
+			if("equals".equals(name))
+			{
+				return Boolean.valueOf(proxy == args[0]);
+			}
+			if("hashCode".equals(name))
+			{
+				return Integer.valueOf(System.identityHashCode(proxy));
+			}
+			return target.toString();
+		}
+		if(interceptor != null)
+		{
+			interceptor.call(type, method);
+		}
+		if("dispose".equals(name))
+		{
+			return null;
+		}
+		if("queryInterface".equals(name))
+		{
+			Class<? extends Com4jObject> other = ((Class<?>)args[0]).asSubclass(Com4jObject.class);
+			return wrap(other, target, interceptor);
+		}
+
+		try
+		{
+			return lookup(method).invoke(target, args);
+		}
+		catch(InvocationTargetException error)
+		{
+			throw error.getCause();
+		}
+	}
+
+	/**
+	 * Finds the method of the object implementing the interface method.
+	 */
+	private Method lookup(Method method)
+	{
+		String key = target.getClass().getName() + '#' + method;
+		Method implementation = METHODS.get(key);
+		if(implementation == null)
+		{
+			try
+			{
+				implementation = target.getClass().getMethod(method.getName(), method.getParameterTypes());
+			}
+			catch(NoSuchMethodException error)
+			{
+				throw new UnsupportedOperationException(target.getClass().getSimpleName() 
+						+ " does not implement " + method.getName());
+			}
+			implementation.setAccessible(true);
+			METHODS.put(key, implementation);
+		}
+		return implementation;
+	}
+}
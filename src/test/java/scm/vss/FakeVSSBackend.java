@@ -0,0 +1,854 @@
+package scm.vss;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import vss.IVSSDatabase;
+import vss.IVSSItem;
+import vss.IVSSItems;
+import vss.IVSSVersion;
+import vss.IVSSVersions;
+import vss.VSSFlags;
+
+import com4j.Com4jObject;
+import com4j.Holder;
+
+/**
+ * An in-memory VSS database for tests and load testing. The tree and its versions are
+ * kept in plain objects and arrays and served through the VSS COM
+ * interfaces, each call waiting for the configured latency and being
+ * counted. New check-ins can be made while jobs work with the database.
+ *
+ * Versions are kept oldest first in arrays sized up front, so that a
+ * million versions take a few tens of megabytes. Files are numbered so that
+ * the files under a project have consecutive numbers, which makes the
+ * recursive history of a project a range check.
+ *
+ * @author vara
+ */
+final class FakeVSSBackend implements FakeCom.Interceptor
+{
+	/**
+	 * Type of projects, as returned by IVSSItem.type().
+	 */
+	private static final int PROJECT = 0;
+
+	/**
+	 * Type of files.
+	 */
+	private static final int FILE = 1;
+
+	/**
+	 * Files in each generated folder.
+	 */
+	private static final int FILES_PER_FOLDER = 50;
+
+	/**
+	 * Sub folders of each generated folder.
+	 */
+	private static final int FOLDERS_PER_FOLDER = 4;
+
+	/**
+	 * Time between the generated versions.
+	 */
+	private static final long VERSION_INTERVAL = 10000L;
+
+	/**
+	 * The root project.
+	 */
+	private final Node root;
+
+	/**
+	 * Items by lower case path.
+	 */
+	private final Map<String, Node> items = new HashMap<String, Node>();
+
+	/**
+	 * Files by number.
+	 */
+	private final Node[] files;
+
+	/**
+	 * Latest version of each file.
+	 */
+	private final int[] latest;
+
+	/**
+	 * File of each version, oldest first.
+	 */
+	private final int[] versionFile;
+
+	/**
+	 * Number of each version within its file.
+	 */
+	private final int[] versionNumber;
+
+	/**
+	 * Time of each version.
+	 */
+	private final long[] versionTime;
+
+	/**
+	 * Versions made so far. Versions below are never changed.
+	 */
+	private volatile int versionCount = 0;
+
+	/**
+	 * Bytes written for each file fetched.
+	 */
+	private final int fileSize;
+
+	/**
+	 * Latency of each call.
+	 */
+	private volatile long latencyNanos = 0;
+
+	/**
+	 * Calls made, by interface and method.
+	 */
+	private final ConcurrentHashMap<String, AtomicLong> calls = new ConcurrentHashMap<String, AtomicLong>();
+
+	/**
+	 * COM objects handed out and not yet disposed.
+	 */
+	private final AtomicLong openHandles = new AtomicLong();
+
+	/**
+	 * The call made to fail, null for none.
+	 */
+	private volatile String failingCall = null;
+
+	/**
+	 * Calls of the failing call left before it fails.
+	 */
+	private final AtomicLong callsBeforeFailure = new AtomicLong();
+
+	/**
+	 * Creates the database from a tree whose files are numbered.
+	 */
+	private FakeVSSBackend(Node root, List<Node> files, int capacity, int fileSize)
+	{
+		this.root = root;
+		this.files = files.toArray(new Node[files.size()]);
+		this.latest = new int[files.size()];
+		this.versionFile = new int[capacity];
+		this.versionNumber = new int[capacity];
+		this.versionTime = new long[capacity];
+		this.fileSize = fileSize;
+		index(root);
+	}
+
+	/**
+	 * Generates a database. The files are spread over the given number of
+	 * top projects, each a tree of folders. Every file is created first, the
+	 * other versions are check-ins of random files, ten seconds apart and
+	 * ending now.
+	 *
+	 * @param projects Number of projects under the root.
+	 * @param fileCount Number of files.
+	 * @param versions Number of versions, at least the number of files.
+	 * @param checkins Number of check-ins that can be made afterwards.
+	 * @param fileSize Bytes written for each file fetched.
+	 * @param seed Seed of the random choices.
+	 * @return The database.
+	 */
+	static FakeVSSBackend generate(int projects, int fileCount, int versions, int checkins,
+			int fileSize, long seed)
+	{
+		Node root = new Node(null, "$", true);
+		for(int index = 0;index < projects;index ++)
+		{
+			Node project = new Node(root, "Project" + index, true);
+			int share = fileCount / projects + (index < fileCount % projects ? 1 : 0);
+			fill(project, share);
+		}
+
+		//Number the files so that each project has a range.
+		List<Node> files = new ArrayList<Node>(fileCount);
+		number(root, files);
+
+		int total = Math.max(versions, fileCount);
+		FakeVSSBackend backend = new FakeVSSBackend(root, files, total + checkins, fileSize);
+		Random random = new Random(seed);
+		long start = System.currentTimeMillis() - total * VERSION_INTERVAL;
+		for(int index = 0;index < total;index ++)
+		{
+			int file = index < fileCount ? index : random.nextInt(fileCount);
+			backend.add(file, start + index * VERSION_INTERVAL);
+		}
+		return backend;
+	}
+
+	/**
+	 * Fills the project with a tree of folders holding the given number of
+	 * files, breadth first.
+	 */
+	private static void fill(Node project, int fileCount)
+	{
+		List<Node> pending = new ArrayList<Node>();
+		pending.add(project);
+		int created = 0;
+		for(int next = 0;created < fileCount;next ++)
+		{
+			Node folder = pending.get(next);
+			for(int index = 0;index < FILES_PER_FOLDER && created < fileCount;index ++)
+			{
+				new Node(folder, "File" + index + ".cs", false);
+				created++;
+			}
+			for(int index = 0;index < FOLDERS_PER_FOLDER && created < fileCount;index ++)
+			{
+				pending.add(new Node(folder, "Folder" + index, true));
+			}
+		}
+	}
+
+	/**
+	 * Numbers the files depth first.
+	 */
+	private static void number(Node folder, List<Node> files)
+	{
+		folder.first = files.size();
+		for(Node child : folder.children)
+		{
+			if(child.project)
+			{
+				number(child, files);
+			}
+			else
+			{
+				child.first = files.size();
+				files.add(child);
+				child.end = files.size();
+			}
+		}
+		folder.end = files.size();
+	}
+
+	/**
+	 * Indexes the items by path.
+	 */
+	private void index(Node node)
+	{
+		items.put(node.spec.toLowerCase(), node);
+		if(node.project)
+		{
+			for(Node child : node.children)
+			{
+				index(child);
+			}
+		}
+	}
+
+	/**
+	 * Adds a version of the file.
+	 */
+	private synchronized void add(int file, long time)
+	{
+		int index = versionCount;
+		if(index == versionFile.length)
+		{
+			throw new IllegalStateException("No room for more versions");
+		}
+		versionFile[index] = file;
+		versionNumber[index] = ++latest[file];
+		versionTime[index] = time;
+		versionCount = index + 1;
+	}
+
+	/**
+	 * Checks in a new version of a random file under the given path now.
+	 *
+	 * @param spec VSS path of a project or file.
+	 * @param random Chooses the file.
+	 * @return VSS path of the file checked in.
+	 */
+	String checkIn(String spec, Random random)
+	{
+		Node node = find(spec);
+		int file = node.first + random.nextInt(node.end - node.first);
+		add(file, System.currentTimeMillis());
+		return files[file].spec;
+	}
+
+	/**
+	 * Creates a database object, to be opened, for the VSS seam of the
+	 * plugin.
+	 *
+	 * @return The database factory.
+	 */
+	VSSDatabaseFactory getDatabaseFactory()
+	{
+		return new VSSDatabaseFactory()
+		{
+			public IVSSDatabase createDatabase()
+			{
+				return wrap(IVSSDatabase.class, new Database());
+			}
+		};
+	}
+
+	/**
+	 * Creates a job getting the first project, recursively, from this
+	 * database. The calls made so far are forgotten.
+	 *
+	 * @param ini The srcsafe.ini file of the job, which is checked for
+	 * before the database is opened.
+	 * @return The job configuration.
+	 */
+	VSSSCM createSCM(File ini)
+	{
+		VSSSCM scm = new VSSSCM(ini.getPath(), "test", "", getProjects().get(0), false, true, false);
+		scm.setDatabaseFactory(getDatabaseFactory());
+		resetCalls();
+		return scm;
+	}
+
+	/**
+	 * Sets the time each call takes.
+	 *
+	 * @param latencyMicros Latency in microseconds.
+	 */
+	void setLatency(long latencyMicros)
+	{
+		latencyNanos = latencyMicros * 1000L;
+	}
+
+	public void call(Class<?> type, Method method)
+	{
+		call(type.getSimpleName() + '.' + method.getName());
+
+		//Querying an interface hands out a new object, as with com4j.
+		if("queryInterface".equals(method.getName()))
+		{
+			openHandles.incrementAndGet();
+		}
+		else if("dispose".equals(method.getName()))
+		{
+			openHandles.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Makes a call fail, as a COM error would, the given time it is made.
+	 *
+	 * @param name The interface and method, such as 
+	 * <tt>IVSSVersion.action</tt>.
+	 * @param count Number of the call to fail, 1 for the next.
+	 */
+	void failOn(String name, int count)
+	{
+		callsBeforeFailure.set(count);
+		failingCall = name;
+	}
+
+	/**
+	 *
+	 * @return Number of COM objects handed out and not yet disposed.
+	 *
+	 */
+	long getOpenHandles()
+	{
+		return openHandles.get();
+	}
+
+	/**
+	 * Counts a call and waits for the latency.
+	 *
+	 * @param name The interface and method called.
+	 */
+	private void call(String name)
+	{
+		AtomicLong count = calls.get(name);
+		if(count == null)
+		{
+			calls.putIfAbsent(name, new AtomicLong());
+			count = calls.get(name);
+		}
+		count.incrementAndGet();
+
+		if(name.equals(failingCall) && callsBeforeFailure.decrementAndGet() == 0)
+		{
+			failingCall = null;
+			throw new IllegalStateException("Simulated COM failure of " + name);
+		}
+
+		long latency = latencyNanos;
+		if(latency > 0)
+		{
+			LockSupport.parkNanos(latency);
+		}
+	}
+
+	/**
+	 *
+	 * @return Calls made so far, by interface and method.
+	 *
+	 */
+	Map<String, Long> getCalls()
+	{
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for(Map.Entry<String, AtomicLong> entry : calls.entrySet())
+		{
+			counts.put(entry.getKey(), Long.valueOf(entry.getValue().get()));
+		}
+		return counts;
+	}
+
+	/**
+	 *
+	 * @return Total number of calls made so far.
+	 *
+	 */
+	long getTotalCalls()
+	{
+		long total = 0;
+		for(AtomicLong count : calls.values())
+		{
+			total += count.get();
+		}
+		return total;
+	}
+
+	/**
+	 * Forgets the calls made so far.
+	 */
+	void resetCalls()
+	{
+		calls.clear();
+	}
+
+	/**
+	 *
+	 * @return Number of files.
+	 *
+	 */
+	int getFileCount()
+	{
+		return files.length;
+	}
+
+	/**
+	 *
+	 * @return Number of versions.
+	 *
+	 */
+	int getVersionCount()
+	{
+		return versionCount;
+	}
+
+	/**
+	 *
+	 * @return VSS paths of the projects under the root.
+	 *
+	 */
+	List<String> getProjects()
+	{
+		List<String> projects = new ArrayList<String>();
+		for(Node child : root.children)
+		{
+			if(child.project)
+			{
+				projects.add(child.spec);
+			}
+		}
+		return projects;
+	}
+
+	/**
+	 * Finds the item with the given path.
+	 */
+	private Node find(String spec)
+	{
+		String key = spec.replace('\\', '/');
+		while(key.length() > 2 && key.endsWith("/"))
+		{
+			key = key.substring(0, key.length() - 1);
+		}
+		Node node = items.get("$/".equals(key) ? "$" : key.toLowerCase());
+		if(node == null)
+		{
+			throw new IllegalArgumentException(spec + " is not an existing filename or project");
+		}
+		return node;
+	}
+
+	/**
+	 * Wraps an object of this database, so that its calls are counted.
+	 */
+	private <T extends Com4jObject> T wrap(Class<T> type, Object target)
+	{
+		openHandles.incrementAndGet();
+		return FakeCom.wrap(type, target, this);
+	}
+
+	/**
+	 * Writes a file as fetched from VSS.
+	 */
+	private void write(Node file, File local, boolean readOnly)
+	{
+		try
+		{
+			if(local.exists() && !local.delete())
+			{
+				throw new IOException("Unable to replace " + local);
+			}
+			byte[] line = (file.spec + " version " + latest[file.first] + "\r\n").getBytes("UTF-8");
+			OutputStream out = new FileOutputStream(local);
+			try
+			{
+				for(int written = 0;written < fileSize;written += line.length)
+				{
+					out.write(line, 0, Math.min(line.length, fileSize - written));
+				}
+			}
+			finally
+			{
+				out.close();
+			}
+			if(readOnly)
+			{
+				local.setReadOnly();
+			}
+		}
+		catch(IOException error)
+		{
+			throw new IllegalStateException("Unable to write " + local, error);
+		}
+	}
+
+	/**
+	 * A project or file of the tree.
+	 */
+	private static final class Node
+	{
+		final String spec;
+
+		final String name;
+
+		final boolean project;
+
+		final Node parent;
+
+		final List<Node> children = new ArrayList<Node>();
+
+		/**
+		 * First number of the files under the project, or of the file.
+		 */
+		int first;
+
+		/**
+		 * Number after the last file under the project, or after the file.
+		 */
+		int end;
+
+		Node(Node parent, String name, boolean project)
+		{
+			this.parent = parent;
+			this.name = name;
+			this.project = project;
+			this.spec = parent == null ? name : parent.spec + "/" + name;
+			if(parent != null)
+			{
+				parent.children.add(this);
+			}
+		}
+	}
+
+	/**
+	 * IVSSDatabase.
+	 */
+	public final class Database
+	{
+		public void open(String ini, String user, String password)
+		{
+		}
+
+		public IVSSItem vssItem(String spec, boolean deleted)
+		{
+			return wrap(IVSSItem.class, new Item(find(spec)));
+		}
+	}
+
+	/**
+	 * IVSSItem.
+	 */
+	public final class Item
+	{
+		private final Node node;
+
+		Item(Node node)
+		{
+			this.node = node;
+		}
+
+		public String spec()
+		{
+			return node.project && node.parent == null ? "$/" : node.spec;
+		}
+
+		public String name()
+		{
+			return node.name;
+		}
+
+		public int type()
+		{
+			return node.project ? PROJECT : FILE;
+		}
+
+		public boolean deleted()
+		{
+			return false;
+		}
+
+		public int versionNumber()
+		{
+			return node.project ? 1 : latest[node.first];
+		}
+
+		public IVSSItem parent()
+		{
+			return node.parent == null ? null : wrap(IVSSItem.class, new Item(node.parent));
+		}
+
+		public IVSSItem version(Object version)
+		{
+			return wrap(IVSSItem.class, new Item(node));
+		}
+
+		public IVSSItems items(boolean deleted)
+		{
+			return wrap(IVSSItems.class, new Items(node));
+		}
+
+		public IVSSVersions versions(int flags)
+		{
+			boolean recursive = (flags & VSSFlags.VSSFLAG_RECURSYES.comEnumValue()) != 0;
+			return wrap(IVSSVersions.class, new Versions(node, recursive));
+		}
+
+		public void get(Holder<String> local, int flags)
+		{
+			boolean readOnly = (flags & VSSFlags.VSSFLAG_USERROYES.comEnumValue()) != 0;
+			File target = new File(local.value);
+			if(!node.project)
+			{
+				write(node, target, readOnly);
+				return;
+			}
+
+			//Only the files of the project, sub projects are walked by the
+			//plugin itself.
+			target.mkdirs();
+			for(Node child : node.children)
+			{
+				if(!child.project)
+				{
+					write(child, new File(target, child.name), readOnly);
+				}
+			}
+		}
+	}
+
+	/**
+	 * IVSSItems.
+	 */
+	public final class Items implements Iterable<Com4jObject>
+	{
+		private final Node node;
+
+		Items(Node node)
+		{
+			this.node = node;
+		}
+
+		public int count()
+		{
+			return node.children.size();
+		}
+
+		public Iterator<Com4jObject> iterator()
+		{
+			final Iterator<Node> children = node.children.iterator();
+			return new Iterator<Com4jObject>()
+			{
+				public boolean hasNext()
+				{
+					return children.hasNext();
+				}
+
+				public Com4jObject next()
+				{
+					//Each item is fetched from the enumerator.
+					call("IEnumVARIANT.next");
+					return wrap(IVSSItem.class, new Item(children.next()));
+				}
+
+				public void remove()
+				{
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+	}
+
+	/**
+	 * IVSSVersions, newest first. Check-ins made while iterating are not
+	 * seen.
+	 */
+	public final class Versions implements Iterable<Com4jObject>
+	{
+		private final Node node;
+
+		private final boolean recursive;
+
+		Versions(Node node, boolean recursive)
+		{
+			this.node = node;
+			this.recursive = recursive;
+		}
+
+		public Iterator<Com4jObject> iterator()
+		{
+			return new Enumerator(versionCount);
+		}
+
+		/**
+		 * The enumerator of the versions. As with com4j, it holds a handle
+		 * until it is exhausted or disposed.
+		 */
+		public final class Enumerator implements Iterator<Com4jObject>
+		{
+			private int next;
+
+			private boolean open = true;
+
+			Enumerator(int count)
+			{
+				openHandles.incrementAndGet();
+				next = seek(count - 1);
+				if(next < 0)
+				{
+					dispose();
+				}
+			}
+
+			public boolean hasNext()
+			{
+				return next >= 0;
+			}
+
+			public Com4jObject next()
+			{
+				call("IEnumVARIANT.next");
+				int index = next;
+				next = seek(index - 1);
+				if(next < 0)
+				{
+					dispose();
+				}
+				return wrap(IVSSVersion.class, new Version(index));
+			}
+
+			public void remove()
+			{
+				throw new UnsupportedOperationException();
+			}
+
+			/**
+			 * Releases the handle, once.
+			 */
+			public void dispose()
+			{
+				if(open)
+				{
+					call("IEnumVARIANT.dispose");
+					open = false;
+					openHandles.decrementAndGet();
+				}
+			}
+		}
+
+		/**
+		 * Finds the newest version of this item from the given index.
+		 */
+		private int seek(int index)
+		{
+			while(index >= 0)
+			{
+				Node file = files[versionFile[index]];
+				if(node.project ? (recursive ? file.first >= node.first && file.first < node.end
+						: file.parent == node) : file == node)
+				{
+					break;
+				}
+				index--;
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * IVSSVersion.
+	 */
+	public final class Version
+	{
+		private final int index;
+
+		Version(int index)
+		{
+			this.index = index;
+		}
+
+		public Date date()
+		{
+			return new Date(versionTime[index]);
+		}
+
+		public String username()
+		{
+			return "user" + (versionFile[index] % 20);
+		}
+
+		public String comment()
+		{
+			return "Change " + index + " to " + files[versionFile[index]].name;
+		}
+
+		public String action()
+		{
+			return versionNumber[index] == 1 ? "Created" : "Checked in";
+		}
+
+		public int versionNumber()
+		{
+			return versionNumber[index];
+		}
+
+		public String label()
+		{
+			return "";
+		}
+
+		public IVSSItem vssItem()
+		{
+			return wrap(IVSSItem.class, new Item(files[versionFile[index]]));
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package scm.vss;
+
+import static org.junit.Assert.assertTrue;
+
+import hudson.model.TaskListener;
+import hudson.util.NullStream;
+import hudson.util.StreamTaskListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Walks the history of a generated in-memory VSS database and checks the
+ * VSS calls made per history entry against a budget, with and without the
+ * details of the entries.
+ *
+ * @author vara
+ */
+public class VSSCallBudgetTest
+{
+	/**
+	 * Calls per entry when the file, user, comment and action are read: the
+	 * enumeration, the version, its item and their properties, and their
+	 * release.
+	 */
+	private static final double DETAILS_BUDGET = 12;
+
+	/**
+	 * Calls per entry when only the dates are read, as when polling.
+	 */
+	private static final double SUMMARY_BUDGET = 5;
+
+	/**
+	 * Calls made once per walk, such as opening the database.
+	 */
+	private static final int WALK_CALLS = 10;
+
+	/**
+	 * Entries walked.
+	 */
+	private static final int ENTRIES = 5000;
+
+	private final TaskListener listener = new StreamTaskListener(new NullStream());
+
+	private File ini;
+
+	private FakeVSSBackend backend;
+
+	private VSSSCM scm;
+
+	private String[] paths;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		ini = File.createTempFile("srcsafe", ".ini");
+		backend = FakeVSSBackend.generate(1, 2000, 20000, 0, 16, 1L);
+		scm = backend.createSCM(ini);
+		paths = new String[]{backend.getProjects().get(0)};
+	}
+
+	@After
+	public void tearDown()
+	{
+		ini.delete();
+	}
+
+	@Test
+	public void staysWithinBudgetWithDetails() throws Exception
+	{
+		int entries = scm.getHistoryEntries(paths, new Date(0), ENTRIES, null, listener).size();
+
+		assertWithinBudget(entries, DETAILS_BUDGET);
+	}
+
+	@Test
+	public void staysWithinBudgetWithDeletions() throws Exception
+	{
+		int entries = scm.getHistoryEntries(paths, new Date(0), ENTRIES, new ArrayList<String>(),
+				listener).size();
+
+		assertWithinBudget(entries, DETAILS_BUDGET);
+	}
+
+	@Test
+	public void staysWithinBudgetWithoutDetails() throws Exception
+	{
+		int entries = scm.getHistoryEntries(paths, new Date(0), ENTRIES, null, false, listener).size();
+
+		assertWithinBudget(entries, SUMMARY_BUDGET);
+	}
+
+	/**
+	 * Checks the calls made per entry, reporting them by method if over
+	 * budget.
+	 */
+	private void assertWithinBudget(int entries, double budget)
+	{
+		long total = backend.getTotalCalls();
+		double perEntry = (double)Math.max(total - WALK_CALLS, 0) / Math.max(entries, 1);
+		assertTrue("No entries walked", entries > 0);
+		assertTrue(String.format("%.2f calls per entry, budget %.0f: %s", Double.valueOf(perEntry),
+				Double.valueOf(budget), backend.getCalls()), perEntry <= budget);
+	}
+}
@@ -0,0 +1,351 @@
+package scm.vss;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes small VSS databases for the tests of {@link VSSDatabaseReader},
+ * with the record layout the reader expects. Each item is built from its
+ * revisions, oldest first, and written to data/x/xxxxxxxx under the folder
+ * of the fixture, next to its srcsafe.ini.
+ *
+ * The files can then be damaged with {@link #truncate(String, int)} and
+ * {@link #patch(String, int, byte[])}.
+ *
+ * @author vara
+ */
+final class VSSDatabaseFixture
+{
+	/**
+	 * Item type of a project.
+	 */
+	static final int PROJECT = 1;
+
+	/**
+	 * Item type of a file.
+	 */
+	static final int FILE = 2;
+
+	/**
+	 * Physical name of the root project.
+	 */
+	static final String ROOT = "AAAAAAAA";
+
+	private final File folder;
+
+	private final File data;
+
+	/**
+	 * Creates an empty database in a new temporary folder.
+	 *
+	 * @throws IOException Any error while creating the folder.
+	 */
+	VSSDatabaseFixture() throws IOException
+	{
+		folder = File.createTempFile("vssdb", "");
+		if(!folder.delete() || !folder.mkdir())
+		{
+			throw new IOException("Unable to create " + folder);
+		}
+		data = new File(folder, "data");
+		write(getIni(), "[General]\r\nData_Path = data\r\n".getBytes("ISO-8859-1"));
+	}
+
+	/**
+	 *
+	 * @return The srcsafe.ini file of the database.
+	 *
+	 */
+	File getIni()
+	{
+		return new File(folder, "srcsafe.ini");
+	}
+
+	/**
+	 * Returns the physical file with the given name.
+	 *
+	 * @param physical Physical name, with its extension if any.
+	 * @return The file.
+	 */
+	File getFile(String physical)
+	{
+		String lower = physical.toLowerCase();
+		return new File(new File(data, lower.substring(0, 1)), lower);
+	}
+
+	/**
+	 * Starts an item.
+	 *
+	 * @param physical Physical name of the item.
+	 * @param type {@link #PROJECT} or {@link #FILE}.
+	 * @return The item, to add revisions and entries to.
+	 */
+	Item item(String physical, int type)
+	{
+		return new Item(physical, type);
+	}
+
+	/**
+	 * Cuts the given number of bytes off the end of a physical file.
+	 *
+	 * @param physical Physical name of the file.
+	 * @param count Number of bytes to remove.
+	 * @throws IOException Any error while writing the file.
+	 */
+	void truncate(String physical, int count) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(getFile(physical), "rw");
+		try
+		{
+			raf.setLength(raf.length() - count);
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * Overwrites bytes of a physical file.
+	 *
+	 * @param physical Physical name of the file.
+	 * @param offset Offset of the bytes.
+	 * @param bytes The new bytes.
+	 * @throws IOException Any error while writing the file.
+	 */
+	void patch(String physical, int offset, byte[] bytes) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(getFile(physical), "rw");
+		try
+		{
+			raf.seek(offset);
+			raf.write(bytes);
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * Deletes the database.
+	 */
+	void delete()
+	{
+		delete(folder);
+	}
+
+	private static void delete(File file)
+	{
+		File[] children = file.listFiles();
+		if(children != null)
+		{
+			for(File child : children)
+			{
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	private static void write(File file, byte[] bytes) throws IOException
+	{
+		file.getParentFile().mkdirs();
+		FileOutputStream out = new FileOutputStream(file);
+		try
+		{
+			out.write(bytes);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * An item of the database being built.
+	 */
+	final class Item
+	{
+		private final String physical;
+
+		private final int type;
+
+		private final Buffer revisions = new Buffer();
+
+		private final List<Integer> revisionOffsets = new ArrayList<Integer>();
+
+		private final Buffer entries = new Buffer();
+
+		/**
+		 * Offset of the first revision, after the file header and the DH
+		 * record.
+		 */
+		private final int start = VSSRecordFile.FILE_HEADER_LENGTH + 8 + 56;
+
+		Item(String physical, int type)
+		{
+			this.physical = physical;
+			this.type = type;
+		}
+
+		/**
+		 * Adds a revision, newer than the ones added before.
+		 *
+		 * @param action Action code.
+		 * @param version Version number.
+		 * @param seconds Date, in seconds since 1970.
+		 * @param user Name of the user.
+		 * @param comment Comment, null for none.
+		 * @param name Name of the entry the action is on, for the actions
+		 * of a project.
+		 * @return This item.
+		 */
+		Item revision(int action, int version, long seconds, String user, String comment, String name)
+		{
+			int commentOffset = 0;
+			int commentLength = 0;
+			if(comment != null)
+			{
+				commentOffset = start + revisions.size();
+				Buffer text = new Buffer().string(comment, comment.length() + 1);
+				commentLength = text.size();
+				revisions.record("MC", text);
+			}
+
+			Buffer record = new Buffer();
+			record.int32(revisionOffsets.isEmpty() ? 0 : revisionOffsets.get(revisionOffsets.size() - 1));
+			record.int16(action).int16(version).int32((int)seconds);
+			record.string(user, 32).zeros(32);
+			record.int32(commentOffset).zeros(4).int16(commentLength).zeros(2);
+			if(action >= 12 && action <= 14)
+			{
+				record.zeros(260);
+			}
+			if(name != null)
+			{
+				record.int16(0).string(name, 34).int32(0);
+			}
+			revisionOffsets.add(Integer.valueOf(start + revisions.size()));
+			revisions.record("EL", record);
+			return this;
+		}
+
+		/**
+		 * Adds an entry to a project.
+		 *
+		 * @param name Name of the entry.
+		 * @param entry Physical name of the entry.
+		 * @param entryType {@link #PROJECT} or {@link #FILE}.
+		 * @return This item.
+		 */
+		Item entry(String name, String entry, int entryType)
+		{
+			Buffer record = new Buffer();
+			record.int16(entryType).int16(0);
+			record.int16(entryType == PROJECT ? 1 : 0).string(name, 34).int32(0);
+			record.zeros(2).string(entry, 10);
+			entries.record("JP", record);
+			return this;
+		}
+
+		/**
+		 * Writes the item file, and the entries file of a project.
+		 *
+		 * @throws IOException Any error while writing.
+		 */
+		void write() throws IOException
+		{
+			Buffer file = header();
+			Buffer dh = new Buffer();
+			dh.int16(type).int16(revisionOffsets.size()).zeros(42).string("a", 2).zeros(4);
+			dh.int32(revisionOffsets.isEmpty() ? 0 : revisionOffsets.get(revisionOffsets.size() - 1));
+			dh.zeros(56 - dh.size());
+			file.record("DH", dh).append(revisions);
+			VSSDatabaseFixture.write(getFile(physical), file.toByteArray());
+
+			if(type == PROJECT)
+			{
+				VSSDatabaseFixture.write(getFile(physical + ".a"), header().append(entries).toByteArray());
+			}
+		}
+
+		private Buffer header()
+		{
+			Buffer header = new Buffer().string(VSSRecordFile.FILE_SIGNATURE, 0x20).int16(type).int16(6);
+			return header.zeros(VSSRecordFile.FILE_HEADER_LENGTH - header.size());
+		}
+	}
+
+	/**
+	 * Little endian bytes being written.
+	 */
+	private static final class Buffer
+	{
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		Buffer int16(int value)
+		{
+			bytes.write(value);
+			bytes.write(value >> 8);
+			return this;
+		}
+
+		Buffer int32(int value)
+		{
+			return int16(value).int16(value >> 16);
+		}
+
+		Buffer zeros(int count)
+		{
+			for(int index = 0;index < count;index ++)
+			{
+				bytes.write(0);
+			}
+			return this;
+		}
+
+		/**
+		 * Writes a string into a zero-padded field of the given length.
+		 */
+		Buffer string(String value, int length)
+		{
+			for(int index = 0;index < length;index ++)
+			{
+				bytes.write(index < value.length() ? value.charAt(index) : 0);
+			}
+			return this;
+		}
+
+		/**
+		 * Writes a record with the given signature and data.
+		 */
+		Buffer record(String signature, Buffer data)
+		{
+			int32(data.size()).string(signature, 2).int16(0);
+			return append(data);
+		}
+
+		Buffer append(Buffer other)
+		{
+			byte[] content = other.toByteArray();
+			bytes.write(content, 0, content.length);
+			return this;
+		}
+
+		int size()
+		{
+			return bytes.size();
+		}
+
+		byte[] toByteArray()
+		{
+			return bytes.toByteArray();
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package scm.vss;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Reads databases written by {@link VSSDatabaseFixture}, valid and
+ * damaged ones.
+ *
+ * @author vara
+ */
+public class VSSDatabaseReaderTest
+{
+	/**
+	 * Date of the first revision, in seconds since 1970.
+	 */
+	private static final long START = 1300000000L;
+
+	private static final String FILE_A = "BAAAAAAA";
+
+	private static final String FILE_B = "CAAAAAAA";
+
+	private final VSSPathFilter filter = new VSSPathFilter("", "");
+
+	private VSSDatabaseFixture fixture;
+
+	private VSSDatabaseReader reader;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		fixture = new VSSDatabaseFixture();
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		if(reader != null)
+		{
+			reader.close();
+		}
+		fixture.delete();
+	}
+
+	/**
+	 * Writes a root project holding a.txt and b.txt, each checked in the
+	 * given number of times, in turns.
+	 */
+	private void writeDatabase(int checkins) throws Exception
+	{
+		fixture.item(VSSDatabaseFixture.ROOT, VSSDatabaseFixture.PROJECT)
+			.revision(1, 1, START, "admin", null, null)
+			.revision(2, 2, START + 1, "admin", null, "a.txt")
+			.revision(2, 3, START + 2, "admin", null, "b.txt")
+			.entry("a.txt", FILE_A, VSSDatabaseFixture.FILE)
+			.entry("b.txt", FILE_B, VSSDatabaseFixture.FILE)
+			.write();
+
+		VSSDatabaseFixture.Item a = fixture.item(FILE_A, VSSDatabaseFixture.FILE);
+		VSSDatabaseFixture.Item b = fixture.item(FILE_B, VSSDatabaseFixture.FILE);
+		for(int version = 1;version <= checkins;version ++)
+		{
+			long date = START + 100 * version;
+			a.revision(17, version, date, "alice", "a" + version, null);
+			b.revision(17, version, date + 50, "bob", version % 2 == 0 ? null : "b" + version, null);
+		}
+		a.write();
+		b.write();
+	}
+
+	private List<Object[]> read(int maxEntries, List<String> deletions) throws Exception
+	{
+		reader = new VSSDatabaseReader(fixture.getIni().getPath());
+		return reader.getHistory(new String[]{"$"}, true, filter, new Date(0), maxEntries, deletions);
+	}
+
+	@Test
+	public void readsTheRevisionsNewestFirst() throws Exception
+	{
+		writeDatabase(2);
+
+		List<Object[]> entries = read(100, null);
+
+		assertEquals(7, entries.size());
+		assertEntry(entries.get(0), "$/b.txt", "bob", "", "Checked in", "2", START + 250);
+		assertEntry(entries.get(1), "$/a.txt", "alice", "a2", "Checked in", "2", START + 200);
+		assertEntry(entries.get(2), "$/b.txt", "bob", "b1", "Checked in", "1", START + 150);
+		assertEntry(entries.get(3), "$/a.txt", "alice", "a1", "Checked in", "1", START + 100);
+		assertEntry(entries.get(4), "$/b.txt", "admin", "", "Added", "3", START + 2);
+		assertEntry(entries.get(5), "$/a.txt", "admin", "", "Added", "2", START + 1);
+		assertEntry(entries.get(6), "$", "admin", "", "Created", "1", START);
+	}
+
+	@Test
+	public void keepsOnlyTheNewestEntries() throws Exception
+	{
+		writeDatabase(50);
+
+		List<Object[]> entries = read(5, null);
+
+		assertEquals(5, entries.size());
+		long date = START + 100 * 50 + 50;
+		for(Object[] entry : entries)
+		{
+			assertEquals(new Date(date * 1000L), entry[VSSSCM.ENTRY_DATE]);
+			date -= 50;
+		}
+	}
+
+	@Test
+	public void reportsTheDeletedFiles() throws Exception
+	{
+		fixture.item(VSSDatabaseFixture.ROOT, VSSDatabaseFixture.PROJECT)
+			.revision(2, 1, START, "admin", null, "a.txt")
+			.revision(6, 2, START + 1, "admin", null, "a.txt")
+			.write();
+		List<String> deletions = new ArrayList<String>();
+
+		read(100, deletions);
+
+		assertEquals(1, deletions.size());
+		assertEquals("/a.txt", deletions.get(0));
+	}
+
+	@Test(expected = VSSFormatException.class)
+	public void rejectsATruncatedRecord() throws Exception
+	{
+		writeDatabase(2);
+		fixture.truncate(FILE_A, 10);
+
+		read(100, null);
+	}
+
+	@Test(expected = VSSFormatException.class)
+	public void rejectsABadHeader() throws Exception
+	{
+		writeDatabase(2);
+		fixture.patch(FILE_A, 0, "NotSourceSafe".getBytes("ISO-8859-1"));
+
+		read(100, null);
+	}
+
+	@Test(expected = VSSFormatException.class)
+	public void rejectsAnUnsupportedFileVersion() throws Exception
+	{
+		writeDatabase(2);
+		fixture.patch(FILE_A, 0x22, new byte[]{5, 0});
+
+		read(100, null);
+	}
+
+	@Test(expected = VSSFormatException.class)
+	public void rejectsAnUnknownActionCode() throws Exception
+	{
+		fixture.item(VSSDatabaseFixture.ROOT, VSSDatabaseFixture.PROJECT)
+			.revision(1, 1, START, "admin", null, null)
+			.revision(18, 2, START + 1, "admin", null, null)
+			.write();
+
+		read(100, null);
+	}
+
+	@Test
+	public void readsSixteenBitFieldsUnsigned() throws Exception
+	{
+		StringBuilder comment = new StringBuilder();
+		while(comment.length() < 40000)
+		{
+			comment.append("0123456789");
+		}
+		fixture.item(VSSDatabaseFixture.ROOT, VSSDatabaseFixture.PROJECT)
+			.revision(1, 40000, START, "admin", comment.toString(), null)
+			.write();
+
+		List<Object[]> entries = read(100, null);
+
+		assertEquals(1, entries.size());
+		assertEquals("40000", entries.get(0)[5]);
+		assertEquals(comment.toString(), entries.get(0)[2]);
+	}
+
+	private static void assertEntry(Object[] entry, String path, String user, String comment,
+			String action, String version, long seconds)
+	{
+		assertEquals(path, entry[0]);
+		assertEquals(user, entry[1]);
+		assertEquals(comment, entry[2]);
+		assertEquals(action, entry[3]);
+		assertEquals(version, entry[5]);
+		assertEquals(new Date(seconds * 1000L), entry[VSSSCM.ENTRY_DATE]);
+	}
+}
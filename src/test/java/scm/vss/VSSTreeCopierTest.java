@@ -0,0 +1,149 @@
+package scm.vss;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import hudson.Util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Copies and synchronizes trees over files left read-only by an earlier
+ * fetch, as VSS leaves them unless the files are fetched writable.
+ *
+ * @author vara
+ */
+public class VSSTreeCopierTest
+{
+	private File folder;
+
+	private File source;
+
+	private File target;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		folder = File.createTempFile("vsscopy", "");
+		folder.delete();
+		source = new File(folder, "source");
+		target = new File(folder, "target");
+		new File(source, "sub").mkdirs();
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		makeWritable(folder);
+		Util.deleteRecursive(folder);
+	}
+
+	@Test
+	public void copiesOverAReadOnlyFile() throws Exception
+	{
+		write(new File(source, "sub/a.txt"), "first", true);
+		new VSSTreeCopier().copy(source, target);
+
+		write(new File(source, "sub/a.txt"), "second", true);
+		new VSSTreeCopier().copy(source, target);
+
+		File copy = new File(target, "sub/a.txt");
+		assertEquals("second", read(copy));
+	}
+
+	@Test
+	public void syncsTwiceOverReadOnlyCopies() throws Exception
+	{
+		write(new File(source, "sub/a.txt"), "first", false);
+		write(new File(source, "b.txt"), "kept", false);
+		sync("");
+
+		write(new File(source, "sub/a.txt"), "second version", false);
+		sync("");
+
+		assertEquals("second version", read(new File(target, "sub/a.txt")));
+		assertEquals("kept", read(new File(target, "b.txt")));
+	}
+
+	@Test
+	public void leavesOutFilteredFiles() throws Exception
+	{
+		write(new File(source, "sub/a.txt"), "source", false);
+		write(new File(source, "sub/a.log"), "source", false);
+		write(new File(target, "sub/b.log"), "local", false);
+		write(new File(target, "sub/b.txt"), "removed", false);
+
+		sync("**/*.log");
+
+		assertEquals("source", read(new File(target, "sub/a.txt")));
+		assertFalse(new File(target, "sub/a.log").exists());
+		assertEquals("local", read(new File(target, "sub/b.log")));
+		assertFalse(new File(target, "sub/b.txt").exists());
+	}
+
+	private void sync(String excludes) throws Exception
+	{
+		new VSSTreeSync(true, true, new VSSPathFilter("", excludes), "$/Product").sync(source, target);
+	}
+
+	private static void write(File file, String content, boolean readOnly) throws IOException
+	{
+		file.getParentFile().mkdirs();
+		if(file.exists())
+		{
+			Util.deleteFile(file);
+		}
+		FileOutputStream out = new FileOutputStream(file);
+		try
+		{
+			out.write(content.getBytes("UTF-8"));
+		}
+		finally
+		{
+			out.close();
+		}
+		if(readOnly)
+		{
+			file.setReadOnly();
+		}
+	}
+
+	private static String read(File file) throws IOException
+	{
+		byte[] bytes = new byte[(int)file.length()];
+		FileInputStream in = new FileInputStream(file);
+		try
+		{
+			int read = 0;
+			while(read < bytes.length)
+			{
+				read += in.read(bytes, read, bytes.length - read);
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		return new String(bytes, "UTF-8");
+	}
+
+	private static void makeWritable(File file)
+	{
+		file.setWritable(true);
+		File[] children = file.listFiles();
+		if(children != null)
+		{
+			for(File child : children)
+			{
+				makeWritable(child);
+			}
+		}
+	}
+}